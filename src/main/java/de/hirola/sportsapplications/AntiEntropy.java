@@ -0,0 +1,278 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.model.UUID;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+import org.dizitart.no2.Document;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Finds and repairs the differences of two replicas of the objects, e.g. of two devices of a user,
+ * with the hash trees of the replicas. The trees are compared from the root to the buckets, only the
+ * children of different nodes are requested. Each level is requested with one call of the replica,
+ * so that the differences are found with a number of calls depending on the depth of the tree
+ * (logarithmic to the number of objects), and only the objects of the different buckets are compared.
+ * The hash trees of both replicas must be enabled. The replicas should not be changed while comparing,
+ * otherwise the changes made meanwhile can be reported as differences.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ * @see SportsLibrary#enableHashTree()
+ */
+public final class AntiEntropy {
+
+    /**
+     * A replica with a hash tree, e.g. a library on this device or a connection to another device.
+     */
+    public interface Replica {
+
+        /**
+         * Get the number of levels below the root. The trees of the compared replicas must have the same depth.
+         *
+         * @return The depth of the tree
+         * @throws SportsLibraryException if the replica is not available
+         */
+        int getDepth() throws SportsLibraryException;
+
+        /**
+         * Get the hash of all objects of the replica.
+         *
+         * @return The hash of the root of the tree
+         * @throws SportsLibraryException if the replica is not available
+         */
+        long getRootHash() throws SportsLibraryException;
+
+        /**
+         * Get the hashes of the children of nodes on one level.
+         *
+         * @param level of the nodes, 0 for the root
+         * @param nodes indices of the nodes in their level
+         * @return The hashes of the 16 children by the index of their parent
+         * @throws SportsLibraryException if the replica is not available
+         */
+        Map<Integer, long[]> getChildHashes(int level, @NotNull List<Integer> nodes) throws SportsLibraryException;
+
+        /**
+         * Get the objects of buckets (the nodes of the last level) with their hashes.
+         *
+         * @param buckets indices of the buckets
+         * @return The hashes of the objects by their keys
+         * @throws SportsLibraryException if the replica is not available
+         */
+        Map<String, Long> getEntries(@NotNull List<Integer> buckets) throws SportsLibraryException;
+    }
+
+    /**
+     * An object with different states on both replicas.
+     */
+    public static final class Difference {
+
+        private final String typeName;
+        private final UUID uuid;
+        private final Long localHash;
+        private final Long remoteHash;
+
+        private Difference(@NotNull String key, @Null Long localHash, @Null Long remoteHash) {
+            int separatorIndex = key.lastIndexOf('/');
+            typeName = key.substring(0, separatorIndex);
+            uuid = new UUID(key.substring(separatorIndex + 1));
+            this.localHash = localHash;
+            this.remoteHash = remoteHash;
+        }
+
+        /**
+         * Get the name of the class of the object.
+         *
+         * @return The name of the class of the object
+         */
+        public String getTypeName() {
+            return typeName;
+        }
+
+        /**
+         * Get the uuid of the object.
+         *
+         * @return The uuid of the object
+         */
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        /**
+         * Get a flag to determine if the object is missing on the local replica.
+         *
+         * @return A flag to determine if the object is only on the remote replica
+         */
+        public boolean isMissingLocally() {
+            return localHash == null;
+        }
+
+        /**
+         * Get a flag to determine if the object is missing on the remote replica.
+         *
+         * @return A flag to determine if the object is only on the local replica
+         */
+        public boolean isMissingRemotely() {
+            return remoteHash == null;
+        }
+
+        @Override
+        public String toString() {
+            return "Difference{" +
+                    "typeName='" + typeName + '\'' +
+                    ", uuid=" + uuid +
+                    ", isMissingLocally=" + isMissingLocally() +
+                    ", isMissingRemotely=" + isMissingRemotely() +
+                    '}';
+        }
+    }
+
+    private AntiEntropy() {
+    }
+
+    /**
+     * Get the replica of a library on this device.
+     *
+     * @param sportsLibrary with the objects
+     * @return The replica of the library
+     * @throws SportsLibraryException if the hash tree of the library is not enabled
+     */
+    public static Replica replicaOf(@NotNull SportsLibrary sportsLibrary) throws SportsLibraryException {
+        HashTree hashTree = sportsLibrary.getDataRepository().getHashTree();
+        if (hashTree == null || !hashTree.isComplete()) {
+            throw new SportsLibraryException("The hash tree of the library is not enabled.");
+        }
+        return new Replica() {
+
+            @Override
+            public int getDepth() {
+                return hashTree.getDepth();
+            }
+
+            @Override
+            public long getRootHash() {
+                return hashTree.getRootHash();
+            }
+
+            @Override
+            public Map<Integer, long[]> getChildHashes(int level, @NotNull List<Integer> nodes) {
+                Map<Integer, long[]> childHashes = new HashMap<>();
+                for (Integer node : nodes) {
+                    childHashes.put(node, hashTree.getChildHashes(level, node));
+                }
+                return childHashes;
+            }
+
+            @Override
+            public Map<String, Long> getEntries(@NotNull List<Integer> buckets) {
+                Map<String, Long> entries = new HashMap<>();
+                for (Integer bucket : buckets) {
+                    entries.putAll(hashTree.getEntries(bucket));
+                }
+                return entries;
+            }
+        };
+    }
+
+    /**
+     * Find the objects with different states on both replicas.
+     *
+     * @param localReplica to compare
+     * @param remoteReplica to compare
+     * @return The different objects, the list is empty if both replicas are equal.
+     * @throws SportsLibraryException if the trees have a different depth or a replica is not available
+     */
+    public static List<Difference> compare(@NotNull Replica localReplica, @NotNull Replica remoteReplica)
+            throws SportsLibraryException {
+        int depth = localReplica.getDepth();
+        if (depth != remoteReplica.getDepth()) {
+            throw new SportsLibraryException("The hash trees of the replicas have a different depth.");
+        }
+        List<Difference> differences = new ArrayList<>();
+        if (localReplica.getRootHash() == remoteReplica.getRootHash()) {
+            return differences;
+        }
+        // only the children of different nodes are compared
+        List<Integer> nodes = List.of(0);
+        for (int level = 0; level < depth && !nodes.isEmpty(); level++) {
+            Map<Integer, long[]> localHashes = localReplica.getChildHashes(level, nodes);
+            Map<Integer, long[]> remoteHashes = remoteReplica.getChildHashes(level, nodes);
+            List<Integer> differentNodes = new ArrayList<>();
+            for (Integer node : nodes) {
+                long[] localChildHashes = localHashes.get(node);
+                long[] remoteChildHashes = remoteHashes.get(node);
+                for (int child = 0; child < HashTree.FANOUT; child++) {
+                    if (localChildHashes[child] != remoteChildHashes[child]) {
+                        differentNodes.add(node * HashTree.FANOUT + child);
+                    }
+                }
+            }
+            nodes = differentNodes;
+        }
+        if (nodes.isEmpty()) {
+            return differences;
+        }
+        Map<String, Long> localEntries = localReplica.getEntries(nodes);
+        Map<String, Long> remoteEntries = remoteReplica.getEntries(nodes);
+        Set<String> keys = new HashSet<>(localEntries.keySet());
+        keys.addAll(remoteEntries.keySet());
+        for (String key : keys) {
+            Long localHash = localEntries.get(key);
+            Long remoteHash = remoteEntries.get(key);
+            if (localHash == null || !localHash.equals(remoteHash)) {
+                differences.add(new Difference(key, localHash, remoteHash));
+            }
+        }
+        return differences;
+    }
+
+    /**
+     * Copy the different objects from one library to another library, in one transaction of the target.
+     * Objects missing in the source are removed from the target.
+     *
+     * @param source library with the correct objects
+     * @param target library to be repaired
+     * @param differences of the libraries
+     * @return The number of repaired objects
+     * @throws SportsLibraryException if the objects could not be saved
+     */
+    public static int repair(@NotNull SportsLibrary source, @NotNull SportsLibrary target,
+                             @NotNull List<Difference> differences) throws SportsLibraryException {
+        DataRepository sourceRepository = source.getDataRepository();
+        DataRepository targetRepository = target.getDataRepository();
+        int[] numberOfObjects = new int[1];
+        targetRepository.inTransaction(() -> {
+            for (Difference difference : differences) {
+                Class<? extends PersistentObject> type = typeOf(difference.getTypeName());
+                if (type == null) {
+                    continue;
+                }
+                PersistentObject sourceObject = sourceRepository.findByUUID(type, difference.getUUID());
+                Document document = sourceObject == null ? null : sourceRepository.documentOf(sourceObject);
+                targetRepository.replaceObject(type, difference.getUUID(), document);
+                numberOfObjects[0]++;
+            }
+        });
+        return numberOfObjects[0];
+    }
+
+    @Null
+    private static Class<? extends PersistentObject> typeOf(@NotNull String typeName) {
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            if (type.getName().equals(typeName)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,110 @@
+package de.hirola.sportsapplications;
+
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Runs tasks of the library asynchronously. By default every task runs in its own virtual thread,
+ * if the runtime supports virtual threads (Java 21 and newer), otherwise in a pool of daemon threads.
+ * A task cancelled before start will not run. A running task is not interrupted, because an interrupted
+ * write of the store closes the database of the library, the result of the task is discarded.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+final class AsyncTaskRunner {
+
+    /**
+     * A task of the library with a result.
+     *
+     * @param <T> type of the result
+     */
+    interface Task<T> {
+        T run() throws SportsLibraryException, IOException;
+    }
+
+    private static ExecutorService defaultExecutorService;
+    private volatile Executor executor;
+
+    /**
+     * Create a runner for tasks with the default executor.
+     */
+    AsyncTaskRunner() {
+        executor = null;
+    }
+
+    /**
+     * Set the executor for the tasks.
+     *
+     * @param executor for the tasks, if null the default executor is used
+     */
+    void setExecutor(@Null Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Run a task asynchronously. Errors are reported as SportsLibraryException.
+     *
+     * @param task to be run
+     * @param <T> type of the result
+     * @return A future with the result of the task.
+     */
+    <T> CompletableFuture<T> run(@NotNull Task<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Executor taskExecutor = executor == null ? getDefaultExecutorService() : executor;
+        try {
+            if (taskExecutor instanceof ExecutorService) {
+                Future<?> runningTask = ((ExecutorService) taskExecutor).submit(() -> complete(future, task));
+                // remove the task from the queue, if the future is cancelled before start
+                future.whenComplete((result, throwable) -> {
+                    if (future.isCancelled()) {
+                        runningTask.cancel(false);
+                    }
+                });
+            } else {
+                taskExecutor.execute(() -> complete(future, task));
+            }
+        } catch (RejectedExecutionException exception) {
+            future.completeExceptionally(new SportsLibraryException(exception));
+        }
+        return future;
+    }
+
+    private <T> void complete(@NotNull CompletableFuture<T> future, @NotNull Task<T> task) {
+        if (future.isDone()) {
+            // cancelled before start
+            return;
+        }
+        try {
+            future.complete(task.run());
+        } catch (SportsLibraryException exception) {
+            future.completeExceptionally(exception);
+        } catch (Exception exception) {
+            future.completeExceptionally(new SportsLibraryException(exception));
+        }
+    }
+
+    private static synchronized ExecutorService getDefaultExecutorService() {
+        if (defaultExecutorService == null) {
+            try {
+                // virtual threads are available since Java 21
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                defaultExecutorService = (ExecutorService) method.invoke(null);
+            } catch (ReflectiveOperationException exception) {
+                defaultExecutorService = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "sportsapplications-async");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        return defaultExecutorService;
+    }
+}
@@ -0,0 +1,210 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.ChangeRecord;
+import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.model.UUID;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.FindOptions;
+import org.dizitart.no2.IndexOptions;
+import org.dizitart.no2.IndexType;
+import org.dizitart.no2.Nitrite;
+import org.dizitart.no2.NitriteCollection;
+import org.dizitart.no2.SortOrder;
+import org.dizitart.no2.filters.Filters;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A journal of the changes of the datastore, e.g. for search indexing, statistics or incremental backups.
+ * The changes are saved in the database with the changed objects, in the same transaction,
+ * so that the journal contains exactly the committed changes. Every change gets the next sequence number.
+ * The journal is split into segments (collections) of a fixed number of changes. A new segment is started,
+ * if the last segment is full. Old segments can be removed, if all consumers have read them.
+ * Changes of a running transaction are not read, until the transaction is committed.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+final class ChangeJournal {
+
+    static final String SEGMENT_PREFIX = "changes-";
+    private static final String SEQUENCE_ATTRIBUTE = "sequence";
+    private static final String OPERATION_ATTRIBUTE = "operation";
+    private static final String TYPE_ATTRIBUTE = "type";
+    private static final String UUID_ATTRIBUTE = "uuid";
+    private static final String TIME_ATTRIBUTE = "time";
+    private static final String DIFF_ATTRIBUTE = "diff";
+
+    private final Nitrite database;
+    private final int segmentSize;
+    private final List<Long> segments; // first sequence of the segments in ascending order
+    private long nextSequence;
+    private long committedSequence; // last sequence of the committed changes
+    private int changesInLastSegment;
+
+    /**
+     * Load the journal of a database.
+     *
+     * @param database with the journal
+     * @param segmentSize maximum number of changes in a segment
+     */
+    ChangeJournal(@NotNull Nitrite database, int segmentSize) {
+        this.database = database;
+        this.segmentSize = Math.max(1, segmentSize);
+        segments = new ArrayList<>();
+        load();
+        committedSequence = nextSequence - 1;
+    }
+
+    /**
+     * Append a change to the journal. Must be called in a transaction of the datastore,
+     * the change can be read after the commit.
+     *
+     * @param operation of the change
+     * @param object which was changed
+     * @param diff changed attributes with their new values, can be null
+     */
+    synchronized void append(@NotNull ChangeRecord.Operation operation, @NotNull PersistentObject object,
+                             @Null Document diff) {
+        if (segments.isEmpty() || changesInLastSegment >= segmentSize) {
+            NitriteCollection segment = database.getCollection(segmentNameOf(nextSequence));
+            segment.createIndex(SEQUENCE_ATTRIBUTE, IndexOptions.indexOptions(IndexType.Unique));
+            segments.add(nextSequence);
+            changesInLastSegment = 0;
+        }
+        Document document = Document.createDocument(SEQUENCE_ATTRIBUTE, nextSequence);
+        document.put(OPERATION_ATTRIBUTE, operation.name());
+        document.put(TYPE_ATTRIBUTE, object.getClass().getName());
+        document.put(UUID_ATTRIBUTE, object.getUUID().getString());
+        document.put(TIME_ATTRIBUTE, System.currentTimeMillis());
+        if (diff != null) {
+            document.put(DIFF_ATTRIBUTE, diff);
+        }
+        database.getCollection(segmentNameOf(segments.get(segments.size() - 1))).insert(document);
+        nextSequence++;
+        changesInLastSegment++;
+    }
+
+    /**
+     * The changes of the transaction were committed and can be read.
+     */
+    synchronized void didCommit() {
+        committedSequence = nextSequence - 1;
+    }
+
+    /**
+     * The changes of the transaction were discarded, the journal is loaded again.
+     */
+    synchronized void didRollback() {
+        load();
+    }
+
+    /**
+     * Get the sequence number of the last committed change.
+     *
+     * @return The sequence number of the last change, 0 if the journal is empty
+     */
+    synchronized long getLastSequence() {
+        return committedSequence;
+    }
+
+    /**
+     * Read the committed changes from a sequence number in the order of the sequence numbers.
+     * Changes of removed segments are missing, the first change can be greater than the requested one.
+     *
+     * @param fromSequence sequence number of the first change
+     * @param limit maximum number of changes, 0 for all changes
+     * @return The changes from the sequence number, the list can be empty.
+     */
+    synchronized List<ChangeRecord> read(long fromSequence, int limit) {
+        List<ChangeRecord> changes = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            long lastSequenceOfSegment = i + 1 < segments.size() ? segments.get(i + 1) - 1 : committedSequence;
+            if (lastSequenceOfSegment < fromSequence || segments.get(i) > committedSequence) {
+                continue;
+            }
+            int remaining = limit > 0 ? limit - changes.size() : Integer.MAX_VALUE;
+            FindOptions findOptions = FindOptions.sort(SEQUENCE_ATTRIBUTE, SortOrder.Ascending)
+                    .thenLimit(0, remaining);
+            NitriteCollection segment = database.getCollection(segmentNameOf(segments.get(i)));
+            for (Document document : segment.find(Filters.and(Filters.gte(SEQUENCE_ATTRIBUTE, fromSequence),
+                    Filters.lte(SEQUENCE_ATTRIBUTE, committedSequence)), findOptions)) {
+                changes.add(changeOf(document));
+            }
+            if (limit > 0 && changes.size() >= limit) {
+                break;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Remove the segments with changes before a sequence number. A segment is removed,
+     * if all of its changes are before the sequence number. The last segment is never removed.
+     * Must be called in a transaction of the datastore.
+     *
+     * @param beforeSequence sequence number of the first change to keep
+     * @return The number of removed changes
+     */
+    synchronized long truncate(long beforeSequence) {
+        long numberOfChanges = 0;
+        while (segments.size() > 1 && segments.get(1) <= beforeSequence) {
+            long firstSequence = segments.remove(0);
+            database.getCollection(segmentNameOf(firstSequence)).drop();
+            numberOfChanges += segments.get(0) - firstSequence;
+        }
+        return numberOfChanges;
+    }
+
+    // the segments and the next sequence number are determined from the saved segments,
+    // the sequence numbers of a segment have no gaps
+    private void load() {
+        segments.clear();
+        for (String collectionName : database.listCollectionNames()) {
+            if (collectionName.startsWith(SEGMENT_PREFIX)) {
+                try {
+                    segments.add(Long.parseLong(collectionName.substring(SEGMENT_PREFIX.length())));
+                } catch (NumberFormatException exception) {
+                    // not a segment of the journal
+                }
+            }
+        }
+        segments.sort(Long::compare);
+        if (segments.isEmpty()) {
+            nextSequence = 1;
+            changesInLastSegment = 0;
+            return;
+        }
+        long firstSequence = segments.get(segments.size() - 1);
+        changesInLastSegment = (int) database.getCollection(segmentNameOf(firstSequence)).size();
+        nextSequence = firstSequence + changesInLastSegment;
+    }
+
+    private ChangeRecord changeOf(@NotNull Document document) {
+        Map<String, Object> diff = null;
+        Object savedDiff = document.get(DIFF_ATTRIBUTE);
+        if (savedDiff instanceof Document) {
+            diff = new LinkedHashMap<>((Document) savedDiff);
+        }
+        return new ChangeRecord(
+                ((Number) document.get(SEQUENCE_ATTRIBUTE)).longValue(),
+                ChangeRecord.Operation.valueOf((String) document.get(OPERATION_ATTRIBUTE)),
+                (String) document.get(TYPE_ATTRIBUTE),
+                new UUID((String) document.get(UUID_ATTRIBUTE)),
+                ((Number) document.get(TIME_ATTRIBUTE)).longValue(),
+                diff);
+    }
+
+    // the names of the segments are sorted like their sequence numbers
+    private static String segmentNameOf(long firstSequence) {
+        return SEGMENT_PREFIX + String.format("%019d", firstSequence);
+    }
+}
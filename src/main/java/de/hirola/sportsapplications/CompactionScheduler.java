@@ -0,0 +1,194 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.CompactionStatistics;
+import javax.validation.constraints.NotNull;
+import org.h2.mvstore.MVStore;
+import org.tinylog.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Compacts the database file in the background, because the compaction on close is disabled.
+ * A background thread checks the file size, the fill rate and the commits of the store periodically.
+ * If the file is large, the fill rate is low and nothing was committed for a while, the chunks
+ * with a low fill rate are rewritten and moved to the start of the file, step by step until
+ * the time budget is exhausted. A compaction step holds the commit lock, so writers wait
+ * at most for one step and a compaction stops, if a writer is waiting.
+ * The checks of all open databases share one background thread.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+final class CompactionScheduler {
+
+    private static ScheduledExecutorService executorService; // shared by all schedulers
+    private final DatabaseManager databaseManager;
+    private final ReentrantLock commitLock;
+    private final long idleTimeInMillis;
+    private final ScheduledFuture<?> scheduledCheck;
+    private volatile long timeBudgetInMillis;
+    private volatile boolean isClosed;
+    private long lastVersion; // of the store at the last check
+    private long compactedVersion; // of the store after the last compaction
+    private long lastActivityTime;
+    private long compactions;
+    private long reclaimedBytes;
+
+    /**
+     * Create a scheduler and start the background checks.
+     *
+     * @param databaseManager with the store to be compacted
+     * @param commitLock held by the writers of the store
+     * @param checkIntervalInMillis time in milliseconds between the checks
+     * @param idleTimeInMillis time in milliseconds without commits before a compaction
+     * @param timeBudgetInMillis maximum time in milliseconds for a compaction, 0 disables the compaction
+     */
+    CompactionScheduler(@NotNull DatabaseManager databaseManager, @NotNull ReentrantLock commitLock,
+                        long checkIntervalInMillis, long idleTimeInMillis, long timeBudgetInMillis) {
+        this.databaseManager = databaseManager;
+        this.commitLock = commitLock;
+        this.idleTimeInMillis = Math.max(0, idleTimeInMillis);
+        this.timeBudgetInMillis = Math.max(0, timeBudgetInMillis);
+        lastVersion = -1;
+        compactedVersion = -1;
+        long interval = Math.max(1, checkIntervalInMillis);
+        scheduledCheck = getExecutorService()
+                .scheduleWithFixedDelay(this::compactIfIdle, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the maximum time for a compaction.
+     *
+     * @param timeBudgetInMillis maximum time in milliseconds for a compaction, 0 disables the compaction
+     */
+    void setTimeBudget(long timeBudgetInMillis) {
+        this.timeBudgetInMillis = Math.max(0, timeBudgetInMillis);
+    }
+
+    /**
+     * Compact the database file within the time budget, regardless of the file size,
+     * the fill rate and the last commit.
+     *
+     * @return A flag to determine if the database file was compacted,
+     *         false if a writer is active or the compaction is disabled
+     */
+    boolean compact() {
+        MVStore store = databaseManager.getStore();
+        long timeBudget = timeBudgetInMillis;
+        if (store == null || store.getFileStore() == null || timeBudget == 0 || databaseManager.isIndexing()) {
+            return false;
+        }
+        // never wait for a writer, the library is not idle
+        if (!commitLock.tryLock()) {
+            return false;
+        }
+        try {
+            if (isClosed) {
+                return false;
+            }
+            long fileSizeBefore = store.getFileStore().size();
+            long deadline = System.currentTimeMillis() + timeBudget;
+            // rewrite the chunks with a low fill rate
+            while (store.getChunksFillRate() < Global.COMPACTION_TARGET_FILL_RATE
+                    && System.currentTimeMillis() < deadline && !commitLock.hasQueuedThreads()) {
+                if (!store.compact(Global.COMPACTION_TARGET_FILL_RATE, Global.COMPACTION_WRITE_LIMIT)) {
+                    break;
+                }
+            }
+            // move the chunks to the start of the file and shrink the file
+            long remainingTime = deadline - System.currentTimeMillis();
+            if (remainingTime > 0 && !commitLock.hasQueuedThreads()) {
+                store.compactFile(remainingTime);
+            }
+            if (store.hasUnsavedChanges()) {
+                store.commit();
+            }
+            synchronized (this) {
+                compactions++;
+                reclaimedBytes += Math.max(0, fileSizeBefore - store.getFileStore().size());
+                // the compaction is not an activity of the library
+                lastVersion = store.getCurrentVersion();
+                compactedVersion = lastVersion;
+            }
+            return true;
+        } catch (RuntimeException exception) {
+            Logger.debug(exception, "The database file could not be compacted.");
+            return false;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Get the counters of the compaction.
+     *
+     * @return The counters of the compaction
+     */
+    synchronized CompactionStatistics getStatistics() {
+        MVStore store = databaseManager.getStore();
+        if (store == null || store.getFileStore() == null) {
+            // closed or in memory
+            return new CompactionStatistics(compactions, reclaimedBytes, 0, 100);
+        }
+        return new CompactionStatistics(compactions, reclaimedBytes, store.getFileStore().size(), fillRateOf(store));
+    }
+
+    /**
+     * Stop the background checks. A running compaction will be completed.
+     */
+    void close() {
+        isClosed = true;
+        scheduledCheck.cancel(false);
+        // wait for a running compaction
+        commitLock.lock();
+        commitLock.unlock();
+    }
+
+    private void compactIfIdle() {
+        MVStore store = databaseManager.getStore();
+        if (store == null || store.getFileStore() == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            long version = store.getCurrentVersion();
+            if (version != lastVersion) {
+                // changes were committed since the last check
+                lastVersion = version;
+                lastActivityTime = now;
+                return;
+            }
+            if (now - lastActivityTime < idleTimeInMillis || version == compactedVersion) {
+                // not idle or nothing changed since the last compaction
+                return;
+            }
+        }
+        if (store.getFileStore().size() >= Global.COMPACTION_MIN_FILE_SIZE
+                && fillRateOf(store) < Global.COMPACTION_MIN_FILL_RATE) {
+            compact();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getExecutorService() {
+        if (executorService == null) {
+            executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "sportsapplications-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executorService;
+    }
+
+    // the lower rate of live data in the chunks and of used blocks in the file
+    private int fillRateOf(@NotNull MVStore store) {
+        return Math.min(store.getChunksFillRate(), store.getFileStore().getFillRate());
+    }
+}
@@ -1,20 +1,44 @@
 package de.hirola.sportsapplications;
 
+import de.hirola.sportsapplications.database.CacheStatistics;
+import de.hirola.sportsapplications.database.ChangeRecord;
+import de.hirola.sportsapplications.database.CompactionStatistics;
 import de.hirola.sportsapplications.database.DatastoreDelegate;
+import de.hirola.sportsapplications.database.LocationStorage;
 import de.hirola.sportsapplications.database.PersistentObject;
 import de.hirola.sportsapplications.model.*;
+import de.hirola.sportsapplications.model.UUID;
 
+import org.dizitart.no2.Constants;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.Filter;
+import org.dizitart.no2.FindOptions;
+import org.dizitart.no2.IndexOptions;
+import org.dizitart.no2.IndexType;
 import org.dizitart.no2.Nitrite;
-import org.dizitart.no2.exceptions.NotIdentifiableException;
+import org.dizitart.no2.NitriteCollection;
+import org.dizitart.no2.NitriteId;
+import org.dizitart.no2.SortOrder;
+import org.dizitart.no2.UpdateOptions;
+import org.dizitart.no2.exceptions.ValidationException;
+import org.dizitart.no2.filters.Filters;
+import org.dizitart.no2.mapper.NitriteMapper;
 import org.dizitart.no2.objects.Cursor;
+import org.dizitart.no2.objects.ObjectFilter;
 import org.dizitart.no2.objects.ObjectRepository;
 import org.dizitart.no2.objects.filters.ObjectFilters;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Null;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
@@ -22,18 +46,115 @@ import java.util.Optional;
  *
  * Adds a persistence layer, encapsulating the actual data storage technology used.
  *
+ * The repository is thread-safe. Every persistent type has its own read/write lock,
+ * so that readers of different types never contend. Writes lock all types changed or read
+ * with the object, e.g. the locations of a track. The locks are always acquired in the order
+ * of the persistent types in Global. Iterators and streams are not locked while iterating.
+ *
+ * Every change is written in one transaction of the underlying store. The nested objects
+ * of an object become visible together with the object, if an error occurs no object will be saved.
+ * The changes are committed once with the transaction, the writers are serialized by the commit lock.
+ *
  * @author Michael Schmidt (Hirola)
  * @since v0.1
  */
 final class DataRepository {
 
-    private final int INSERT_ACTION = 0;
-    private final int UPDATE_ACTION = 1;
-    private final int REMOVE_ACTION = 2;
+    static final int INSERT_ACTION = 0;
+    static final int UPDATE_ACTION = 1;
+    static final int REMOVE_ACTION = 2;
+
+    private static final String UUID_ATTRIBUTE = "uuid";
+    private static final String METADATA_COLLECTION = "metadata";
+    private static final String LOCATION_STORAGE_KEY = "locationStorage";
+    private static final String LIBRARY_METADATA_KEY = "library";
+    private static final String IS_SEEDED_ATTRIBUTE = "isSeeded";
+    private static final String TEMPLATE_BUNDLE_HASH_ATTRIBUTE = "templateBundleHash";
+    private static final String LIBRARY_VERSION_ATTRIBUTE = "libraryVersion";
+    private static final String APP_USER_ATTRIBUTE = "appUserUUID";
+    private static final String LOCATIONS_ATTRIBUTE = "locationData";
+    private static final String TRACK_REFERENCE_ATTRIBUTE = "trackUUID";
+    private static final String POSITION_ATTRIBUTE = "position";
+    private static final String SYNC_COLLECTION = "sync";
+
+    /**
+     * A change of the datastore, which can be run in a transaction.
+     */
+    interface Operation {
+        void run() throws SportsLibraryException;
+    }
+
+    // defers the events of a transaction until the transaction is committed
+    private final class TransactionDelegate implements DatastoreDelegate {
+
+        @Override
+        public void didObjectAdded(PersistentObject persistentObject) {
+            defer(persistentObject, () -> eventDelegate.didObjectAdded(persistentObject));
+        }
+
+        @Override
+        public void didObjectUpdated(PersistentObject persistentObject) {
+            defer(persistentObject, () -> eventDelegate.didObjectUpdated(persistentObject));
+        }
+
+        @Override
+        public void didObjectRemoved(PersistentObject persistentObject) {
+            defer(persistentObject, () -> eventDelegate.didObjectRemoved(persistentObject));
+        }
+
+        @Override
+        public void didObjectsAdded(List<? extends PersistentObject> persistentObjects) {
+            defer(persistentObjects, () -> eventDelegate.didObjectsAdded(persistentObjects));
+        }
+
+        @Override
+        public void didObjectsUpdated(List<? extends PersistentObject> persistentObjects) {
+            defer(persistentObjects, () -> eventDelegate.didObjectsUpdated(persistentObjects));
+        }
+
+        @Override
+        public void didObjectsRemoved(List<? extends PersistentObject> persistentObjects) {
+            defer(persistentObjects, () -> eventDelegate.didObjectsRemoved(persistentObjects));
+        }
+
+        private void defer(@NotNull PersistentObject object, @NotNull Runnable event) {
+            defer(Collections.singletonList(object), event);
+        }
+
+        private void defer(@NotNull List<? extends PersistentObject> objects, @NotNull Runnable event) {
+            if (!isInTransaction()) {
+                event.run();
+                return;
+            }
+            // the changed objects must be read from the datastore within the transaction
+            for (PersistentObject object : objects) {
+                objectCache.invalidate(object.getClass(), object.getUUID());
+            }
+            transactionEvents.add(event);
+        }
+    }
 
     private final SportsLibrary sportsLibrary;
+    private final DatabaseManager databaseManager;
     private final Nitrite database; // we use Nitrite database
-    private final DatastoreDelegate delegate;
+    private final DatastoreDelegate eventDelegate; // informed after the commit
+    private final DatastoreDelegate delegate; // defers the events of a transaction
+    private final ObjectCache objectCache;
+    private final Map<Class<? extends PersistentObject>, ReentrantReadWriteLock> locks;
+    private final ReentrantLock commitLock; // acquired after the write locks
+    private final boolean isReadOnly; // all changes are refused
+    private final List<PersistentObject> uncommittedObjects; // saved state changed in the current transaction
+    private volatile Thread transactionThread; // null, if no transaction of the library is running
+    private List<Runnable> transactionEvents; // events deferred until the end of the transaction
+    private LocationStorage locationStorage;
+    private volatile WriteBehindQueue writeBehindQueue; // null, if the objects are written immediately
+    private final ChangeJournal changeJournal; // null, if the datastore is not open
+    private volatile boolean isChangeJournalEnabled;
+    private volatile boolean isChangeDiffRecorded; // the changed attributes are saved with the changes
+    private volatile Thread unjournaledThread; // changes of this thread are not recorded, e.g. of the sync
+    private final HashTree hashTree; // null, if the datastore is not open
+    private volatile boolean isHashTreeEnabled; // the tree is maintained with every change
+    private final CompactionScheduler compactionScheduler; // null, if the datastore is not open
 
     /**
      * Create the local datastore access layer.
@@ -41,11 +162,55 @@ final class DataRepository {
      * @param sportsLibrary instance
      * @param databaseManager of this library
      * @param delegate to notify on events
+     * @throws SportsLibraryException if the locations of the tracks could not migrate to the storage layout
+     *                                or the index of the locations could not be created
      */
-    public DataRepository(@NotNull SportsLibrary sportsLibrary, @NotNull DatabaseManager databaseManager, @NotNull DatastoreDelegate delegate) {
+    public DataRepository(@NotNull SportsLibrary sportsLibrary, @NotNull DatabaseManager databaseManager,
+                          @NotNull DatastoreDelegate delegate) throws SportsLibraryException {
         this.sportsLibrary = sportsLibrary;
-        this.delegate = delegate;
+        this.databaseManager = databaseManager;
         database = databaseManager.getDatabase(); // can be null
+        // shared with the read-only repositories of the database
+        objectCache = databaseManager.getObjectCache();
+        locks = databaseManager.getLocks();
+        commitLock = databaseManager.getCommitLock();
+        isReadOnly = databaseManager.isReadOnly();
+        changeJournal = databaseManager.getChangeJournal();
+        hashTree = databaseManager.getHashTree();
+        // a complete tree was maintained before and must be maintained further
+        isHashTreeEnabled = !isReadOnly && hashTree != null && hashTree.isComplete();
+        uncommittedObjects = new ArrayList<>();
+        eventDelegate = delegate;
+        this.delegate = new TransactionDelegate();
+        locationStorage = Global.DEFAULT_LOCATION_STORAGE;
+        if (isOpen() && isReadOnly) {
+            // the locations are saved in both layouts, if the layout was not saved yet
+            LocationStorage savedLocationStorage = loadLocationStorage();
+            if (savedLocationStorage != null) {
+                locationStorage = savedLocationStorage;
+            }
+            compactionScheduler = null;
+        } else if (isOpen()) {
+            LocationStorage savedLocationStorage = loadLocationStorage();
+            if (savedLocationStorage == null) {
+                // new database or the locations are saved twice (before the layout was saved)
+                List<Lock> acquiredLocks = lock(Global.PERSISTENT_CLASSES_LIST, true);
+                try {
+                    migrateLocationStorage(Global.DEFAULT_LOCATION_STORAGE);
+                } finally {
+                    unlock(acquiredLocks);
+                }
+            } else {
+                locationStorage = savedLocationStorage;
+            }
+            // the unique index requires the locations without copies
+            atomically(databaseManager::createLocationIndex);
+            compactionScheduler = new CompactionScheduler(databaseManager, commitLock,
+                    Global.COMPACTION_CHECK_INTERVAL_MILLIS, Global.COMPACTION_IDLE_TIME_MILLIS,
+                    Global.COMPACTION_TIME_BUDGET_MILLIS);
+        } else {
+            compactionScheduler = null;
+        }
     }
 
     /**
@@ -80,6 +245,93 @@ final class DataRepository {
         return false;
     }
 
+    /**
+     * Get a flag to determine if the templates were added to the datastore with the current version
+     * of the library and templates. The state is read from one document of the metadata, so that
+     * the start of the library does not depend on the number of saved objects.
+     * Datastores of an older version have no state and must be checked with isEmpty once.
+     *
+     * @param templateBundleHash of the templates, can be null
+     * @return A flag to determine if the templates were added to the datastore
+     * @see #setSeeded(String)
+     */
+    public boolean isSeeded(@Null String templateBundleHash) {
+        if (isOpen()) {
+            Document document = loadLibraryMetadata();
+            return document != null
+                    && Boolean.TRUE.equals(document.get(IS_SEEDED_ATTRIBUTE))
+                    && Global.LIBRARY_VERSION.equals(document.get(LIBRARY_VERSION_ATTRIBUTE))
+                    && Objects.equals(templateBundleHash, document.get(TEMPLATE_BUNDLE_HASH_ATTRIBUTE));
+        }
+        return false;
+    }
+
+    /**
+     * Save the state, that the templates were added to the datastore,
+     * with the current version of the library and the hash of the templates.
+     * The templates are only added to an empty datastore, for a datastore with objects the hash
+     * records the checked templates, not the added templates.
+     *
+     * @param templateBundleHash of the added templates, can be null
+     * @throws SportsLibraryException if the datastore is not open or the state could not be saved
+     */
+    public void setSeeded(@Null String templateBundleHash) throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        Document document = Document.createDocument(IS_SEEDED_ATTRIBUTE, true);
+        document.put(TEMPLATE_BUNDLE_HASH_ATTRIBUTE, templateBundleHash);
+        document.put(LIBRARY_VERSION_ATTRIBUTE, Global.LIBRARY_VERSION);
+        atomically(() -> saveLibraryMetadata(document));
+    }
+
+    /**
+     * Get the user of the app. The uuid of the user is saved in the metadata,
+     * so the user is loaded with the index of the users.
+     *
+     * @return The user of the app or null, if no user was saved as user of the app
+     * @see #setAppUser(User)
+     */
+    @Null
+    public User findAppUser() {
+        if (isOpen()) {
+            Document document = loadLibraryMetadata();
+            if (document != null && document.get(APP_USER_ATTRIBUTE) instanceof String) {
+                PersistentObject user = findByUUID(User.class, new UUID((String) document.get(APP_USER_ATTRIBUTE)));
+                if (user instanceof User) {
+                    return (User) user;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Save the user as user of the app.
+     *
+     * @param user of the app
+     * @throws SportsLibraryException if the datastore is not open or the user could not be saved
+     */
+    public void setAppUser(@NotNull User user) throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        atomically(() -> saveLibraryMetadata(
+                Document.createDocument(APP_USER_ATTRIBUTE, user.getUUID().getString())));
+    }
+
+    /**
+     * Get a flag to determine if the datastore was opened read-only.
+     * All changes of a read-only datastore are refused.
+     *
+     * @return A flag to determine if the datastore can only be read
+     */
+    public boolean isReadOnly() {
+        return isReadOnly;
+    }
+
     /**
      * Get a flag to determine if the datastore is open.
      *
@@ -93,6 +345,480 @@ final class DataRepository {
 
     }
 
+    /**
+     * Get the cache for objects read from the datastore. The cache must be informed
+     * about the events of the datastore.
+     *
+     * @return The cache for objects read from the datastore
+     */
+    ObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    /**
+     * Get the counters of the cache for objects read from the datastore.
+     *
+     * @return The counters of the object cache
+     */
+    public CacheStatistics getCacheStatistics() {
+        return objectCache.getStatistics();
+    }
+
+    /**
+     * Get the counters of the compaction of the database file.
+     *
+     * @return The counters of the compaction
+     */
+    public CompactionStatistics getCompactionStatistics() {
+        if (compactionScheduler == null) {
+            return new CompactionStatistics(0, 0, 0, 100);
+        }
+        return compactionScheduler.getStatistics();
+    }
+
+    /**
+     * Set the maximum time for a compaction of the database file.
+     * The database file is compacted in the background, if the library is idle.
+     *
+     * @param timeBudgetInMillis maximum time in milliseconds for a compaction, 0 disables the compaction
+     */
+    public void setCompactionTimeBudget(long timeBudgetInMillis) {
+        if (compactionScheduler != null) {
+            compactionScheduler.setTimeBudget(timeBudgetInMillis);
+        }
+    }
+
+    /**
+     * Compact the database file within the time budget, e.g. before the app is paused.
+     *
+     * @return A flag to determine if the database file was compacted
+     */
+    public boolean compact() {
+        if (compactionScheduler == null) {
+            return false;
+        }
+        return compactionScheduler.compact();
+    }
+
+    /**
+     * Get the layout for storing the locations of the tracks in this database.
+     *
+     * @return The layout for storing the locations of the tracks
+     */
+    public LocationStorage getLocationStorage() {
+        return locationStorage;
+    }
+
+    /**
+     * Set the layout for storing the locations of the tracks in this database.
+     * All tracks are migrated in place to the new layout. If the migration is interrupted,
+     * it will be continued with the next call.
+     *
+     * @param locationStorage new layout for storing the locations
+     * @throws SportsLibraryException if an error occurred while migrating the tracks
+     */
+    public void setLocationStorage(@NotNull LocationStorage locationStorage) throws SportsLibraryException {
+        checkWritable();
+        if (isOpen()) {
+            flush();
+            List<Lock> acquiredLocks = lock(Global.PERSISTENT_CLASSES_LIST, true);
+            try {
+                migrateLocationStorage(locationStorage);
+            } finally {
+                unlock(acquiredLocks);
+            }
+        }
+    }
+
+    /**
+     * Get a flag to determine if the objects are written in the background.
+     *
+     * @return A flag to determine if the objects are written in the background
+     */
+    public boolean isWriteBehindEnabled() {
+        return writeBehindQueue != null;
+    }
+
+    /**
+     * Write the objects in the background. Changes of the same object are coalesced
+     * and written with one commit, if half of the pending writes is reached,
+     * the flush interval has elapsed or flush is called.
+     * The delegate is notified, when the objects are written.
+     * Pending objects are returned by findByUUID and findAll, other queries write the pending objects before.
+     * A read-only datastore has no pending objects.
+     *
+     * @param maxPendingWrites maximum number of pending writes, if reached the objects are written
+     *                         on the calling thread
+     * @param flushIntervalInMillis maximum time in milliseconds between the writes
+     */
+    public void enableWriteBehind(int maxPendingWrites, long flushIntervalInMillis) {
+        if (writeBehindQueue == null && !isReadOnly) {
+            writeBehindQueue = new WriteBehindQueue(this::writePendingWrites, maxPendingWrites, flushIntervalInMillis);
+        }
+    }
+
+    /**
+     * Write all pending objects and write further objects immediately.
+     * If an object could not be written, the objects remain pending.
+     *
+     * @throws SportsLibraryException if an error occurred while writing the pending objects
+     */
+    public void disableWriteBehind() throws SportsLibraryException {
+        if (writeBehindQueue != null) {
+            WriteBehindQueue queue = writeBehindQueue;
+            writeBehindQueue = null;
+            try {
+                queue.close();
+            } catch (SportsLibraryException exception) {
+                // the failed objects are still found and written with the next flush
+                writeBehindQueue = queue;
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Write all pending objects with one commit. Objects with an error remain pending.
+     * An error of a previous write in the background or before a query is thrown too.
+     *
+     * @throws SportsLibraryException if an error occurred while writing the pending objects
+     */
+    public void flush() throws SportsLibraryException {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.flush();
+        }
+    }
+
+    /**
+     * Get a flag to determine if the changes are recorded in the change journal.
+     *
+     * @return A flag to determine if the changes are recorded
+     */
+    public boolean isChangeJournalEnabled() {
+        return isChangeJournalEnabled;
+    }
+
+    /**
+     * Record every insert, update and remove of an object in the change journal,
+     * in the same transaction as the change. The changes made while the journal is disabled,
+     * by clearAll or restore are not recorded, the consumers must read all objects again.
+     * A read-only datastore records no changes.
+     *
+     * @param isDiffRecorded a flag to determine if the changed attributes are recorded with the changes
+     */
+    public void enableChangeJournal(boolean isDiffRecorded) {
+        if (!isReadOnly) {
+            isChangeDiffRecorded = isDiffRecorded;
+            isChangeJournalEnabled = true;
+        }
+    }
+
+    /**
+     * Stop recording the changes in the change journal. The recorded changes can still be read.
+     */
+    public void disableChangeJournal() {
+        isChangeJournalEnabled = false;
+    }
+
+    /**
+     * Get the committed changes from a sequence number, e.g. the next change after the last processed change.
+     * Changes of truncated segments are missing, so the first change can be greater than the requested one.
+     * Pending objects are written before.
+     *
+     * @param fromSequence sequence number of the first change, 1 for all changes
+     * @param limit maximum number of changes, 0 for all changes
+     * @return A list of the changes in the order of the sequence numbers. The list can be empty.
+     * @throws SportsLibraryException if the pending objects could not be written
+     */
+    public List<ChangeRecord> getChanges(long fromSequence, int limit) throws SportsLibraryException {
+        if (!isOpen() || changeJournal == null) {
+            return new ArrayList<>();
+        }
+        flush();
+        return changeJournal.read(fromSequence, limit);
+    }
+
+    /**
+     * Get the sequence number of the last committed change.
+     *
+     * @return The sequence number of the last change, 0 if no change was recorded
+     */
+    public long getLastChangeSequence() {
+        if (!isOpen() || changeJournal == null) {
+            return 0;
+        }
+        return changeJournal.getLastSequence();
+    }
+
+    /**
+     * Remove the recorded changes before a sequence number, e.g. after all consumers have processed them.
+     * The changes are removed by segments of the journal, the changes of a segment are removed,
+     * if all are before the sequence number. The changes of the last segment are not removed.
+     *
+     * @param beforeSequence sequence number of the first change to keep
+     * @return The number of removed changes
+     * @throws SportsLibraryException if the datastore is not open or the changes could not be removed
+     */
+    public long truncateChanges(long beforeSequence) throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen() || changeJournal == null) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        long[] numberOfChanges = new long[1];
+        atomically(() -> numberOfChanges[0] = changeJournal.truncate(beforeSequence));
+        return numberOfChanges[0];
+    }
+
+    /**
+     * Get a flag to determine if the hash tree of the objects is maintained.
+     *
+     * @return A flag to determine if the hash tree is maintained
+     */
+    public boolean isHashTreeEnabled() {
+        return isHashTreeEnabled;
+    }
+
+    /**
+     * Maintain a hash tree of the objects with every change, to compare the objects with another replica.
+     * The tree is built once from all objects, if it is not complete, and is maintained further after a restart.
+     * The embedded objects are part of the hash of their parent.
+     *
+     * @throws SportsLibraryException if the datastore is read-only or the tree could not be built
+     * @see AntiEntropy
+     */
+    public void enableHashTree() throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen() || hashTree == null) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        if (hashTree.isComplete()) {
+            isHashTreeEnabled = true;
+            return;
+        }
+        rebuildHashTree();
+    }
+
+    /**
+     * Stop maintaining the hash tree. The tree is removed, it must be built again with the next enabling.
+     *
+     * @throws SportsLibraryException if the datastore is read-only or the tree could not be removed
+     */
+    public void disableHashTree() throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen() || hashTree == null) {
+            return;
+        }
+        List<Lock> acquiredLocks = lock(Global.PERSISTENT_CLASSES_LIST, true);
+        try {
+            atomically(() -> {
+                hashTree.clear();
+                hashTree.setComplete(false);
+            });
+            isHashTreeEnabled = false;
+        } finally {
+            unlock(acquiredLocks);
+        }
+    }
+
+    /**
+     * Build the hash tree again from all objects in one transaction, e.g. after new schema upgrades
+     * of the types, which change the documents of the objects. Pending objects are written before.
+     *
+     * @throws SportsLibraryException if the datastore is read-only or the tree could not be built
+     */
+    public void rebuildHashTree() throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen() || hashTree == null) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        flush();
+        List<Lock> acquiredLocks = lock(Global.PERSISTENT_CLASSES_LIST, true);
+        try {
+            atomically(() -> {
+                hashTree.clear();
+                for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+                    if (Global.CASCADING_DELETED_CLASSES.contains(type)) {
+                        continue;
+                    }
+                    Iterator<? extends PersistentObject> iterator = iterator(type);
+                    while (iterator.hasNext()) {
+                        PersistentObject object = iterator.next();
+                        hashTree.update(HashTree.keyOf(type, object.getUUID()), documentOf(object));
+                    }
+                }
+                hashTree.setComplete(true);
+            });
+            isHashTreeEnabled = true;
+        } finally {
+            unlock(acquiredLocks);
+        }
+    }
+
+    /**
+     * Get the hash tree of the objects.
+     *
+     * @return The hash tree or null, if the datastore is not open
+     */
+    @Null
+    HashTree getHashTree() {
+        return hashTree;
+    }
+
+    /**
+     * Get the complete document of an object with its embedded objects, independent of the storage layout.
+     *
+     * @param object of the datastore
+     * @return The document of the object
+     */
+    Document documentOf(@NotNull PersistentObject object) {
+        return SchemaMapper.stamp(object.write(database.getContext().getNitriteMapper()), object.getClass());
+    }
+
+    /**
+     * Replace an object with the state of another replica, e.g. of another device.
+     * The object is added, if it does not exist, and removed, if the document is null.
+     * Training types and movement types are never removed. Must be called in a transaction.
+     *
+     * @param type of the object
+     * @param uuid of the object
+     * @param document of the object on the other replica, null if the object was removed
+     * @throws SportsLibraryException if the object could not be saved
+     */
+    void replaceObject(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid,
+                       @Null Document document) throws SportsLibraryException {
+        PersistentObject localObject = findByUUID(type, uuid);
+        if (document == null) {
+            if (localObject != null && !type.equals(TrainingType.class) && !type.equals(MovementType.class)) {
+                delete(localObject);
+            }
+            return;
+        }
+        PersistentObject object = database.getContext().getNitriteMapper().asObject(document, type);
+        if (localObject == null) {
+            add(object);
+        } else {
+            update(object);
+        }
+    }
+
+    /**
+     * Run an operation with changes of another device in one transaction.
+     * The changes are not recorded in the change journal, so that they are not sent back.
+     *
+     * @param operation to be run
+     * @throws SportsLibraryException if the operation failed or the changes could not be committed
+     * @see SyncEngine
+     */
+    void applyRemoteChanges(@NotNull Operation operation) throws SportsLibraryException {
+        inTransaction(() -> {
+            Thread previousThread = unjournaledThread;
+            unjournaledThread = Thread.currentThread();
+            try {
+                operation.run();
+            } finally {
+                unjournaledThread = previousThread;
+            }
+        });
+    }
+
+    /**
+     * Get a saved state of the synchronization.
+     *
+     * @param key of the state
+     * @return The saved state or null, if the state was not saved
+     * @see SyncEngine
+     */
+    @Null
+    Document findSyncState(@NotNull String key) {
+        if (!isOpen()) {
+            return null;
+        }
+        return database.getCollection(SYNC_COLLECTION).find(Filters.eq("key", key)).firstOrDefault();
+    }
+
+    /**
+     * Save states of the synchronization in one transaction. Every state must contain its key,
+     * the attributes are merged into a saved state with the same key.
+     *
+     * @param states to be saved
+     * @throws SportsLibraryException if the states could not be saved
+     * @see SyncEngine
+     */
+    void saveSyncStates(@NotNull List<Document> states) throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        atomically(() -> {
+            NitriteCollection syncCollection = database.getCollection(SYNC_COLLECTION);
+            if (!syncCollection.hasIndex("key")) {
+                syncCollection.createIndex("key", IndexOptions.indexOptions(IndexType.Unique));
+            }
+            for (Document state : states) {
+                Document document = new Document(state);
+                syncCollection.update(Filters.eq("key", state.get("key")), document,
+                        UpdateOptions.updateOptions(true));
+            }
+        });
+    }
+
+    /**
+     * Get the mapper of the objects and documents of the datastore.
+     *
+     * @return The mapper of the datastore
+     */
+    NitriteMapper getMapper() {
+        return database.getContext().getNitriteMapper();
+    }
+
+    /**
+     * Run an operation in one transaction. The changes of the operation become visible together
+     * after the operation, if the operation fails all changes will be discarded.
+     * The delegate is notified after the transaction. Other threads can not change
+     * the datastore while the operation is running. Transactions can be nested,
+     * a nested transaction is part of the outer transaction. Changes larger than the commit buffer
+     * of the storage profile are written before the commit, they are discarded too, if the operation fails,
+     * but they remain saved, if the process is terminated during the operation.
+     *
+     * @param operation to be run
+     * @throws SportsLibraryException if the operation failed or the changes could not be committed
+     */
+    public void inTransaction(@NotNull Operation operation) throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        if (isInTransaction()) {
+            operation.run();
+            return;
+        }
+        // the pending objects must not be part of the transaction
+        flush();
+        List<Runnable> events = new ArrayList<>();
+        List<Lock> acquiredLocks = lock(Global.PERSISTENT_CLASSES_LIST, true);
+        try {
+            atomically(() -> {
+                transactionEvents = events;
+                transactionThread = Thread.currentThread();
+                try {
+                    operation.run();
+                } finally {
+                    transactionThread = null;
+                    transactionEvents = null;
+                }
+            });
+        } catch (SportsLibraryException exception) {
+            // the changes were discarded
+            events.clear();
+            throw exception;
+        } finally {
+            unlock(acquiredLocks);
+        }
+        for (Runnable event : events) {
+            event.run();
+        }
+    }
+
     /**
      * Add a new object.
      *
@@ -100,12 +826,25 @@ final class DataRepository {
      * @throws SportsLibraryException if an error occurred while adding
      */
     public void add(@NotNull PersistentObject object) throws SportsLibraryException {
+        checkWritable();
         // the concrete type must be specified for each access to a repo
         if (isOpen()) {
-            if (findByUUID(object.getClass(), object.getUUID()) == null) {
-                // insert
-                doActionWithObject(INSERT_ACTION, object);
-                delegate.didObjectAdded(object);
+            WriteBehindQueue queue = activeQueue();
+            if (queue != null) {
+                if (!exists(object.getClass(), object.getUUID())) {
+                    queue.enqueue(INSERT_ACTION, object);
+                }
+                return;
+            }
+            List<Lock> acquiredLocks = lock(Collections.singleton(object.getClass()), true);
+            try {
+                if (!exists(object.getClass(), object.getUUID())) {
+                    // insert
+                    atomically(() -> doActionWithObject(INSERT_ACTION, object));
+                    delegate.didObjectAdded(object);
+                }
+            } finally {
+                unlock(acquiredLocks);
             }
         } else {
             throw new SportsLibraryException("Database not available.");
@@ -119,13 +858,25 @@ final class DataRepository {
      * @throws SportsLibraryException if the object not exist or an error occurred while adding
      */
     public void update(@NotNull PersistentObject object) throws SportsLibraryException {
+        checkWritable();
         // the concrete type must be specified for each access to a repo
         if (isOpen()) {
-            if (findByUUID(object.getClass(), object.getUUID()) != null) {
-                doActionWithObject(UPDATE_ACTION, object);
-                delegate.didObjectUpdated(object);
-            } else {
-                throw new SportsLibraryException("The object must exist before the update.");
+            WriteBehindQueue queue = activeQueue();
+            List<Lock> acquiredLocks = queue == null
+                    ? lock(Collections.singleton(object.getClass()), true) : Collections.emptyList();
+            try {
+                if (exists(object.getClass(), object.getUUID())) {
+                    if (queue != null) {
+                        queue.enqueue(UPDATE_ACTION, object);
+                        return;
+                    }
+                    atomically(() -> doActionWithObject(UPDATE_ACTION, object));
+                    delegate.didObjectUpdated(object);
+                } else {
+                    throw new SportsLibraryException("The object must exist before the update.");
+                }
+            } finally {
+                unlock(acquiredLocks);
             }
         } else {
             throw new SportsLibraryException("Database not available.");
@@ -139,20 +890,237 @@ final class DataRepository {
      * @throws SportsLibraryException if an error occurred while removing
      */
     public void delete(@NotNull PersistentObject object) throws SportsLibraryException {
+        checkWritable();
         // the concrete type must be specified for each access to a repo
         if (isOpen()) {
-            if (findByUUID(object.getClass(), object.getUUID()) != null) {
-                // remove
-                doActionWithObject(REMOVE_ACTION, object);
-                delegate.didObjectRemoved(object);
-            } else {
-                throw new SportsLibraryException("The object was not found in database. Can not delete it.");
+            WriteBehindQueue queue = activeQueue();
+            List<Lock> acquiredLocks = queue == null
+                    ? lock(Collections.singleton(object.getClass()), true) : Collections.emptyList();
+            try {
+                if (exists(object.getClass(), object.getUUID())) {
+                    if (queue != null) {
+                        queue.enqueue(REMOVE_ACTION, object);
+                        return;
+                    }
+                    // remove
+                    atomically(() -> doActionWithObject(REMOVE_ACTION, object));
+                    delegate.didObjectRemoved(object);
+                } else {
+                    throw new SportsLibraryException("The object was not found in database. Can not delete it.");
+                }
+            } finally {
+                unlock(acquiredLocks);
             }
         } else {
             throw new SportsLibraryException("Database not available.");
         }
     }
 
+    /**
+     * Add a collection of new objects. The objects are grouped by their type and
+     * the existence is checked once for each type. Existing objects will be ignored.
+     * Objects without embedded objects are inserted with one operation for each type.
+     * All objects are added in one transaction, if an error occurs no object will be added.
+     * The delegate is notified once with all added objects after the transaction.
+     *
+     * @param objects to be added
+     * @throws SportsLibraryException if an error occurred while adding
+     */
+    public void addAll(@NotNull Collection<? extends PersistentObject> objects) throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        WriteBehindQueue queue = activeQueue();
+        Map<Class<? extends PersistentObject>, List<PersistentObject>> groups = groupByType(objects);
+        List<Lock> acquiredLocks = queue == null ? lock(groups.keySet(), true) : Collections.emptyList();
+        try {
+            List<PersistentObject> addedObjects = new ArrayList<>();
+            Operation operation = () -> {
+                for (Map.Entry<Class<? extends PersistentObject>, List<PersistentObject>> group : groups.entrySet()) {
+                    Class<? extends PersistentObject> type = group.getKey();
+                    Set<UUID> savedUUIDs = findExistingUUIDs(type, group.getValue());
+                    Set<UUID> newUUIDs = new HashSet<>();
+                    List<PersistentObject> newObjects = new ArrayList<>();
+                    for (PersistentObject object : group.getValue()) {
+                        // ignore existing objects and duplicates in the collection
+                        if (!exists(object, savedUUIDs) && newUUIDs.add(object.getUUID())) {
+                            newObjects.add(object);
+                        }
+                    }
+                    if (newObjects.isEmpty()) {
+                        continue;
+                    }
+                    if (queue != null) {
+                        for (PersistentObject object : newObjects) {
+                            queue.enqueue(INSERT_ACTION, object);
+                        }
+                        continue;
+                    }
+                    if (hasEmbeddedObjects(type)) {
+                        for (PersistentObject object : newObjects) {
+                            doActionWithObject(INSERT_ACTION, object);
+                        }
+                    } else {
+                        insertAll(type, newObjects);
+                    }
+                    addedObjects.addAll(newObjects);
+                }
+            };
+            if (queue != null) {
+                operation.run();
+                return;
+            }
+            atomically(operation);
+            if (!addedObjects.isEmpty()) {
+                delegate.didObjectsAdded(addedObjects);
+            }
+        } finally {
+            unlock(acquiredLocks);
+        }
+    }
+
+    /**
+     * Save a collection of existing objects. The objects are grouped by their type and
+     * the existence is checked once for each type, before any object will be saved.
+     * All objects are saved in one transaction, if an error occurs no object will be saved.
+     * The delegate is notified once with all saved objects after the transaction.
+     *
+     * @param objects to be saved
+     * @throws SportsLibraryException if an object not exist or an error occurred while saving
+     */
+    public void updateAll(@NotNull Collection<? extends PersistentObject> objects) throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        WriteBehindQueue queue = activeQueue();
+        Map<Class<? extends PersistentObject>, List<PersistentObject>> groups = groupByType(objects);
+        List<Lock> acquiredLocks = queue == null ? lock(groups.keySet(), true) : Collections.emptyList();
+        try {
+            checkExistence(groups, "The object must exist before the update.");
+            if (queue != null) {
+                enqueueAll(queue, UPDATE_ACTION, groups);
+                return;
+            }
+            List<PersistentObject> updatedObjects = new ArrayList<>();
+            atomically(() -> {
+                for (List<PersistentObject> group : groups.values()) {
+                    for (PersistentObject object : group) {
+                        // the datastore can only update single objects
+                        doActionWithObject(UPDATE_ACTION, object);
+                        updatedObjects.add(object);
+                    }
+                }
+            });
+            if (!updatedObjects.isEmpty()) {
+                delegate.didObjectsUpdated(updatedObjects);
+            }
+        } finally {
+            unlock(acquiredLocks);
+        }
+    }
+
+    /**
+     * Removes a collection of existing objects from the local datastore. The objects are grouped
+     * by their type and the existence is checked once for each type, before any object will be removed.
+     * The objects and their embedded objects are removed with one operation for each type.
+     * All objects are removed in one transaction, if an error occurs no object will be removed.
+     * The delegate is notified once with all removed objects after the transaction.
+     *
+     * @param objects to be removed
+     * @throws SportsLibraryException if an object not exist or an error occurred while removing
+     */
+    public void deleteAll(@NotNull Collection<? extends PersistentObject> objects) throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        WriteBehindQueue queue = activeQueue();
+        Map<Class<? extends PersistentObject>, List<PersistentObject>> groups = groupByType(objects);
+        List<Lock> acquiredLocks = queue == null ? lock(groups.keySet(), true) : Collections.emptyList();
+        try {
+            checkExistence(groups, "The object was not found in database. Can not delete it.");
+            if (queue != null) {
+                enqueueAll(queue, REMOVE_ACTION, groups);
+                return;
+            }
+            List<PersistentObject> removedObjects = new ArrayList<>();
+            atomically(() -> {
+                for (Map.Entry<Class<? extends PersistentObject>, List<PersistentObject>> group : groups.entrySet()) {
+                    Class<? extends PersistentObject> type = group.getKey();
+                    removeEmbeddedObjects(type, group.getValue());
+                    removeAll(type, group.getValue());
+                    removedObjects.addAll(group.getValue());
+                }
+            });
+            if (!removedObjects.isEmpty()) {
+                delegate.didObjectsRemoved(removedObjects);
+            }
+        } finally {
+            unlock(acquiredLocks);
+        }
+    }
+
+    /**
+     * Removes all objects of a type matching the filter from the local datastore.
+     * The objects are removed with one operation, their embedded objects with one operation
+     * for each type, e.g. the locations of the tracks. Pending objects are written before.
+     * The delegate is notified once with all removed objects, the removed tracks are reported
+     * without their locations, so that the locations are not decoded.
+     *
+     * @param fromType of the objects to be removed
+     * @param filter for the objects to be removed
+     * @return The number of removed objects
+     * @throws SportsLibraryException if the objects are embedded in other objects
+     *                                or an error occurred while removing
+     */
+    public int deleteWhere(@NotNull Class<? extends PersistentObject> fromType, @NotNull ObjectFilter filter)
+            throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        if (Global.CASCADING_DELETED_CLASSES.contains(fromType)) {
+            throw new SportsLibraryException("Objects from type " + fromType.getSimpleName()
+                    + " can only be removed with their parent.");
+        }
+        if (activeQueue() != null) {
+            // the pending objects must be removed too
+            flush();
+        }
+        List<Lock> acquiredLocks = lock(Collections.singleton(fromType), true);
+        try {
+            List<PersistentObject> removedObjects = new ArrayList<>();
+            atomically(() -> {
+                // the documents are read without mapping, the locations of the tracks are not decoded
+                NitriteMapper mapper = database.getContext().getNitriteMapper();
+                NitriteCollection collection = database.getRepository(fromType).getDocumentCollection();
+                filter.setNitriteMapper(mapper);
+                for (Document document : collection.find(filter)) {
+                    Document removedDocument = document;
+                    if (fromType.equals(Track.class)) {
+                        removedDocument = new Document(document);
+                        removedDocument.put(LOCATIONS_ATTRIBUTE, new ArrayList<Document>());
+                    }
+                    removedObjects.add(mapper.asObject(SchemaMapper.upgraded(removedDocument, fromType), fromType));
+                }
+                if (removedObjects.isEmpty()) {
+                    return;
+                }
+                removeEmbeddedObjects(fromType, removedObjects);
+                collection.remove(filter);
+                removedObjects.forEach(object -> didWriteObject(REMOVE_ACTION, object, null));
+            });
+            if (!removedObjects.isEmpty()) {
+                delegate.didObjectsRemoved(removedObjects);
+            }
+            return removedObjects.size();
+        } finally {
+            unlock(acquiredLocks);
+        }
+    }
+
     /**
      * Get an object from given type with given UUID.
      *
@@ -164,22 +1132,49 @@ final class DataRepository {
     @Null
     public PersistentObject findByUUID(@NotNull Class<? extends PersistentObject> withType, @NotNull UUID uuid) {
         if (isOpen()) {
-            ObjectRepository<? extends PersistentObject> repository = database.getRepository(withType);
-            Cursor<? extends PersistentObject> cursor;
-            if (withType.getSimpleName().equals("MovementType")) {
-                // movement type has a unique key
-                cursor = repository.find(ObjectFilters.eq("key", uuid.getString()));
-            } else {
-                cursor = repository.find(ObjectFilters.eq("uuid", uuid.getString()));
+            if (writeBehindQueue != null) {
+                if (Global.CASCADING_DELETED_CLASSES.contains(withType)) {
+                    // embedded objects are written with their parent
+                    flushPendingWrites(withType);
+                } else {
+                    // the object is not written yet
+                    WriteBehindQueue.PendingWrite pendingWrite = writeBehindQueue.pendingWriteOf(withType, uuid);
+                    if (pendingWrite != null) {
+                        return pendingWrite.getAction() == REMOVE_ACTION ? null : pendingWrite.getObject();
+                    }
+                }
             }
-            if (cursor.size() == 1 ) {
-                return cursor.firstOrDefault();
+            PersistentObject cachedObject = objectCache.get(withType, uuid);
+            if (cachedObject != null) {
+                return cachedObject;
             }
-            if (cursor.size() > 1) {
-                // very bad
-                if (sportsLibrary.isDebugMode()) {
-                    sportsLibrary.debug("findByUUID has more than one result", cursor.size());
+            List<Lock> acquiredLocks = lock(Collections.singleton(withType), false);
+            try {
+                long generation = objectCache.generationOf(withType);
+                ObjectRepository<? extends PersistentObject> repository = database.getRepository(withType);
+                Cursor<? extends PersistentObject> cursor;
+                if (withType.getSimpleName().equals("MovementType")) {
+                    // movement type has a unique key
+                    cursor = repository.find(ObjectFilters.eq("key", uuid.getString()));
+                } else {
+                    cursor = repository.find(ObjectFilters.eq("uuid", uuid.getString()));
+                }
+                if (cursor.size() == 1 ) {
+                    PersistentObject object = cursor.firstOrDefault();
+                    didLoadObject(object);
+                    if (!object.isSchemaOutdated()) {
+                        objectCache.put(withType, uuid, object, generation);
+                    }
+                    return object;
+                }
+                if (cursor.size() > 1) {
+                    // very bad
+                    if (sportsLibrary.isDebugMode()) {
+                        sportsLibrary.debug("findByUUID has more than one result", cursor.size());
+                    }
                 }
+            } finally {
+                unlock(acquiredLocks);
             }
         }
         return null;
@@ -197,9 +1192,33 @@ final class DataRepository {
     public List<? extends PersistentObject> findAll(Class<? extends PersistentObject> fromType)  {
         List<? extends PersistentObject> results = new ArrayList<>();
         if (isOpen()) {
-            ObjectRepository<? extends PersistentObject> repository = database.getRepository(fromType);
-            Cursor<? extends PersistentObject> cursor = repository.find();
-            return cursor.toList();
+            if (Global.CASCADING_DELETED_CLASSES.contains(fromType)) {
+                // embedded objects are written with their parent
+                flushPendingWrites(fromType);
+            }
+            List<? extends PersistentObject> objects;
+            List<PersistentObject> cachedObjects = objectCache.getAll(fromType);
+            if (cachedObjects == null) {
+                List<Lock> acquiredLocks = lock(Collections.singleton(fromType), false);
+                try {
+                    long generation = objectCache.generationOf(fromType);
+                    ObjectRepository<? extends PersistentObject> repository = database.getRepository(fromType);
+                    Cursor<? extends PersistentObject> cursor = repository.find();
+                    objects = cursor.toList();
+                    objects.forEach(this::didLoadObject);
+                    if (objects.stream().noneMatch(PersistentObject::isSchemaOutdated)) {
+                        objectCache.putAll(fromType, objects, generation);
+                    }
+                } finally {
+                    unlock(acquiredLocks);
+                }
+            } else {
+                objects = cachedObjects;
+            }
+            if (writeBehindQueue != null && writeBehindQueue.hasPendingWrites(fromType)) {
+                return withPendingWrites(fromType, objects);
+            }
+            return objects;
         }
         return results;
     }
@@ -217,155 +1236,605 @@ final class DataRepository {
                                                             Class<? extends PersistentObject> fromType) {
         List<? extends PersistentObject> results = new ArrayList<>();
         if (isOpen()) {
-            ObjectRepository<? extends PersistentObject> repository = database.getRepository(fromType);
-            Cursor<? extends PersistentObject> cursor = repository.find(ObjectFilters.eq(attributeName, value));
-            return  cursor.toList();
+            flushPendingWrites(fromType);
+            List<Lock> acquiredLocks = lock(Collections.singleton(fromType), false);
+            try {
+                ObjectRepository<? extends PersistentObject> repository = database.getRepository(fromType);
+                Cursor<? extends PersistentObject> cursor = repository.find(ObjectFilters.eq(attributeName, value));
+                List<? extends PersistentObject> objects = cursor.toList();
+                objects.forEach(this::didLoadObject);
+                return objects;
+            } finally {
+                unlock(acquiredLocks);
+            }
         }
         return results;
     }
 
     /**
-     * Delete all objects from the database.
+     * Get an iterator over all objects with a given type. The objects are read
+     * from the datastore while iterating, so that the memory usage does not depend
+     * on the number of stored objects.
+     * If the datastore is not open, the iterator is empty.
+     *
+     * @param fromType of objects to iterate
+     * @param <T> type of the objects
+     * @return An iterator over all objects with the given type.
      */
-    public void clearAll() {
-        if (database != null) {
-           for (Class<?> type: Global.PERSISTENT_CLASSES_LIST) {
-               database.getRepository(type).remove(ObjectFilters.ALL);
-           }
+    public <T extends PersistentObject> Iterator<T> iterator(@NotNull Class<T> fromType) {
+        if (isOpen()) {
+            flushPendingWrites(fromType);
+            List<Lock> acquiredLocks = lock(Collections.singleton(fromType), false);
+            try {
+                return withLocations(database.getRepository(fromType).find().iterator());
+            } finally {
+                unlock(acquiredLocks);
+            }
         }
+        return Collections.emptyIterator();
     }
 
     /**
-     * Close the database.
+     * Get a sequential stream of all objects with a given type. The objects are read
+     * from the datastore while the stream is consumed.
+     * If the datastore is not open, the stream is empty.
+     *
+     * @param fromType of objects to stream
+     * @param <T> type of the objects
+     * @return A stream of all objects with the given type.
      */
-    public void close() {
-        if (database != null) {
-            database.close();
+    public <T extends PersistentObject> Stream<T> stream(@NotNull Class<T> fromType) {
+        if (isOpen()) {
+            flushPendingWrites(fromType);
+            Cursor<T> cursor;
+            List<Lock> acquiredLocks = lock(Collections.singleton(fromType), false);
+            try {
+                cursor = database.getRepository(fromType).find();
+            } finally {
+                unlock(acquiredLocks);
+            }
+            Spliterator<T> spliterator = Spliterators.spliterator(withLocations(cursor.iterator()), cursor.size(),
+                    Spliterator.ORDERED | Spliterator.NONNULL);
+            return StreamSupport.stream(spliterator, false);
         }
+        return Stream.empty();
     }
 
-    private void doActionWithObject(int action, PersistentObject object) throws SportsLibraryException {
-        // the concrete type must be specified for each access to a repo
-        try {
-            if (object instanceof User) {
-                ObjectRepository<User> objectRepository = database.getRepository(User.class);
-                switch (action) {
-                    case INSERT_ACTION: objectRepository.insert((User) object); return;
-                    case UPDATE_ACTION: objectRepository.update((User) object); return;
-                    case REMOVE_ACTION: objectRepository.remove((User) object); return;
+    /**
+     * Get a page of objects with a given type, sorted ascending by an attribute.
+     * To get a stable order between the pages, the attribute should be unique, e.g. the uuid.
+     * If the attribute is indexed, only the objects of the page will be read.
+     * If the datastore is not open or the offset is behind the last object, the list is empty.
+     *
+     * @param fromType of objects to get
+     * @param sortAttribute name of the attribute for sorting, if null the uuid is used
+     * @param offset of the first object
+     * @param limit maximum number of objects in the page
+     * @param <T> type of the objects
+     * @return A list with the objects of the page. The list can be empty.
+     */
+    public <T extends PersistentObject> List<T> findPage(@NotNull Class<T> fromType, @Null String sortAttribute,
+                                                         int offset, int limit) {
+        List<T> results = new ArrayList<>();
+        if (isOpen() && offset >= 0 && limit > 0) {
+            flushPendingWrites(fromType);
+            String attribute = sortAttribute == null ? uuidFieldOf(fromType) : sortAttribute;
+            FindOptions findOptions = FindOptions.sort(attribute, SortOrder.Ascending).thenLimit(offset, limit);
+            List<Lock> acquiredLocks = lock(Collections.singleton(fromType), false);
+            try {
+                for (T object : database.getRepository(fromType).find(findOptions)) {
+                    didLoadObject(object);
+                    results.add(object);
                 }
+            } catch (ValidationException exception) {
+                // the offset is behind the last object
+                if (sportsLibrary.isDebugMode()) {
+                    sportsLibrary.debug(exception, "The page is empty.");
+                }
+            } finally {
+                unlock(acquiredLocks);
+            }
+        }
+        return results;
+    }
 
+    /**
+     * Get the objects matching a query. The conditions, the sort order and the page
+     * are passed to the datastore, only the objects of the page will be created.
+     * If the datastore is not open or the offset is behind the last object, the list is empty.
+     *
+     * @param query for the objects
+     * @param <T> type of the objects
+     * @return A list with the objects matching the query. The list can be empty.
+     */
+    public <T extends PersistentObject> List<T> find(@NotNull Query<T> query) {
+        List<T> results = new ArrayList<>();
+        if (isOpen()) {
+            Class<T> fromType = query.getType();
+            flushPendingWrites(fromType);
+            Filter filter = query.getFilter();
+            FindOptions findOptions = query.getFindOptions();
+            List<Lock> acquiredLocks = lock(Collections.singleton(fromType), false);
+            try {
+                // the values of the conditions are compared with the saved values, not with mapped values
+                NitriteCollection collection = database.getRepository(fromType).getDocumentCollection();
+                org.dizitart.no2.Cursor cursor;
+                if (filter == null) {
+                    cursor = findOptions == null ? collection.find() : collection.find(findOptions);
+                } else {
+                    cursor = findOptions == null ? collection.find(filter) : collection.find(filter, findOptions);
+                }
+                NitriteMapper mapper = database.getContext().getNitriteMapper();
+                for (Document document : cursor) {
+                    T object = mapper.asObject(document, fromType);
+                    didLoadObject(object);
+                    results.add(object);
+                }
+            } catch (ValidationException exception) {
+                // the offset is behind the last object
+                if (sportsLibrary.isDebugMode()) {
+                    sportsLibrary.debug(exception, "The page of the query is empty.");
+                }
+            } finally {
+                unlock(acquiredLocks);
             }
-            if (object instanceof Track) {
-                switch (action) {
-                    case INSERT_ACTION: doActionWithTrack(INSERT_ACTION, (Track) object); return;
-                    case UPDATE_ACTION: doActionWithTrack(UPDATE_ACTION, (Track) object); return;
-                    case REMOVE_ACTION: doActionWithTrack(REMOVE_ACTION, (Track) object); return;
+        }
+        return results;
+    }
+
+    /**
+     * Get a summary of all tracks. The summary contains only the scalar values of a track.
+     * The track documents are read without mapping, so that the locations will not be decoded.
+     * If the datastore is not open, the list is empty.
+     *
+     * @return A list with the summary of all tracks. The list can be empty.
+     */
+    public List<TrackSummary> findTrackSummaries() {
+        List<TrackSummary> results = new ArrayList<>();
+        if (isOpen()) {
+            flushPendingWrites(Track.class);
+            List<Lock> acquiredLocks = lock(Collections.singleton(Track.class), false);
+            try {
+                NitriteCollection collection = database.getRepository(Track.class).getDocumentCollection();
+                for (Document document : collection.find()) {
+                    TrackSummary trackSummary = new TrackSummary();
+                    trackSummary.read(database.getContext().getNitriteMapper(),
+                            SchemaMapper.upgraded(document, Track.class));
+                    results.add(trackSummary);
                 }
+            } finally {
+                unlock(acquiredLocks);
             }
-            if (object instanceof TrainingType) {
-                ObjectRepository<TrainingType> objectRepository = database.getRepository(TrainingType.class);
-                switch (action) {
-                    case INSERT_ACTION: objectRepository.insert((TrainingType) object); return;
-                    case UPDATE_ACTION: objectRepository.update((TrainingType) object); return;
-                    default: break;  // training types must be not delete
+        }
+        return results;
+    }
+
+    /**
+     * Delete all objects from the database.
+     */
+    public void clearAll() {
+        if (isReadOnly) {
+            if (sportsLibrary.isDebugMode()) {
+                sportsLibrary.debug("The objects of a read-only datastore can not be deleted.");
+            }
+            return;
+        }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.clear();
+        }
+        objectCache.clear();
+        if (database != null) {
+            List<Lock> acquiredLocks = lock(Global.PERSISTENT_CLASSES_LIST, true);
+            try {
+                atomically(() -> {
+                    for (Class<?> type: Global.PERSISTENT_CLASSES_LIST) {
+                        database.getRepository(type).remove(ObjectFilters.ALL);
+                    }
+                    // the templates must be added again with the next start
+                    database.getCollection(METADATA_COLLECTION).remove(Filters.eq("key", LIBRARY_METADATA_KEY));
+                    // all objects must be pulled again with the next sync
+                    database.getCollection(SYNC_COLLECTION).remove(Filters.ALL);
+                    if (hashTree != null) {
+                        hashTree.clear();
+                    }
+                });
+            } catch (SportsLibraryException exception) {
+                if (sportsLibrary.isDebugMode()) {
+                    sportsLibrary.debug("The objects could not be deleted.", exception);
                 }
+            } finally {
+                unlock(acquiredLocks);
             }
-            if (object instanceof Training) {
-                switch (action) {
-                    case INSERT_ACTION: doActionWithTraining(INSERT_ACTION, (Training) object); return;
-                    case UPDATE_ACTION: doActionWithTraining(UPDATE_ACTION, (Training) object); return;
-                    case REMOVE_ACTION: doActionWithTraining(REMOVE_ACTION, (Training) object); return;
+        }
+    }
+
+    /**
+     * Write a snapshot of all objects to a file. Pending objects are written before.
+     * The objects can be read while writing the snapshot, changes wait until the snapshot is complete.
+     *
+     * @param file of the snapshot, an existing file will be replaced
+     * @return The number of documents in the snapshot
+     * @throws SportsLibraryException if the datastore is not open or the snapshot could not be written
+     * @see SnapshotFile
+     */
+    public long backup(@NotNull File file) throws SportsLibraryException {
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        flush();
+        List<String> collectionNames = new ArrayList<>();
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            collectionNames.add(type.getName());
+        }
+        collectionNames.add(METADATA_COLLECTION);
+        // a consistent view of all collections
+        List<Lock> acquiredLocks = lock(Global.PERSISTENT_CLASSES_LIST, false);
+        try {
+            return SnapshotFile.write(file, collectionNames, collectionName -> collectionOf(collectionName).find());
+        } catch (IOException | RuntimeException exception) {
+            throw new SportsLibraryException(exception);
+        } finally {
+            unlock(acquiredLocks);
+        }
+    }
+
+    /**
+     * Replace all objects with the objects of a snapshot in one transaction.
+     * The snapshot is verified before. Pending objects are discarded.
+     * The delegate is not notified, objects read before the restore must be read again.
+     *
+     * @param file of the snapshot
+     * @return The number of restored documents
+     * @throws SportsLibraryException if the datastore is not open, the snapshot is damaged
+     *                                or the objects could not be restored
+     */
+    public long restore(@NotNull File file) throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        try {
+            SnapshotFile.verify(file);
+        } catch (IOException exception) {
+            throw new SportsLibraryException(exception);
+        }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.clear();
+        }
+        long[] numberOfDocuments = new long[1];
+        boolean wasHashTreeEnabled = isHashTreeEnabled;
+        List<Lock> acquiredLocks = lock(Global.PERSISTENT_CLASSES_LIST, true);
+        try {
+            atomically(() -> {
+                for (Class<?> type: Global.PERSISTENT_CLASSES_LIST) {
+                    database.getRepository(type).remove(ObjectFilters.ALL);
                 }
+                database.getCollection(METADATA_COLLECTION).remove(Filters.ALL);
+                if (hashTree != null) {
+                    // the tree is built again with the restored objects
+                    hashTree.clear();
+                    hashTree.setComplete(false);
+                    isHashTreeEnabled = false;
+                }
+                try {
+                    numberOfDocuments[0] = SnapshotFile.read(file, (collectionName, documents) ->
+                            collectionOf(collectionName).insert(documents.toArray(new Document[0])));
+                } catch (IOException exception) {
+                    // the tree is rolled back with the objects
+                    isHashTreeEnabled = wasHashTreeEnabled;
+                    throw new SportsLibraryException(exception);
+                }
+            });
+            objectCache.clear();
+            // the snapshot can have another layout for the locations
+            LocationStorage savedLocationStorage = loadLocationStorage();
+            if (savedLocationStorage == null) {
+                migrateLocationStorage(Global.DEFAULT_LOCATION_STORAGE);
+            } else {
+                locationStorage = savedLocationStorage;
+            }
+            if (wasHashTreeEnabled) {
+                rebuildHashTree();
             }
-            if (object instanceof MovementType) {
-                ObjectRepository<MovementType> objectRepository = database.getRepository(MovementType.class);
-                switch (action) {
-                    case INSERT_ACTION: objectRepository.insert((MovementType) object); return;
-                    case UPDATE_ACTION: objectRepository.update((MovementType) object); return;
-                    default: break;  // movement types must be not delete
+        } finally {
+            objectCache.clear();
+            unlock(acquiredLocks);
+        }
+        return numberOfDocuments[0];
+    }
+
+    /**
+     * Upgrade the saved documents with an older schema to the current schema of their type.
+     * The documents are upgraded in batches, every batch in its own transaction,
+     * so that other threads can read and write the objects between the batches.
+     * Documents with an older schema are also upgraded while reading and written with the next change.
+     *
+     * @return The number of upgraded documents
+     * @throws SportsLibraryException if the datastore is not open or the documents could not be upgraded
+     * @see Global#SCHEMA_UPGRADES
+     */
+    public long upgradeSchema() throws SportsLibraryException {
+        checkWritable();
+        if (!isOpen()) {
+            throw new SportsLibraryException("Database not available.");
+        }
+        flush();
+        long numberOfDocuments = 0;
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            if (SchemaMapper.currentVersionOf(type) == 0) {
+                continue;
+            }
+            NitriteCollection collection = database.getRepository(type).getDocumentCollection();
+            List<NitriteId> ids = new ArrayList<>();
+            List<Lock> acquiredLocks = lock(Collections.singleton(type), false);
+            try {
+                for (Document document : collection.find()) {
+                    if (SchemaMapper.isOutdated(document, type)) {
+                        ids.add(document.getId());
+                    }
                 }
+            } finally {
+                unlock(acquiredLocks);
             }
-            if (object instanceof RunningPlan) {
-                switch (action) {
-                    case INSERT_ACTION: doActionWithRunningPlan(INSERT_ACTION, (RunningPlan) object); return;
-                    case UPDATE_ACTION: doActionWithRunningPlan(UPDATE_ACTION, (RunningPlan) object); return;
-                    case REMOVE_ACTION: doActionWithRunningPlan(REMOVE_ACTION, (RunningPlan) object); return;
+            for (int start = 0; start < ids.size(); start += Global.SCHEMA_MIGRATION_BATCH_SIZE) {
+                List<NitriteId> batch = ids.subList(start,
+                        Math.min(start + Global.SCHEMA_MIGRATION_BATCH_SIZE, ids.size()));
+                long[] numberOfUpgradedDocuments = new long[1];
+                acquiredLocks = lock(Collections.singleton(type), true);
+                try {
+                    atomically(() -> {
+                        for (NitriteId id : batch) {
+                            Document document = collection.getById(id);
+                            // the document can be changed or removed since the ids were collected
+                            if (document != null && SchemaMapper.isOutdated(document, type)) {
+                                Document upgradedDocument = SchemaMapper.upgraded(document, type);
+                                Document changes = new Document();
+                                removeOutdatedFields(document, upgradedDocument, changes);
+                                for (Map.Entry<String, Object> field : upgradedDocument.entrySet()) {
+                                    if (!field.getKey().startsWith("_")) {
+                                        changes.put(field.getKey(), field.getValue());
+                                    }
+                                }
+                                collection.update(Filters.eq(Constants.DOC_ID, id.getIdValue()), changes);
+                                numberOfUpgradedDocuments[0]++;
+                            }
+                        }
+                    });
+                } finally {
+                    unlock(acquiredLocks);
                 }
+                numberOfDocuments += numberOfUpgradedDocuments[0];
             }
-            throw new SportsLibraryException("Unsupported direct datastore operations.");
+        }
+        return numberOfDocuments;
+    }
+
+    /**
+     * Close the database. The database is closed, even if pending objects could not be written.
+     *
+     * @throws SportsLibraryException if an error occurred while writing the pending objects
+     */
+    public void close() throws SportsLibraryException {
+        try {
+            disableWriteBehind();
+        } finally {
+            if (compactionScheduler != null) {
+                compactionScheduler.close();
+            }
+            databaseManager.close();
+        }
+    }
+
+    private void doActionWithObject(int action, PersistentObject object) throws SportsLibraryException {
+        try {
+            // the diff is determined with the saved state before the write
+            Document diff = isChangeJournalEnabled && isChangeDiffRecorded ? diffOf(action, object) : null;
+            writeObject(action, object);
+            didWriteObject(action, object, diff);
+            markSaved(object, action != REMOVE_ACTION);
         } catch (Exception exception) {
+            // the object can be partially written
+            objectCache.invalidate(object.getClass(), object.getUUID());
             String errorMessage = "Operation "+ action +" with the object from type "
                     + object.getClass().getSimpleName()
                     +" and with id " + object.getUUID() + " failed.";
             if (sportsLibrary.isDebugMode()) {
                 sportsLibrary.debug(errorMessage, exception);
             }
-            throw new SportsLibraryException(exception);
+            throw new SportsLibraryException(exception);
+        }
+    }
+
+    // record the change in the change journal and in the hash tree, in the transaction of the change
+    private void didWriteObject(int action, @NotNull PersistentObject object, @Null Document diff) {
+        if (isChangeJournalEnabled && changeJournal != null && unjournaledThread != Thread.currentThread()) {
+            changeJournal.append(operationOf(action), object, diff);
+        }
+        if (isHashTreeEnabled && hashTree != null && !Global.CASCADING_DELETED_CLASSES.contains(object.getClass())) {
+            hashTree.update(HashTree.keyOf(object.getClass(), object.getUUID()),
+                    action == REMOVE_ACTION ? null : documentOf(object));
+        }
+    }
+
+    // the changed attributes of an update or all attributes of an insert
+    @Null
+    private Document diffOf(int action, @NotNull PersistentObject object) {
+        if (action == REMOVE_ACTION) {
+            return null;
+        }
+        Document document;
+        if (object instanceof Track && locationStorage == LocationStorage.SEPARATE) {
+            // the locations are not saved with the track
+            document = trackDocumentOf((Track) object);
+        } else {
+            document = documentOf(object);
+        }
+        Document diff = new Document();
+        for (String field : object.getChangedFields(document)) {
+            if (!field.startsWith("_")) {
+                diff.put(field, document.get(field));
+            }
+        }
+        return diff;
+    }
+
+    private ChangeRecord.Operation operationOf(int action) {
+        switch (action) {
+            case INSERT_ACTION: return ChangeRecord.Operation.INSERT;
+            case UPDATE_ACTION: return ChangeRecord.Operation.UPDATE;
+            default: return ChangeRecord.Operation.REMOVE;
+        }
+    }
+
+    private void writeObject(int action, PersistentObject object) throws SportsLibraryException {
+        // the concrete type must be specified for each access to a repo
+        NitriteMapper mapper = database.getContext().getNitriteMapper();
+        if (object instanceof User) {
+            ObjectRepository<User> objectRepository = database.getRepository(User.class);
+            switch (action) {
+                case INSERT_ACTION: objectRepository.insert((User) object); return;
+                case UPDATE_ACTION: updateChanges(objectRepository.getDocumentCollection(), object,
+                        object.write(mapper)); return;
+                case REMOVE_ACTION: objectRepository.remove((User) object); return;
+            }
+
+        }
+        if (object instanceof Track) {
+            switch (action) {
+                case INSERT_ACTION: doActionWithTrack(INSERT_ACTION, (Track) object); return;
+                case UPDATE_ACTION: doActionWithTrack(UPDATE_ACTION, (Track) object); return;
+                case REMOVE_ACTION: doActionWithTrack(REMOVE_ACTION, (Track) object); return;
+            }
+        }
+        if (object instanceof TrainingType) {
+            ObjectRepository<TrainingType> objectRepository = database.getRepository(TrainingType.class);
+            switch (action) {
+                case INSERT_ACTION: objectRepository.insert((TrainingType) object); return;
+                case UPDATE_ACTION: updateChanges(objectRepository.getDocumentCollection(), object,
+                        object.write(mapper)); return;
+                default: break;  // training types must be not delete
+            }
+        }
+        if (object instanceof Training) {
+            switch (action) {
+                case INSERT_ACTION: doActionWithTraining(INSERT_ACTION, (Training) object); return;
+                case UPDATE_ACTION: doActionWithTraining(UPDATE_ACTION, (Training) object); return;
+                case REMOVE_ACTION: doActionWithTraining(REMOVE_ACTION, (Training) object); return;
+            }
+        }
+        if (object instanceof MovementType) {
+            ObjectRepository<MovementType> objectRepository = database.getRepository(MovementType.class);
+            switch (action) {
+                case INSERT_ACTION: objectRepository.insert((MovementType) object); return;
+                case UPDATE_ACTION: updateChanges(objectRepository.getDocumentCollection(), object,
+                        object.write(mapper)); return;
+                default: break;  // movement types must be not delete
+            }
+        }
+        if (object instanceof RunningPlan) {
+            switch (action) {
+                case INSERT_ACTION: doActionWithRunningPlan(INSERT_ACTION, (RunningPlan) object); return;
+                case UPDATE_ACTION: doActionWithRunningPlan(UPDATE_ACTION, (RunningPlan) object); return;
+                case REMOVE_ACTION: doActionWithRunningPlan(REMOVE_ACTION, (RunningPlan) object); return;
+            }
         }
+        throw new SportsLibraryException("Unsupported direct datastore operations.");
     }
 
     // handle a track with embedded locations
+    // depending on the layout, the locations are stored only in the track
+    // or only as own objects with a reference to the track
     private void doActionWithTrack(int action, @NotNull Track track) throws SportsLibraryException {
         // create or get the repositories
         ObjectRepository<Track> trackRepository = database.getRepository(Track.class);
-        ObjectRepository<LocationData> locationsRepository = database.getRepository(LocationData.class);
+        if (locationStorage == LocationStorage.EMBEDDED) {
+            switch (action) {
+                case INSERT_ACTION: trackRepository.insert(track); return;
+                case UPDATE_ACTION:
+                    updateChanges(trackRepository.getDocumentCollection(), track,
+                            track.write(database.getContext().getNitriteMapper()));
+                    return;
+                case REMOVE_ACTION: trackRepository.remove(track); return;
+            }
+        }
+        NitriteCollection trackCollection = trackRepository.getDocumentCollection();
+        NitriteCollection locationCollection = database.getRepository(LocationData.class).getDocumentCollection();
+        String trackUUID = track.getUUID().getString();
         List<LocationData> locationDataList = track.getLocations();
         try {
             switch (action) {
                 case INSERT_ACTION:
-                    // rollback on error
-                    List<UUID> locationUUIDs = new ArrayList<>();
-                    // add locationData
-                    for (LocationData locationData : locationDataList) {
-                        UUID locationUUID = locationData.getUUID();
-                        if (findByUUID(Track.class, locationUUID) == null) {
-                            // insert
-                            locationsRepository.insert(locationData);
-                            // save for rollback
-                            locationUUIDs.add(locationUUID);
-                        } else {
-                            // existing locationData cannot be added to a new track
-                            // rollback
-                            rollback(LocationData.class, locationUUIDs);
-                            locationUUIDs.clear();
-                            String errorMessage = "LocationData data of new track already exist in the database.";
-                            if (sportsLibrary.isDebugMode()) {
-                                sportsLibrary.debug(errorMessage);
-                            }
-                            throw new SportsLibraryException(errorMessage);
+                    // existing locationData cannot be added to a new track, the locations of a new track
+                    // are checked with one lookup of the track, locations of other tracks are rejected
+                    // by the unique index of the uuid and the transaction is rolled back
+                    boolean hasExistingLocations = locationCollection.isIndexing(UUID_ATTRIBUTE)
+                            ? !findExistingUUIDs(LocationData.class, locationDataList).isEmpty()
+                            : locationCollection.find(Filters.eq(TRACK_REFERENCE_ATTRIBUTE, trackUUID))
+                                    .firstOrDefault() != null;
+                    if (hasExistingLocations) {
+                        String errorMessage = "LocationData data of new track already exist in the database.";
+                        if (sportsLibrary.isDebugMode()) {
+                            sportsLibrary.debug(errorMessage);
                         }
+                        throw new SportsLibraryException(errorMessage);
                     }
+                    // add all locationData at once, the transaction is rolled back on error
+                    insertLocations(locationCollection, trackUUID, locationDataList);
                     // add the track
-                    trackRepository.insert(track);
+                    trackCollection.insert(trackDocumentOf(track));
                     return;
 
                 case UPDATE_ACTION:
-                    // update locationData
+                    // the location documents are not touched, e.g. if only the name of the track was changed
+                    if (!hasChangedLocations(track)) {
+                        updateChanges(trackCollection, track, trackDocumentOf(track));
+                        return;
+                    }
+                    // locations loaded or saved with the track exist in the database
+                    List<LocationData> unknownLocations = new ArrayList<>();
                     for (LocationData locationData : locationDataList) {
-                        if (findByUUID(Track.class, locationData.getUUID()) == null) {
-                            // insert a new locationData in the list
-                            locationsRepository.insert(locationData);
+                        if (!isSavedWithTrack(locationData, trackUUID)) {
+                            unknownLocations.add(locationData);
+                        }
+                    }
+                    if (!unknownLocations.isEmpty() || !hasSavedLocations(track)) {
+                        // remove the locationData no longer contained in the track
+                        Object[] locationUUIDs = locationDataList.stream()
+                                .map(locationData -> locationData.getUUID().getString()).toArray();
+                        locationCollection.remove(Filters.and(Filters.eq(TRACK_REFERENCE_ATTRIBUTE, trackUUID),
+                                Filters.notIn(UUID_ATTRIBUTE, locationUUIDs)));
+                    }
+                    // insert new locationData in one batch, update only the changed
+                    Set<UUID> existingLocationUUIDs = findExistingUUIDs(LocationData.class, unknownLocations);
+                    List<Document> addedLocationDocuments = new ArrayList<>();
+                    for (int position = 0; position < locationDataList.size(); position++) {
+                        LocationData locationData = locationDataList.get(position);
+                        if (isSavedUnchanged(locationData, trackUUID, position)) {
+                            continue;
+                        }
+                        Document locationDocument = locationDocumentOf(trackUUID, locationData, position);
+                        if (isSavedWithTrack(locationData, trackUUID)
+                                || existingLocationUUIDs.contains(locationData.getUUID())) {
+                            updateChanges(locationCollection, locationData, locationDocument);
                         } else {
-                            // update
-                            locationsRepository.update(locationData);
+                            addedLocationDocuments.add(locationDocument);
                         }
                     }
-                    // update the track
-                    trackRepository.update(track);
+                    if (!addedLocationDocuments.isEmpty()) {
+                        locationCollection.insert(addedLocationDocuments.toArray(new Document[0]));
+                    }
+                    // update the changed fields of the track
+                    updateChanges(trackCollection, track, trackDocumentOf(track));
                     return;
 
                 case REMOVE_ACTION:
-                    // remove locationData
-                    for (LocationData locationData : locationDataList) {
-                        if (findByUUID(LocationData.class, locationData.getUUID()) != null) {
-                            // remove the locationData
-                            locationsRepository.remove(locationData);
-                        }
-                    }
+                    // remove all locationData of the track at once
+                    removeEmbeddedObjects(Track.class, Collections.singletonList(track));
                     // remove the track
                     trackRepository.remove(track);
             }
+        } catch (SportsLibraryException exception) {
+            throw exception;
         } catch (Exception exception) {
             throw new SportsLibraryException(exception);
         }
@@ -412,8 +1881,9 @@ final class DataRepository {
                             throw new SportsLibraryException("The track of the training must be existed before inserting.");
                         }
                     }
-                    // update the training
-                    trainingRepository.update(training);
+                    // update the changed fields of the training
+                    updateChanges(trainingRepository.getDocumentCollection(), training,
+                            training.write(database.getContext().getNitriteMapper()));
                     return;
 
                 case REMOVE_ACTION:
@@ -439,10 +1909,7 @@ final class DataRepository {
         try {
             switch (action) {
                 case INSERT_ACTION:
-                    // rollback on error
-                    List<UUID> runningEntryUUIDs = new ArrayList<>();
-                    List<UUID> runningUnitUUIDs = new ArrayList<>();
-                    List<UUID> movementTypeUUIDs = new ArrayList<>();
+                    // the transaction is rolled back on error
                     // add running plan entries
                     for (RunningPlanEntry entry : entries) {
                         UUID entryUUID = entry.getUUID();
@@ -454,17 +1921,8 @@ final class DataRepository {
                                 if (findByUUID(RunningUnit.class, unitUUID) == null) {
                                     // insert the unit
                                     runningUnitRepository.insert(unit);
-                                    // save for rollback
-                                    runningUnitUUIDs.add(unitUUID);
                                 } else {
                                     // error - running plan contains an existing unit
-                                    // rollback
-                                    rollback(RunningPlanEntry.class, runningEntryUUIDs);
-                                    rollback(RunningUnit.class, runningUnitUUIDs);
-                                    rollback(MovementType.class, movementTypeUUIDs);
-                                    runningEntryUUIDs.clear();
-                                    runningUnitUUIDs.clear();
-                                    movementTypeUUIDs.clear();
                                     String errorMessage = "The new running plan contains existing units.";
                                     if (sportsLibrary.isDebugMode()) {
                                         sportsLibrary.debug(errorMessage);
@@ -477,20 +1935,13 @@ final class DataRepository {
                                 UUID uuid = movementType.getUUID();
                                 if (findByUUID(MovementType.class, uuid) == null) {
                                     movementTypeRepository.insert(movementType);
-                                    // save for rollback
-                                    movementTypeUUIDs.add(uuid);
+                                    objectCache.invalidate(MovementType.class, movementType.getUUID());
                                 }
                             }
                             // insert the entry
                             runningPlanEntryRepository.insert(entry);
-                            // save for rollback
-                            runningEntryUUIDs.add(entryUUID);
                         } else {
                             // error - running plan contains an existing entry
-                            // rollback
-                            rollback(RunningPlanEntry.class, runningEntryUUIDs);
-                            rollback(RunningUnit.class, runningUnitUUIDs);
-                            rollback(MovementType.class, movementTypeUUIDs);
                             String errorMessage = "The new running plan contains existing entries.";
                             if (sportsLibrary.isDebugMode()) {
                                 sportsLibrary.debug(errorMessage);
@@ -503,9 +1954,10 @@ final class DataRepository {
                     return;
 
                 case UPDATE_ACTION:
-                    // add or update running plan entries
+                    // add or update running plan entries, unchanged entries and units are not written
+                    NitriteMapper mapper = database.getContext().getNitriteMapper();
                     for (RunningPlanEntry entry : entries) {
-                        if (findByUUID(RunningPlanEntry.class, entry.getUUID()) == null) {
+                        if (!isSaved(entry)) {
                             // insert the new entry and the units
                             List<RunningUnit> units = entry.getRunningUnits();
                             for (RunningUnit unit : units) {
@@ -513,6 +1965,7 @@ final class DataRepository {
                                 MovementType movementType = unit.getMovementType();
                                 if (findByUUID(MovementType.class, movementType.getUUID()) == null) {
                                     movementTypeRepository.insert(movementType);
+                                    objectCache.invalidate(MovementType.class, movementType.getUUID());
                                 }
                                 // insert the new unit
                                 runningUnitRepository.insert(unit);
@@ -521,45 +1974,35 @@ final class DataRepository {
                             runningPlanEntryRepository.insert(entry);
                         } else {
                             // update the entry and insert or update the units
-                            runningPlanEntryRepository.update(entry);
+                            updateChanges(runningPlanEntryRepository.getDocumentCollection(), entry,
+                                    entry.write(mapper));
                             List<RunningUnit> units = entry.getRunningUnits();
                             for (RunningUnit unit : units) {
                                 // insert a new movement type
                                 MovementType movementType = unit.getMovementType();
                                 if (findByUUID(MovementType.class, movementType.getUUID()) == null) {
                                     movementTypeRepository.insert(movementType);
+                                    objectCache.invalidate(MovementType.class, movementType.getUUID());
                                 }
-                                if (findByUUID(RunningUnit.class, unit.getUUID()) == null) {
+                                if (!isSaved(unit)) {
                                     // insert the unit
                                     runningUnitRepository.insert(unit);
                                 } else {
                                     // update the unit
-                                    runningUnitRepository.update(unit);
+                                    updateChanges(runningUnitRepository.getDocumentCollection(), unit,
+                                            unit.write(mapper));
                                 }
                             }
                         }
                     }
-                    // update the running plan
-                    runningPlanRepository.update(runningPlan);
+                    // update the changed fields of the running plan
+                    updateChanges(runningPlanRepository.getDocumentCollection(), runningPlan,
+                            runningPlan.write(mapper));
                     return;
 
                 case REMOVE_ACTION:
-                    // add or update running plan entries
-                    for (RunningPlanEntry entry : entries) {
-                        if (findByUUID(RunningPlanEntry.class, entry.getUUID()) != null) {
-                            // insert the units
-                            List<RunningUnit> units = entry.getRunningUnits();
-                            for (RunningUnit unit : units) {
-                                if (findByUUID(RunningUnit.class, unit.getUUID()) != null) {
-                                    // remove the unit
-                                    // movement type are not deleted
-                                    runningUnitRepository.remove(unit);
-                                }
-                            }
-                            // remove the entry
-                            runningPlanEntryRepository.remove(entry);
-                        }
-                    }
+                    // remove all entries and units at once, movement type are not deleted
+                    removeEmbeddedObjects(RunningPlan.class, Collections.singletonList(runningPlan));
                     // remove the running plan
                     runningPlanRepository.remove(runningPlan);
             }
@@ -568,26 +2011,724 @@ final class DataRepository {
         }
     }
 
-    // rollback
-    private void rollback(@NotNull Class<? extends PersistentObject> type, @NotNull List<UUID> objectUUIDs) {
-        ObjectRepository<? extends PersistentObject> repository = database.getRepository(type);
+    // group the objects by their concrete type, the order of the objects is preserved
+    private Map<Class<? extends PersistentObject>, List<PersistentObject>> groupByType(
+            @NotNull Collection<? extends PersistentObject> objects) {
+        Map<Class<? extends PersistentObject>, List<PersistentObject>> groups = new LinkedHashMap<>();
+        for (PersistentObject object : objects) {
+            groups.computeIfAbsent(object.getClass(), type -> new ArrayList<>()).add(object);
+        }
+        return groups;
+    }
+
+    // all objects must exist in the datastore
+    private void checkExistence(@NotNull Map<Class<? extends PersistentObject>, List<PersistentObject>> groups,
+                                @NotNull String errorMessage) throws SportsLibraryException {
+        for (Map.Entry<Class<? extends PersistentObject>, List<PersistentObject>> group : groups.entrySet()) {
+            Set<UUID> savedUUIDs = findExistingUUIDs(group.getKey(), group.getValue());
+            for (PersistentObject object : group.getValue()) {
+                if (!exists(object, savedUUIDs)) {
+                    throw new SportsLibraryException(errorMessage);
+                }
+            }
+        }
+    }
+
+    // get the uuids of all given objects that exist in the datastore with one query,
+    // the documents are not mapped to objects
+    private Set<UUID> findExistingUUIDs(@NotNull Class<? extends PersistentObject> type,
+                                        @NotNull Collection<? extends PersistentObject> objects) {
+        Set<UUID> existingUUIDs = new HashSet<>();
+        if (objects.isEmpty()) {
+            return existingUUIDs;
+        }
+        String uuidField = uuidFieldOf(type);
+        Object[] uuids = objects.stream().map(object -> object.getUUID().getString()).toArray();
+        NitriteCollection collection = database.getRepository(type).getDocumentCollection();
+        for (Document document : collection.find(Filters.in(uuidField, uuids))) {
+            existingUUIDs.add(new UUID((String) document.get(uuidField)));
+        }
+        return existingUUIDs;
+    }
+
+    // insert all objects from the same type with one operation
+    @SuppressWarnings("unchecked")
+    private <T extends PersistentObject> void insertAll(@NotNull Class<T> type,
+                                                        @NotNull List<PersistentObject> objects) throws SportsLibraryException {
+        try {
+            T[] objectsArray = (T[]) Array.newInstance(type, objects.size());
+            for (int i = 0; i < objects.size(); i++) {
+                objectsArray[i] = type.cast(objects.get(i));
+            }
+            List<Document> diffs = new ArrayList<>();
+            for (PersistentObject object : objects) {
+                diffs.add(isChangeJournalEnabled && isChangeDiffRecorded ? diffOf(INSERT_ACTION, object) : null);
+            }
+            database.getRepository(type).insert(objectsArray);
+            for (int i = 0; i < objects.size(); i++) {
+                didWriteObject(INSERT_ACTION, objects.get(i), diffs.get(i));
+            }
+            objects.forEach(object -> markSaved(object, true));
+        } catch (Exception exception) {
+            String errorMessage = "Insert of " + objects.size() + " objects from type "
+                    + type.getSimpleName() + " failed.";
+            if (sportsLibrary.isDebugMode()) {
+                sportsLibrary.debug(errorMessage, exception);
+            }
+            throw new SportsLibraryException(exception);
+        }
+    }
+
+    // remove all objects from the same type with one operation
+    private void removeAll(@NotNull Class<? extends PersistentObject> type,
+                           @NotNull List<PersistentObject> objects) throws SportsLibraryException {
         try {
-            for (UUID uuid : objectUUIDs) {
-                // delete all objects with given uuid
-                if (type.getSimpleName().equals("MovementType")) {
-                    // movement type has a unique key
-                    repository.remove(ObjectFilters.eq("key", uuid.getString()));
-                } else if (type.getSimpleName().equals("TrainingType")) {
-                    // training type has a unique name
-                    repository.remove(ObjectFilters.eq("name", uuid.getString()));
-                } else {
-                    repository.remove(ObjectFilters.eq("uuid", uuid.getString()));
+            Object[] uuids = objects.stream().map(object -> object.getUUID().getString()).toArray();
+            database.getRepository(type).remove(ObjectFilters.in(uuidFieldOf(type), uuids));
+            objects.forEach(object -> didWriteObject(REMOVE_ACTION, object, null));
+            objects.forEach(object -> markSaved(object, false));
+        } catch (Exception exception) {
+            String errorMessage = "Remove of " + objects.size() + " objects from type "
+                    + type.getSimpleName() + " failed.";
+            if (sportsLibrary.isDebugMode()) {
+                sportsLibrary.debug(errorMessage, exception);
+            }
+            throw new SportsLibraryException(exception);
+        }
+    }
+
+    // remove the embedded objects of the parents with one operation for each type,
+    // the separately stored locations are found by the reference to their track
+    private void removeEmbeddedObjects(@NotNull Class<? extends PersistentObject> type,
+                                       @NotNull List<? extends PersistentObject> parents) {
+        if (parents.isEmpty()) {
+            return;
+        }
+        if (type.equals(Track.class) && locationStorage == LocationStorage.SEPARATE) {
+            // the locations of each track are found with one lookup of the index,
+            // an in filter would compare every key of the index
+            NitriteCollection locationCollection = database.getRepository(LocationData.class).getDocumentCollection();
+            for (PersistentObject parent : parents) {
+                locationCollection.remove(Filters.eq(TRACK_REFERENCE_ATTRIBUTE, parent.getUUID().getString()));
+            }
+        }
+        if (type.equals(RunningPlan.class)) {
+            List<String> entryUUIDs = new ArrayList<>();
+            List<String> unitUUIDs = new ArrayList<>();
+            for (PersistentObject parent : parents) {
+                for (RunningPlanEntry entry : ((RunningPlan) parent).getEntries()) {
+                    entryUUIDs.add(entry.getUUID().getString());
+                    for (RunningUnit unit : entry.getRunningUnits()) {
+                        unitUUIDs.add(unit.getUUID().getString());
+                    }
+                }
+            }
+            if (!unitUUIDs.isEmpty()) {
+                database.getRepository(RunningUnit.class).remove(ObjectFilters.in(UUID_ATTRIBUTE, unitUUIDs.toArray()));
+            }
+            if (!entryUUIDs.isEmpty()) {
+                database.getRepository(RunningPlanEntry.class)
+                        .remove(ObjectFilters.in(UUID_ATTRIBUTE, entryUUIDs.toArray()));
+            }
+        }
+    }
+
+    // write only the changed fields of an existing object, unchanged objects are not written,
+    // objects loaded from a document with an older schema are written completely
+    private void updateChanges(@NotNull NitriteCollection collection, @NotNull PersistentObject object,
+                               @NotNull Document document) {
+        SchemaMapper.stamp(document, object.getClass());
+        Set<String> changedFields = object.getChangedFields(document);
+        if (changedFields.isEmpty()) {
+            return;
+        }
+        Filter filter = Filters.eq(uuidFieldOf(object.getClass()), object.getUUID().getString());
+        Document changes = new Document();
+        if (object.isSchemaOutdated()) {
+            Document savedDocument = collection.find(filter).firstOrDefault();
+            if (savedDocument != null) {
+                removeOutdatedFields(savedDocument, document, changes);
+            }
+        }
+        for (String field : changedFields) {
+            // the datastore merges the fields into the saved document
+            changes.put(field, document.get(field));
+        }
+        collection.update(filter, changes);
+        object.setSchemaOutdated(false);
+    }
+
+    // the fields removed by a schema upgrade are set to null, because an update merges the documents
+    private void removeOutdatedFields(@NotNull Document savedDocument, @NotNull Document upgradedDocument,
+                                      @NotNull Document changes) {
+        for (String field : savedDocument.keySet()) {
+            if (!field.startsWith("_") && !upgradedDocument.containsKey(field)) {
+                changes.put(field, null);
+            }
+        }
+    }
+
+    // remember the saved state of an object and its embedded objects, to write only the changes later
+    private void markSaved(@NotNull PersistentObject object, boolean isSaved) {
+        if (commitLock.isHeldByCurrentThread()) {
+            uncommittedObjects.add(object);
+        }
+        NitriteMapper mapper = database.getContext().getNitriteMapper();
+        if (object instanceof Track && locationStorage == LocationStorage.SEPARATE) {
+            Track track = (Track) object;
+            String trackUUID = track.getUUID().getString();
+            List<LocationData> locationDataList = track.getLocations();
+            for (int position = 0; position < locationDataList.size(); position++) {
+                LocationData locationData = locationDataList.get(position);
+                if (isSaved && isSavedUnchanged(locationData, trackUUID, position)) {
+                    // the saved document is still valid
+                    continue;
+                }
+                locationData.setSavedDocument(isSaved && !locationData.isSchemaOutdated()
+                        ? locationDocumentOf(trackUUID, locationData, position) : null);
+            }
+            track.setSavedDocument(isSaved && !track.isSchemaOutdated() ? trackDocumentOf(track) : null);
+            return;
+        }
+        if (object instanceof RunningPlan) {
+            for (RunningPlanEntry entry : ((RunningPlan) object).getEntries()) {
+                markSaved(entry, isSaved);
+            }
+        }
+        if (object instanceof RunningPlanEntry) {
+            for (RunningUnit unit : ((RunningPlanEntry) object).getRunningUnits()) {
+                markSaved(unit, isSaved);
+            }
+        }
+        // an object with an older schema is written completely with the next update
+        object.setSavedDocument(isSaved && !object.isSchemaOutdated()
+                ? SchemaMapper.stamp(object.write(mapper), object.getClass()) : null);
+    }
+
+    // check the existence with the index of the uuid, the object and its embedded objects are not read
+    private boolean exists(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid) {
+        if (writeBehindQueue != null) {
+            if (Global.CASCADING_DELETED_CLASSES.contains(type)) {
+                // embedded objects are written with their parent
+                flushPendingWrites(type);
+            } else {
+                // the object is not written yet
+                WriteBehindQueue.PendingWrite pendingWrite = writeBehindQueue.pendingWriteOf(type, uuid);
+                if (pendingWrite != null) {
+                    return pendingWrite.getAction() != REMOVE_ACTION;
                 }
             }
-        } catch (NotIdentifiableException exception) {
+        }
+        List<Lock> acquiredLocks = lock(Collections.singleton(type), false);
+        try {
+            NitriteCollection collection = database.getRepository(type).getDocumentCollection();
+            return collection.find(Filters.eq(uuidFieldOf(type), uuid.getString())).size() > 0;
+        } finally {
+            unlock(acquiredLocks);
+        }
+    }
+
+    // an object loaded or saved before must not be searched in the database
+    private boolean isSaved(@NotNull PersistentObject object) {
+        return object.getSavedDocument() != null || findByUUID(object.getClass(), object.getUUID()) != null;
+    }
+
+    // the location was loaded or saved as part of the track
+    private boolean isSavedWithTrack(@NotNull LocationData locationData, @NotNull String trackUUID) {
+        Document savedDocument = locationData.getSavedDocument();
+        return savedDocument != null && trackUUID.equals(savedDocument.get(TRACK_REFERENCE_ATTRIBUTE));
+    }
+
+    // the location is saved with the track at the same position and its values are not changed,
+    // compared with the saved document without creating a new document
+    private boolean isSavedUnchanged(@NotNull LocationData locationData, @NotNull String trackUUID, int position) {
+        if (!isSavedWithTrack(locationData, trackUUID)) {
+            return false;
+        }
+        Document savedDocument = locationData.getSavedDocument();
+        return Objects.equals(savedDocument.get(POSITION_ATTRIBUTE), position)
+                && locationData.isWrittenTo(savedDocument);
+    }
+
+    // locations of the track were added, removed, moved or changed since the last load or save
+    private boolean hasChangedLocations(@NotNull Track track) {
+        if (!hasSavedLocations(track)) {
+            return true;
+        }
+        String trackUUID = track.getUUID().getString();
+        List<LocationData> locationDataList = track.getLocations();
+        for (int position = 0; position < locationDataList.size(); position++) {
+            if (!isSavedUnchanged(locationDataList.get(position), trackUUID, position)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // all saved locations of the track are still contained in the track
+    private boolean hasSavedLocations(@NotNull Track track) {
+        Document savedDocument = track.getSavedDocument();
+        Object numberOfLocations = savedDocument == null ? null : savedDocument.get("numberOfLocations");
+        return numberOfLocations instanceof Number
+                && ((Number) numberOfLocations).intValue() == track.getLocations().size();
+    }
+
+    // objects with embedded objects must be handled separately
+    private boolean hasEmbeddedObjects(@NotNull Class<? extends PersistentObject> type) {
+        return !type.equals(User.class) && !type.equals(TrainingType.class) && !type.equals(MovementType.class);
+    }
+
+    // the name of the attribute with the uuid of an object
+    private String uuidFieldOf(@NotNull Class<? extends PersistentObject> type) {
+        if (type.equals(MovementType.class)) {
+            // movement type has a unique key
+            return "key";
+        }
+        return "uuid";
+    }
+
+    // run the operation in a transaction of the store, if no transaction is running on this thread,
+    // the write locks of all changed types must be held
+    private void atomically(@NotNull Operation operation) throws SportsLibraryException {
+        if (isInTransaction()) {
+            operation.run();
+            return;
+        }
+        // the indices are built in the background and committed with the changes
+        databaseManager.awaitIndexing();
+        commitLock.lock();
+        try {
+            if (database.hasUnsavedChanges()) {
+                database.commit();
+            }
+            databaseManager.beginTransaction();
+            operation.run();
+            database.commit();
+            if (changeJournal != null) {
+                changeJournal.didCommit();
+            }
+        } catch (SportsLibraryException exception) {
+            discardChanges();
+            throw exception;
+        } catch (RuntimeException exception) {
+            discardChanges();
+            throw new SportsLibraryException(exception);
+        } finally {
+            databaseManager.endTransaction();
+            uncommittedObjects.clear();
+            commitLock.unlock();
+        }
+    }
+
+    // roll back the store to the version before the transaction
+    private void discardChanges() {
+        try {
+            databaseManager.rollback();
+        } catch (SportsLibraryException exception) {
             if (sportsLibrary.isDebugMode()) {
                 sportsLibrary.debug("Error while rollback.", exception);
             }
         }
+        objectCache.clear();
+        if (changeJournal != null) {
+            changeJournal.didRollback();
+        }
+        if (hashTree != null) {
+            hashTree.didRollback();
+        }
+        for (PersistentObject object : uncommittedObjects) {
+            // the objects must be written completely with the next update
+            object.setSavedDocument(null);
+        }
+    }
+
+    private boolean isInTransaction() {
+        return transactionThread == Thread.currentThread();
+    }
+
+    // the objects of a transaction are written immediately
+    @Null
+    private WriteBehindQueue activeQueue() {
+        return isInTransaction() ? null : writeBehindQueue;
+    }
+
+    // an object exists, if it is saved in the datastore or a pending write will save it
+    private boolean exists(@NotNull PersistentObject object, @NotNull Set<UUID> savedUUIDs) {
+        if (writeBehindQueue != null) {
+            WriteBehindQueue.PendingWrite pendingWrite = writeBehindQueue.pendingWriteOf(object.getClass(), object.getUUID());
+            if (pendingWrite != null) {
+                return pendingWrite.getAction() != REMOVE_ACTION;
+            }
+        }
+        return savedUUIDs.contains(object.getUUID());
+    }
+
+    private void enqueueAll(@NotNull WriteBehindQueue queue, int action,
+                            @NotNull Map<Class<? extends PersistentObject>, List<PersistentObject>> groups)
+            throws SportsLibraryException {
+        for (List<PersistentObject> group : groups.values()) {
+            for (PersistentObject object : group) {
+                queue.enqueue(action, object);
+            }
+        }
+    }
+
+    // replace the saved objects with the pending objects
+    private List<PersistentObject> withPendingWrites(@NotNull Class<? extends PersistentObject> type,
+                                                     @NotNull List<? extends PersistentObject> savedObjects) {
+        Map<UUID, PersistentObject> objects = new LinkedHashMap<>();
+        for (PersistentObject object : savedObjects) {
+            objects.put(object.getUUID(), object);
+        }
+        for (WriteBehindQueue.PendingWrite pendingWrite : writeBehindQueue.pendingWritesOf(type)) {
+            PersistentObject object = pendingWrite.getObject();
+            if (pendingWrite.getAction() == REMOVE_ACTION) {
+                objects.remove(object.getUUID());
+            } else {
+                objects.put(object.getUUID(), object);
+            }
+        }
+        return new ArrayList<>(objects.values());
+    }
+
+    // queries can not use the pending objects, so they must be written before,
+    // embedded objects can be changed by pending writes of any type
+    private void flushPendingWrites(@NotNull Class<? extends PersistentObject> type) {
+        if (writeBehindQueue == null || writeBehindQueue.isWritingOnCurrentThread() || isWritingOnCurrentThread()) {
+            return;
+        }
+        boolean isEmbeddedType = Global.CASCADING_DELETED_CLASSES.contains(type);
+        if (writeBehindQueue.hasPendingWrites(type) || (isEmbeddedType && writeBehindQueue.hasPendingWrites())) {
+            // the error is thrown by the next flush
+            writeBehindQueue.flushDeferred();
+        }
+    }
+
+    // write the pending objects of the write behind queue with one commit,
+    // a failed object is skipped and the other objects are written again
+    private void writePendingWrites(@NotNull List<WriteBehindQueue.PendingWrite> pendingWrites,
+                                    @NotNull List<WriteBehindQueue.PendingWrite> failedWrites)
+            throws SportsLibraryException {
+        List<WriteBehindQueue.PendingWrite> writes = new ArrayList<>(pendingWrites);
+        Set<Class<? extends PersistentObject>> types = new HashSet<>();
+        for (WriteBehindQueue.PendingWrite pendingWrite : writes) {
+            types.add(pendingWrite.getObject().getClass());
+        }
+        SportsLibraryException writeException = null;
+        List<Lock> acquiredLocks = lock(types, true);
+        try {
+            while (!writes.isEmpty()) {
+                int[] writeIndex = {0};
+                try {
+                    atomically(() -> {
+                        for (; writeIndex[0] < writes.size(); writeIndex[0]++) {
+                            WriteBehindQueue.PendingWrite pendingWrite = writes.get(writeIndex[0]);
+                            doActionWithObject(pendingWrite.getAction(), pendingWrite.getObject());
+                        }
+                    });
+                    break;
+                } catch (SportsLibraryException exception) {
+                    if (writeException == null) {
+                        writeException = exception;
+                    }
+                    if (writeIndex[0] < writes.size()) {
+                        failedWrites.add(writes.remove(writeIndex[0]));
+                    } else {
+                        // the commit failed
+                        failedWrites.addAll(writes);
+                        writes.clear();
+                    }
+                }
+            }
+        } finally {
+            unlock(acquiredLocks);
+        }
+        List<PersistentObject> addedObjects = new ArrayList<>();
+        List<PersistentObject> updatedObjects = new ArrayList<>();
+        List<PersistentObject> removedObjects = new ArrayList<>();
+        for (WriteBehindQueue.PendingWrite pendingWrite : writes) {
+            switch (pendingWrite.getAction()) {
+                case INSERT_ACTION: addedObjects.add(pendingWrite.getObject()); break;
+                case UPDATE_ACTION: updatedObjects.add(pendingWrite.getObject()); break;
+                case REMOVE_ACTION: removedObjects.add(pendingWrite.getObject()); break;
+            }
+        }
+        if (!addedObjects.isEmpty()) {
+            delegate.didObjectsAdded(addedObjects);
+        }
+        if (!updatedObjects.isEmpty()) {
+            delegate.didObjectsUpdated(updatedObjects);
+        }
+        if (!removedObjects.isEmpty()) {
+            delegate.didObjectsRemoved(removedObjects);
+        }
+        if (writeException != null) {
+            throw writeException;
+        }
+    }
+
+    // a read-only datastore refuses all changes
+    private void checkWritable() throws SportsLibraryException {
+        if (isReadOnly) {
+            throw new SportsLibraryException("The datastore is opened read-only.");
+        }
+    }
+
+    // the collection of a type or a collection without type, e.g. the metadata
+    private NitriteCollection collectionOf(@NotNull String collectionName) {
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            if (type.getName().equals(collectionName)) {
+                return database.getRepository(type).getDocumentCollection();
+            }
+        }
+        return database.getCollection(collectionName);
+    }
+
+    // the layout for storing the locations is saved in the metadata of the database
+    @Null
+    private LocationStorage loadLocationStorage() {
+        NitriteCollection metadataCollection = database.getCollection(METADATA_COLLECTION);
+        Document document = metadataCollection.find(Filters.eq("key", LOCATION_STORAGE_KEY)).firstOrDefault();
+        if (document != null) {
+            try {
+                return LocationStorage.valueOf((String) document.get("value"));
+            } catch (Exception exception) {
+                if (sportsLibrary.isDebugMode()) {
+                    sportsLibrary.debug("Unknown layout for storing locations.", exception);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void saveLocationStorage(@NotNull LocationStorage locationStorage) {
+        NitriteCollection metadataCollection = database.getCollection(METADATA_COLLECTION);
+        Document document = Document.createDocument("key", LOCATION_STORAGE_KEY);
+        document.put("value", locationStorage.name());
+        metadataCollection.update(Filters.eq("key", LOCATION_STORAGE_KEY), document, UpdateOptions.updateOptions(true));
+    }
+
+    // the state of the library is saved in one document of the metadata
+    @Null
+    private Document loadLibraryMetadata() {
+        NitriteCollection metadataCollection = database.getCollection(METADATA_COLLECTION);
+        return metadataCollection.find(Filters.eq("key", LIBRARY_METADATA_KEY)).firstOrDefault();
+    }
+
+    // the attributes are merged into the saved document
+    private void saveLibraryMetadata(@NotNull Document attributes) {
+        NitriteCollection metadataCollection = database.getCollection(METADATA_COLLECTION);
+        Document document = Document.createDocument("key", LIBRARY_METADATA_KEY);
+        document.putAll(attributes);
+        metadataCollection.update(Filters.eq("key", LIBRARY_METADATA_KEY), document, UpdateOptions.updateOptions(true));
+    }
+
+    // migrate every track in its own transaction, already migrated tracks are skipped,
+    // so an interrupted migration can be continued
+    private void migrateLocationStorage(@NotNull LocationStorage newLocationStorage) throws SportsLibraryException {
+        NitriteCollection trackCollection = database.getRepository(Track.class).getDocumentCollection();
+        NitriteCollection locationCollection = database.getRepository(LocationData.class).getDocumentCollection();
+        try {
+            for (NitriteId trackId : trackCollection.find().idSet()) {
+                atomically(() -> {
+                    Document trackDocument = trackCollection.getById(trackId);
+                    if (newLocationStorage == LocationStorage.EMBEDDED) {
+                        embedLocations(trackCollection, locationCollection, trackDocument);
+                    } else {
+                        separateLocations(trackCollection, locationCollection, trackDocument);
+                    }
+                });
+            }
+            atomically(() -> saveLocationStorage(newLocationStorage));
+            locationStorage = newLocationStorage;
+            objectCache.clear();
+        } catch (Exception exception) {
+            String errorMessage = "Migration of the locations to " + newLocationStorage + " failed.";
+            if (sportsLibrary.isDebugMode()) {
+                sportsLibrary.debug(errorMessage, exception);
+            }
+            throw new SportsLibraryException(errorMessage + " " + exception.getMessage());
+        }
+    }
+
+    // move the locations of a track into the document of the track
+    private void embedLocations(@NotNull NitriteCollection trackCollection,
+                                @NotNull NitriteCollection locationCollection,
+                                @NotNull Document trackDocument) {
+        String trackUUID = (String) trackDocument.get(UUID_ATTRIBUTE);
+        @SuppressWarnings("unchecked")
+        List<Document> embeddedDocuments = (List<Document>) trackDocument.get(LOCATIONS_ATTRIBUTE);
+        if (embeddedDocuments != null) {
+            // older databases saved the locations twice, remove the second copy
+            Object[] locationUUIDs = embeddedDocuments.stream().map(document -> document.get(UUID_ATTRIBUTE)).toArray();
+            if (locationUUIDs.length > 0) {
+                locationCollection.remove(Filters.in(UUID_ATTRIBUTE, locationUUIDs));
+            }
+            return;
+        }
+        NitriteMapper mapper = database.getContext().getNitriteMapper();
+        List<Document> locationDocuments = new ArrayList<>();
+        FindOptions findOptions = FindOptions.sort(POSITION_ATTRIBUTE, SortOrder.Ascending);
+        for (Document document : locationCollection.find(Filters.eq(TRACK_REFERENCE_ATTRIBUTE, trackUUID), findOptions)) {
+            locationDocuments.add(mapper.asObject(document, LocationData.class).write(mapper));
+        }
+        trackDocument.put(LOCATIONS_ATTRIBUTE, locationDocuments);
+        trackDocument.put("numberOfLocations", locationDocuments.size());
+        trackCollection.update(trackDocument);
+        locationCollection.remove(Filters.eq(TRACK_REFERENCE_ATTRIBUTE, trackUUID));
+    }
+
+    // move the embedded locations of a track to own documents with a reference to the track
+    private void separateLocations(@NotNull NitriteCollection trackCollection,
+                                   @NotNull NitriteCollection locationCollection,
+                                   @NotNull Document trackDocument) {
+        @SuppressWarnings("unchecked")
+        List<Document> embeddedDocuments = (List<Document>) trackDocument.get(LOCATIONS_ATTRIBUTE);
+        if (embeddedDocuments == null) {
+            return;
+        }
+        String trackUUID = (String) trackDocument.get(UUID_ATTRIBUTE);
+        Document[] locationDocuments = new Document[embeddedDocuments.size()];
+        Object[] locationUUIDs = new Object[embeddedDocuments.size()];
+        for (int position = 0; position < embeddedDocuments.size(); position++) {
+            Document locationDocument = new Document(embeddedDocuments.get(position));
+            if (!SchemaMapper.isOutdated(trackDocument, Track.class)) {
+                // the embedded locations were written with the current schema of the track
+                SchemaMapper.stamp(locationDocument, LocationData.class);
+            }
+            locationDocument.put(TRACK_REFERENCE_ATTRIBUTE, trackUUID);
+            locationDocument.put(POSITION_ATTRIBUTE, position);
+            locationDocuments[position] = locationDocument;
+            locationUUIDs[position] = locationDocument.get(UUID_ATTRIBUTE);
+        }
+        if (locationDocuments.length > 0) {
+            // older databases saved the locations twice, replace the second copy
+            locationCollection.remove(Filters.in(UUID_ATTRIBUTE, locationUUIDs));
+            locationCollection.insert(locationDocuments);
+        }
+        // the attribute is set to null, because an update merges the documents
+        trackDocument.put(LOCATIONS_ATTRIBUTE, null);
+        trackDocument.put("numberOfLocations", locationDocuments.length);
+        trackCollection.update(trackDocument);
+    }
+
+    // the document of a track without the locations, if the locations are stored separately
+    private Document trackDocumentOf(@NotNull Track track) {
+        Document document = SchemaMapper.stamp(track.write(database.getContext().getNitriteMapper()), Track.class);
+        document.put(LOCATIONS_ATTRIBUTE, null);
+        return document;
+    }
+
+    // the document of a location with the reference to the track and the position in the track
+    private Document locationDocumentOf(@NotNull String trackUUID, @NotNull LocationData locationData, int position) {
+        Document document = SchemaMapper.stamp(locationData.write(database.getContext().getNitriteMapper()),
+                LocationData.class);
+        document.put(TRACK_REFERENCE_ATTRIBUTE, trackUUID);
+        document.put(POSITION_ATTRIBUTE, position);
+        return document;
+    }
+
+    // insert all locations of a track with one operation
+    private void insertLocations(@NotNull NitriteCollection locationCollection, @NotNull String trackUUID,
+                                 @NotNull List<LocationData> locationDataList) {
+        if (locationDataList.isEmpty()) {
+            return;
+        }
+        Document[] locationDocuments = new Document[locationDataList.size()];
+        for (int position = 0; position < locationDataList.size(); position++) {
+            locationDocuments[position] = locationDocumentOf(trackUUID, locationDataList.get(position), position);
+        }
+        locationCollection.insert(locationDocuments);
+    }
+
+    // load the separately stored locations of a track, sorted by their position in the track
+    // attach the locations of a loaded track and remember the saved state of the object
+    private void didLoadObject(@Null PersistentObject object) {
+        if (object == null) {
+            return;
+        }
+        if (locationStorage == LocationStorage.SEPARATE && object instanceof Track) {
+            loadLocations((Track) object);
+        }
+        markSaved(object, true);
+    }
+
+    private void loadLocations(@NotNull Track track) {
+        NitriteMapper mapper = database.getContext().getNitriteMapper();
+        NitriteCollection locationCollection = database.getRepository(LocationData.class).getDocumentCollection();
+        FindOptions findOptions = FindOptions.sort(POSITION_ATTRIBUTE, SortOrder.Ascending);
+        List<LocationData> locationDataList = new ArrayList<>();
+        for (Document document : locationCollection.find(
+                Filters.eq(TRACK_REFERENCE_ATTRIBUTE, track.getUUID().getString()), findOptions)) {
+            locationDataList.add(mapper.asObject(document, LocationData.class));
+        }
+        track.setLocations(locationDataList);
+    }
+
+    // load the locations of the tracks while iterating
+    private <T extends PersistentObject> Iterator<T> withLocations(@NotNull Iterator<T> iterator) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                T object = iterator.next();
+                didLoadObject(object);
+                return object;
+            }
+        };
+    }
+
+    // lock all types changed or read with objects of the given types in the order of the persistent types,
+    // a thread holding a write lock can read all types of the group
+    private List<Lock> lock(@NotNull Collection<Class<? extends PersistentObject>> types, boolean forWriting) {
+        Set<Class<? extends PersistentObject>> lockedTypes = new HashSet<>();
+        for (Class<? extends PersistentObject> type : types) {
+            lockedTypes.addAll(lockGroupOf(type, forWriting));
+        }
+        List<Lock> acquiredLocks = new ArrayList<>();
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            if (lockedTypes.contains(type)) {
+                ReentrantReadWriteLock lock = locks.get(type);
+                Lock typeLock = forWriting ? lock.writeLock() : lock.readLock();
+                typeLock.lock();
+                acquiredLocks.add(typeLock);
+            }
+        }
+        return acquiredLocks;
+    }
+
+    // the writer of the pending writes must wait for the locks of this thread
+    private boolean isWritingOnCurrentThread() {
+        for (ReentrantReadWriteLock lock : locks.values()) {
+            if (lock.isWriteLockedByCurrentThread()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void unlock(@NotNull List<Lock> acquiredLocks) {
+        for (int i = acquiredLocks.size() - 1; i >= 0; i--) {
+            acquiredLocks.get(i).unlock();
+        }
+    }
+
+    private List<Class<? extends PersistentObject>> lockGroupOf(@NotNull Class<? extends PersistentObject> type,
+                                                              boolean forWriting) {
+        if (type.equals(Track.class)) {
+            // the locations are stored with the track
+            return List.of(LocationData.class, Track.class);
+        }
+        if (forWriting && type.equals(Training.class)) {
+            return List.of(LocationData.class, Track.class, Training.class, TrainingType.class);
+        }
+        if (forWriting && type.equals(RunningPlan.class)) {
+            return List.of(MovementType.class, RunningPlan.class, RunningPlanEntry.class, RunningUnit.class);
+        }
+        return List.of(type);
     }
 }
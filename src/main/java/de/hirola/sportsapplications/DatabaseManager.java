@@ -1,11 +1,41 @@
 package de.hirola.sportsapplications;
 
+import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.database.StorageProfile;
+import de.hirola.sportsapplications.model.LocationData;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.Index;
+import org.dizitart.no2.IndexOptions;
+import org.dizitart.no2.IndexType;
 import org.dizitart.no2.Nitrite;
+import org.dizitart.no2.NitriteBuilder;
+import org.dizitart.no2.NitriteCollection;
+import org.dizitart.no2.NitriteId;
 import org.dizitart.no2.exceptions.NitriteIOException;
+import org.dizitart.no2.mapper.JacksonMapper;
+import org.dizitart.no2.objects.ObjectRepository;
+import org.dizitart.no2.util.DocumentUtils;
+import org.dizitart.no2.util.IndexUtils;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.Page;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Null;
+import org.tinylog.Logger;
 
 import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
@@ -14,13 +44,36 @@ import java.io.File;
  * A layer to abstract the used data management library.
  * This library use the <a href="https://github.com/nitrite/nitrite-java">Nitrite</a> embedded database.
  *
+ * The locks and the object cache belong to the open database, so that all data repositories
+ * of a database use them. A database can be opened read-only, e.g. for reports. If the database file
+ * is opened for writing in this JVM, the read-only manager uses the open database, its locks and its cache.
+ * Otherwise the file is opened read-only with a shared file lock, so that many processes can read it,
+ * but not while another process has opened it for writing.
+ *
  * @author Michael Schmidt (Hirola)
  * @since v0.1
  */
 class DatabaseManager {
 
+    private static final String UUID_ATTRIBUTE = "uuid";
+
     private static DatabaseManager instance;
+    private static final Map<String, DatabaseManager> writableManagers = new HashMap<>(); // by database path
     private final Nitrite database;
+    private final StorageProfile storageProfile;
+    private final boolean isReadOnly;
+    private final boolean isOwner; // false, if the database of a writable manager is used
+    private final DatabaseManager writableManager; // null, if the manager owns the database
+    private final String databasePath; // null, if the database is kept in memory
+    private final Map<Class<? extends PersistentObject>, ReentrantReadWriteLock> locks;
+    private final ReentrantLock commitLock; // acquired after the write locks
+    private final ObjectCache objectCache;
+    private ChangeJournal changeJournal; // loaded with the first use
+    private HashTree hashTree; // loaded with the first use
+    private MVStore store; // determined with the first use
+    private MVStore.TxCounter transactionVersionUsage; // keeps the version before the running transaction
+    private long transactionVersion;
+    private volatile boolean hasBackgroundIndexing; // true, until the indexes of existing repositories are built
 
     /**
      * Get an instance of database manager.
@@ -29,13 +82,102 @@ class DatabaseManager {
      * @return An instance of the database manager.
      * @throws SportsLibraryException if an error occurred while creating or opening the database
      */
-    public static DatabaseManager getInstance(@NotNull File databaseDirectory) throws SportsLibraryException {
+    public static synchronized DatabaseManager getInstance(@NotNull File databaseDirectory) throws SportsLibraryException {
+        return getInstance(databaseDirectory, StorageProfile.DEFAULT);
+    }
+
+    /**
+     * Get an instance of database manager. The profile is used only for the first instance.
+     *
+     * @param databaseDirectory of the library
+     * @param storageProfile for the local datastore
+     * @return An instance of the database manager.
+     * @throws SportsLibraryException if an error occurred while creating or opening the database
+     */
+    public static synchronized DatabaseManager getInstance(@NotNull File databaseDirectory,
+                                                           @NotNull StorageProfile storageProfile)
+            throws SportsLibraryException {
         if (instance == null) {
-            instance = new DatabaseManager(databaseDirectory);
+            instance = new DatabaseManager(databaseDirectory, storageProfile, true, false);
         }
         return instance;
     }
 
+    /**
+     * Open a database manager, which is not shared, e.g. for one of many users in a server.
+     * The database is not closed on shutdown of the JVM, it must be closed with close.
+     *
+     * @param databaseDirectory of the library
+     * @param storageProfile for the local datastore
+     * @return A new database manager.
+     * @throws SportsLibraryException if an error occurred while creating or opening the database
+     */
+    public static DatabaseManager open(@NotNull File databaseDirectory, @NotNull StorageProfile storageProfile)
+            throws SportsLibraryException {
+        return new DatabaseManager(databaseDirectory, storageProfile, false, false);
+    }
+
+    /**
+     * Open a database manager, which can only read the database, e.g. for reports.
+     * If the database is opened for writing in this JVM, the open database is used,
+     * the changes of the writer are visible after their commit. The database is not closed
+     * on shutdown of the JVM, it must be closed with close.
+     *
+     * @param databaseDirectory of the library
+     * @param storageProfile for the local datastore, if the database is not open
+     * @return A new database manager.
+     * @throws SportsLibraryException if the database does not exist or is opened for writing by another process
+     */
+    public static DatabaseManager openReadOnly(@NotNull File databaseDirectory, @NotNull StorageProfile storageProfile)
+            throws SportsLibraryException {
+        if (storageProfile.isInMemory()) {
+            throw new SportsLibraryException("A datastore in memory can not be opened read-only.");
+        }
+        synchronized (DatabaseManager.class) {
+            DatabaseManager writableManager = writableManagers.get(buildDatabasePath(databaseDirectory));
+            if (writableManager != null) {
+                return new DatabaseManager(writableManager);
+            }
+        }
+        return new DatabaseManager(databaseDirectory, storageProfile, false, true);
+    }
+
+    /**
+     * Close the database. A shared instance will be created again with the next call of getInstance.
+     */
+    public void close() {
+        synchronized (DatabaseManager.class) {
+            if (instance == this) {
+                instance = null;
+            }
+            if (databasePath != null) {
+                writableManagers.remove(databasePath, this);
+            }
+        }
+        // the database of a writable manager is closed by the writable manager
+        if (isOwner && database != null && !database.isClosed()) {
+            database.close();
+        }
+    }
+
+    /**
+     * Get a flag to determine if the database can only be read.
+     *
+     * @return A flag to determine if the database was opened read-only
+     */
+    public boolean isReadOnly() {
+        return isReadOnly;
+    }
+
+    /**
+     * Get the profile of the local datastore.
+     *
+     * @return The profile used to open the database
+     */
+    public StorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
     /**
      * Get the manager to handle with data, e.g. add, update or delete.
      * Can be null if while initialize an error occurred. The errors
@@ -48,30 +190,468 @@ class DatabaseManager {
         return database;
     }
 
-    private DatabaseManager(@NotNull File databaseDirectory) throws SportsLibraryException {
+    /**
+     * Get the locks of the persistent types, shared by all data repositories of the database.
+     *
+     * @return The locks of the persistent types
+     */
+    Map<Class<? extends PersistentObject>, ReentrantReadWriteLock> getLocks() {
+        return locks;
+    }
+
+    /**
+     * Get the lock for the commits, shared by all data repositories of the database.
+     *
+     * @return The lock for the commits
+     */
+    ReentrantLock getCommitLock() {
+        return commitLock;
+    }
+
+    /**
+     * Get the cache of the loaded objects, shared by all data repositories of the database.
+     *
+     * @return The cache of the loaded objects
+     */
+    ObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    /**
+     * Get the journal of the changes, shared by all data repositories of the database.
+     *
+     * @return The journal of the changes or null, if the database is not open
+     */
+    @Null
+    ChangeJournal getChangeJournal() {
+        if (!isOwner) {
+            return writableManager.getChangeJournal();
+        }
+        synchronized (this) {
+            if (changeJournal == null && database != null && !database.isClosed()) {
+                changeJournal = new ChangeJournal(database, Global.CHANGE_JOURNAL_SEGMENT_SIZE);
+            }
+            return changeJournal;
+        }
+    }
+
+    /**
+     * Get the hash tree of the objects of the database. The tree is shared with the read-only views.
+     *
+     * @return The hash tree or null, if the database is not open
+     */
+    @Null
+    HashTree getHashTree() {
+        if (!isOwner) {
+            return writableManager.getHashTree();
+        }
+        synchronized (this) {
+            if (hashTree == null && database != null && !database.isClosed()) {
+                hashTree = new HashTree(database, Global.HASH_TREE_DEPTH);
+            }
+            return hashTree;
+        }
+    }
+
+    /**
+     * Get a flag to determine if indexes are still being built in the background.
+     *
+     * @return A flag to determine if an index is being built
+     */
+    public boolean isIndexing() {
+        if (database == null || database.isClosed()) {
+            return false;
+        }
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            ObjectRepository<? extends PersistentObject> repository = database.getRepository(type);
+            if (repository.isIndexing(UUID_ATTRIBUTE)) {
+                return true;
+            }
+            for (String attribute : Global.INDEXED_ATTRIBUTES.getOrDefault(type, Collections.emptyList())) {
+                if (repository.isIndexing(attribute)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait until the indexes being built in the background are completed.
+     * The changes of the index builder are written with the next commit,
+     * so that a rollback must not start before.
+     *
+     * @throws SportsLibraryException if the thread was interrupted while waiting
+     */
+    public void awaitIndexing() throws SportsLibraryException {
+        if (!hasBackgroundIndexing) {
+            return;
+        }
+        while (isIndexing()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException exception) {
+                // an interrupted thread can not write the store
+                Thread.currentThread().interrupt();
+                throw new SportsLibraryException("Interrupted while waiting for the indices being built.");
+            }
+        }
+        hasBackgroundIndexing = false;
+    }
+
+    /**
+     * Begin a transaction after the last commit. The store writes the changes of a transaction
+     * before the commit, if they exceed the commit buffer of the profile. The version of the store
+     * before the transaction is kept until the end of the transaction, so that these changes
+     * can be rolled back too. Must be called with the commit lock.
+     */
+    void beginTransaction() {
+        MVStore mvStore = getStore();
+        if (mvStore != null) {
+            transactionVersion = mvStore.getCurrentVersion();
+            transactionVersionUsage = mvStore.registerVersionUsage();
+        }
+    }
+
+    /**
+     * End the transaction after the commit or the rollback, the version before the transaction
+     * can be released. Must be called with the commit lock.
+     */
+    void endTransaction() {
+        MVStore mvStore = getStore();
+        if (mvStore != null && transactionVersionUsage != null) {
+            mvStore.deregisterVersionUsage(transactionVersionUsage);
+        }
+        transactionVersionUsage = null;
+    }
+
+    /**
+     * Discard all changes since the last commit. Nitrite does not support rollbacks,
+     * so the underlying MVStore is rolled back. In a transaction the store is rolled back
+     * to the version before the transaction, including the changes written before the commit.
+     *
+     * @throws SportsLibraryException if the changes could not be discarded
+     */
+    public void rollback() throws SportsLibraryException {
+        if (database == null || database.isClosed()) {
+            return;
+        }
+        MVStore mvStore = getStore();
+        if (mvStore == null) {
+            throw new SportsLibraryException("The changes could not be discarded: store not available.");
+        }
+        try {
+            Map<NitriteCollection, Page> rootPages = rootPagesOf(mvStore);
+            if (transactionVersionUsage != null) {
+                mvStore.rollbackTo(transactionVersion);
+            } else {
+                mvStore.rollback();
+            }
+            repairIndices(mvStore, rootPages);
+        } catch (RuntimeException exception) {
+            throw new SportsLibraryException("The changes could not be discarded: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Get the underlying store of the database, e.g. to compact the database file.
+     * Nitrite does not publish the store, so it is determined once by reflection.
+     *
+     * @return The store of the database or null, if the database is not open
+     *         or the store could not be determined.
+     */
+    @Null
+    synchronized MVStore getStore() {
+        if (database == null || database.isClosed()) {
+            return null;
+        }
+        if (store == null) {
+            try {
+                Field storeField = Nitrite.class.getDeclaredField("store");
+                storeField.setAccessible(true);
+                Object nitriteStore = storeField.get(database);
+                Field mvStoreField = nitriteStore.getClass().getDeclaredField("mvStore");
+                mvStoreField.setAccessible(true);
+                store = (MVStore) mvStoreField.get(nitriteStore);
+            } catch (ReflectiveOperationException | RuntimeException exception) {
+                Logger.debug(exception, "The store of the database could not be determined.");
+            }
+        }
+        return store;
+    }
+
+    // a read-only manager using the database of a writable manager
+    private DatabaseManager(@NotNull DatabaseManager writableManager) {
+        database = writableManager.database;
+        storageProfile = writableManager.storageProfile;
+        this.writableManager = writableManager;
+        isReadOnly = true;
+        isOwner = false;
+        databasePath = null;
+        locks = writableManager.locks;
+        commitLock = writableManager.commitLock;
+        objectCache = writableManager.objectCache;
+    }
+
+    private DatabaseManager(@NotNull File databaseDirectory, @NotNull StorageProfile storageProfile,
+                            boolean isShared, boolean isReadOnly) throws SportsLibraryException {
+        this.storageProfile = storageProfile;
+        this.isReadOnly = isReadOnly;
+        isOwner = true;
+        writableManager = null;
+        locks = new HashMap<>();
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            locks.put(type, new ReentrantReadWriteLock());
+        }
+        commitLock = new ReentrantLock();
+        objectCache = new ObjectCache(storageProfile.getObjectCacheMaxWeight());
         try {
             // Nitrite by default compacts the database file before close.
             // If compaction is enabled chunks will be moved next to each other.
             // Disabling compaction will increase the performance during database close.
-                String databasePath = buildDatabasePath(databaseDirectory);
-                database = Nitrite.builder()
-                        .filePath(databasePath)
+            // The changes are committed by the data repository, so that related objects
+            // are saved in one transaction. If the changes exceed the buffer (in KB),
+            // the store writes them before the commit, a rollback reverts them
+            // to the version before the transaction.
+                NitriteBuilder builder = Nitrite.builder()
                         .disableAutoCompact()
-                        .openOrCreate();
+                        .disableAutoCommit()
+                        .autoCommitBufferSize(storageProfile.getCommitBufferSizeInKB())
+                        // documents with an older schema are upgraded while reading
+                        .nitriteMapper(new SchemaMapper(new JacksonMapper()));
+                if (!storageProfile.isInMemory()) {
+                    // without a file path the database is kept in memory
+                    builder.filePath(buildDatabasePath(databaseDirectory));
+                }
+                if (isReadOnly) {
+                    // the file is locked shared, the indices are not created
+                    builder.readOnly();
+                }
+                if (storageProfile.isCompressed()) {
+                    builder.compressed();
+                }
+                if (!isShared) {
+                    // every hook holds its database until the JVM exits
+                    builder.disableShutdownHook();
+                }
+                database = builder.openOrCreate();
+                MVStore mvStore = getStore();
+                if (mvStore != null && storageProfile.getCacheSizeInMB() > 0) {
+                    mvStore.setCacheSize(storageProfile.getCacheSizeInMB());
+                }
+                if (!isReadOnly) {
+                    createIndices();
+                    database.commit();
+                }
 
         } catch (NitriteIOException exception) {
             throw new SportsLibraryException("Could not determine the runtime environment. Database is null: "
                     + exception.getMessage());
+        } catch (IllegalStateException exception) {
+            // a missing database file can not be opened read-only
+            throw new SportsLibraryException("Could not open the database: " + exception.getMessage());
+        }
+        if (!isReadOnly && !storageProfile.isInMemory()) {
+            // read-only managers of this JVM use the open database
+            databasePath = buildDatabasePath(databaseDirectory);
+            synchronized (DatabaseManager.class) {
+                writableManagers.put(databasePath, this);
+            }
+        } else {
+            databasePath = null;
+        }
+    }
+
+    // every type gets an unique index for the uuid, additional indexes are declared in Global,
+    // on existing repositories missing indexes are built in the background
+    private void createIndices() {
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            boolean isExisting = database.hasRepository(type);
+            ObjectRepository<? extends PersistentObject> repository = database.getRepository(type);
+            // older databases can contain copies of the same location,
+            // which are removed by the migration of the location layout before
+            boolean hasUniqueUUID = !(isExisting && type.equals(LocationData.class));
+            if (hasUniqueUUID && !repository.hasIndex(UUID_ATTRIBUTE)) {
+                repository.createIndex(UUID_ATTRIBUTE, IndexOptions.indexOptions(IndexType.Unique, isExisting));
+                hasBackgroundIndexing |= isExisting;
+            }
+            for (String attribute : Global.INDEXED_ATTRIBUTES.getOrDefault(type, Collections.emptyList())) {
+                if (!repository.hasIndex(attribute)) {
+                    repository.createIndex(attribute, IndexOptions.indexOptions(IndexType.NonUnique, isExisting));
+                    hasBackgroundIndexing |= isExisting;
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the unique index for the uuid of the locations, after the migration of the location layout
+     * has removed the copies of the locations. The index of an existing database is built in the background.
+     * Must be called in a transaction of the datastore.
+     */
+    void createLocationIndex() {
+        if (database == null || database.isClosed() || isReadOnly) {
+            return;
+        }
+        ObjectRepository<LocationData> repository = database.getRepository(LocationData.class);
+        if (!repository.hasIndex(UUID_ATTRIBUTE)) {
+            repository.createIndex(UUID_ATTRIBUTE, IndexOptions.indexOptions(IndexType.Unique, true));
+            hasBackgroundIndexing = true;
+        }
+    }
+
+    // the root pages of the documents of all collections with indices
+    private Map<NitriteCollection, Page> rootPagesOf(@NotNull MVStore mvStore) {
+        List<NitriteCollection> collections = new ArrayList<>();
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            if (database.hasRepository(type)) {
+                collections.add(database.getRepository(type).getDocumentCollection());
+            }
+        }
+        for (String collectionName : database.listCollectionNames()) {
+            collections.add(database.getCollection(collectionName));
+        }
+        Map<NitriteCollection, Page> rootPages = new HashMap<>();
+        for (NitriteCollection collection : collections) {
+            if (mvStore.hasMap(collection.getName()) && !collection.listIndices().isEmpty()) {
+                rootPages.put(collection, mvStore.openMap(collection.getName()).getRootPage());
+            }
+        }
+        return rootPages;
+    }
+
+    // Nitrite changes the entries of an index in place, so that the rolled back index can contain
+    // the discarded changes, the entries of the documents changed since the rollback version are repaired
+    private void repairIndices(@NotNull MVStore mvStore, @NotNull Map<NitriteCollection, Page> discardedRootPages) {
+        for (Map.Entry<NitriteCollection, Page> entry : discardedRootPages.entrySet()) {
+            NitriteCollection collection = entry.getKey();
+            Map<Object, Document[]> changedDocuments;
+            try {
+                changedDocuments = changedDocumentsOf(
+                        mvStore.openMap(collection.getName()).getRootPage(), entry.getValue());
+            } catch (RuntimeException exception) {
+                // the discarded pages were written before the commit and removed with the rollback
+                Logger.debug(exception, "The changed documents of {} could not be determined.", collection.getName());
+                for (Index index : collection.listIndices()) {
+                    collection.rebuildIndex(index.getField(), false);
+                }
+                continue;
+            }
+            if (changedDocuments.isEmpty()) {
+                continue;
+            }
+            for (Index index : collection.listIndices()) {
+                String indexMapName = IndexUtils.internalName(index);
+                if (index.getIndexType() == IndexType.Fulltext || !mvStore.hasMap(indexMapName)) {
+                    collection.rebuildIndex(index.getField(), false);
+                    continue;
+                }
+                MVMap<Object, ConcurrentSkipListSet<NitriteId>> indexMap = mvStore.openMap(indexMapName);
+                for (Map.Entry<Object, Document[]> change : changedDocuments.entrySet()) {
+                    NitriteId id = (NitriteId) change.getKey();
+                    Object value = valueOf(change.getValue()[0], index.getField());
+                    Object discardedValue = valueOf(change.getValue()[1], index.getField());
+                    if (discardedValue != null && !discardedValue.equals(value)) {
+                        repairIndexEntry(indexMap, discardedValue, id, false);
+                    }
+                    if (value != null) {
+                        repairIndexEntry(indexMap, value, id, true);
+                    }
+                }
+            }
+        }
+    }
+
+    // the documents of the two versions of a collection, which are different, by their ids,
+    // the pages of both versions are compared from the root, pages shared by both versions are skipped
+    private static Map<Object, Document[]> changedDocumentsOf(@NotNull Page rootPage, @NotNull Page discardedRootPage) {
+        List<Page> pages = new ArrayList<>(List.of(rootPage));
+        List<Page> discardedPages = new ArrayList<>(List.of(discardedRootPage));
+        while (true) {
+            // saved pages are equal, if they have the same position in the file
+            Set<Page> sharedPages = new HashSet<>(pages);
+            sharedPages.retainAll(discardedPages);
+            pages.removeAll(sharedPages);
+            discardedPages.removeAll(sharedPages);
+            if (pages.stream().allMatch(Page::isLeaf) && discardedPages.stream().allMatch(Page::isLeaf)) {
+                break;
+            }
+            pages = childPagesOf(pages);
+            discardedPages = childPagesOf(discardedPages);
+        }
+        Map<Object, Object> documents = entriesOf(pages);
+        Map<Object, Object> discardedDocuments = entriesOf(discardedPages);
+        Set<Object> ids = new HashSet<>(documents.keySet());
+        ids.addAll(discardedDocuments.keySet());
+        Map<Object, Document[]> changedDocuments = new HashMap<>();
+        for (Object id : ids) {
+            Object document = documents.get(id);
+            Object discardedDocument = discardedDocuments.get(id);
+            if (!Objects.equals(document, discardedDocument)) {
+                changedDocuments.put(id, new Document[] {(Document) document, (Document) discardedDocument});
+            }
+        }
+        return changedDocuments;
+    }
+
+    // the leaves remain, the nodes are replaced by their children
+    private static List<Page> childPagesOf(@NotNull List<Page> pages) {
+        List<Page> childPages = new ArrayList<>();
+        for (Page page : pages) {
+            if (page.isLeaf()) {
+                childPages.add(page);
+            } else {
+                for (int index = 0; index < page.getRawChildPageCount(); index++) {
+                    childPages.add(page.getChildPage(index));
+                }
+            }
+        }
+        return childPages;
+    }
+
+    private static Map<Object, Object> entriesOf(@NotNull List<Page> leaves) {
+        Map<Object, Object> entries = new HashMap<>();
+        for (Page leaf : leaves) {
+            for (int index = 0; index < leaf.getKeyCount(); index++) {
+                entries.put(leaf.getKey(index), leaf.getValue(index));
+            }
+        }
+        return entries;
+    }
+
+    @Null
+    private static Object valueOf(@Null Document document, @NotNull String field) {
+        return document == null ? null : DocumentUtils.getFieldValue(document, field);
+    }
+
+    // the set of the ids can be shared with the committed version, so it is replaced
+    private static void repairIndexEntry(@NotNull MVMap<Object, ConcurrentSkipListSet<NitriteId>> indexMap,
+                                         @NotNull Object value, @NotNull NitriteId id, boolean isIndexed) {
+        ConcurrentSkipListSet<NitriteId> ids = indexMap.get(value);
+        if ((ids != null && ids.contains(id)) == isIndexed) {
+            return;
+        }
+        ConcurrentSkipListSet<NitriteId> repairedIds = ids == null ? new ConcurrentSkipListSet<>()
+                : new ConcurrentSkipListSet<>(ids);
+        if (isIndexed) {
+            repairedIds.add(id);
+        } else {
+            repairedIds.remove(id);
+        }
+        if (repairedIds.isEmpty()) {
+            indexMap.remove(value);
+        } else {
+            indexMap.put(value, repairedIds);
         }
     }
 
-    private String buildDatabasePath(@NotNull File databaseDirectory) {
+    private static String buildDatabasePath(@NotNull File databaseDirectory) {
         // build the database name from package name
         String packageName = Global.LIBRARY_PACKAGE_NAME;
         int beginIndex = packageName.lastIndexOf('.') + 1;
         int endIndex = packageName.length();
         String databaseName = packageName.substring(beginIndex, endIndex) + ".db";
-        return databaseDirectory.getPath() + File.separatorChar + databaseName;
+        return databaseDirectory.getAbsolutePath() + File.separatorChar + databaseName;
     }
 
 }
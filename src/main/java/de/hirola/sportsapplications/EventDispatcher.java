@@ -0,0 +1,276 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.DatastoreDelegate;
+import de.hirola.sportsapplications.database.DeliveryMode;
+import de.hirola.sportsapplications.database.PersistentObject;
+import javax.validation.constraints.NotNull;
+import org.tinylog.Logger;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Delivers the events of the datastore to the subscribed delegates. A delegate can subscribe
+ * to all or only to some types of objects. Synchronous delegates are informed on the thread changing
+ * the datastore. The events for asynchronous delegates are coalesced by the uuid of the objects
+ * and delivered by a background thread after a short time window. If too many events are pending,
+ * the thread changing the datastore delivers the pending events.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+final class EventDispatcher implements DatastoreDelegate {
+
+    private static final class PendingEvent {
+        private final int action;
+        private final PersistentObject object;
+
+        private PendingEvent(int action, @NotNull PersistentObject object) {
+            this.action = action;
+            this.object = object;
+        }
+    }
+
+    private static final class Subscription {
+        private final DatastoreDelegate delegate;
+        private final DeliveryMode deliveryMode;
+        private final Set<Class<? extends PersistentObject>> types; // all types, if empty
+        private final Map<String, PendingEvent> pendingEvents; // in order of the first event
+
+        private Subscription(@NotNull DatastoreDelegate delegate, @NotNull DeliveryMode deliveryMode,
+                             @NotNull Collection<Class<? extends PersistentObject>> types) {
+            this.delegate = delegate;
+            this.deliveryMode = deliveryMode;
+            this.types = new HashSet<>(types);
+            pendingEvents = new LinkedHashMap<>();
+        }
+
+        private List<PersistentObject> accepted(@NotNull List<? extends PersistentObject> objects) {
+            List<PersistentObject> acceptedObjects = new ArrayList<>(objects.size());
+            for (PersistentObject object : objects) {
+                if (types.isEmpty() || types.contains(object.getClass())) {
+                    acceptedObjects.add(object);
+                }
+            }
+            return acceptedObjects;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions;
+    private final int maxPendingEvents;
+    private final long coalescingWindowInMillis;
+    private ScheduledExecutorService executorService; // created with the first asynchronous event
+    private int numberOfPendingEvents;
+    private boolean isDispatchScheduled;
+
+    /**
+     * Create a dispatcher without subscriptions.
+     *
+     * @param maxPendingEvents maximum number of pending events for asynchronous delegates
+     * @param coalescingWindowInMillis time in milliseconds to coalesce the events
+     */
+    EventDispatcher(int maxPendingEvents, long coalescingWindowInMillis) {
+        this.maxPendingEvents = Math.max(1, maxPendingEvents);
+        this.coalescingWindowInMillis = Math.max(0, coalescingWindowInMillis);
+        subscriptions = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Subscribe a delegate to the events of the given types. An existing subscription
+     * of the delegate will be replaced.
+     *
+     * @param delegate to be informed
+     * @param deliveryMode of the events
+     * @param types of the objects, if empty the delegate is informed about all objects
+     */
+    synchronized void subscribe(@NotNull DatastoreDelegate delegate, @NotNull DeliveryMode deliveryMode,
+                                @NotNull Collection<Class<? extends PersistentObject>> types) {
+        unsubscribe(delegate);
+        subscriptions.add(new Subscription(delegate, deliveryMode, types));
+    }
+
+    /**
+     * Remove the subscription of a delegate. Pending events of the delegate will not be delivered.
+     *
+     * @param delegate to be removed
+     */
+    synchronized void unsubscribe(@NotNull DatastoreDelegate delegate) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.delegate == delegate) {
+                numberOfPendingEvents -= subscription.pendingEvents.size();
+                subscription.pendingEvents.clear();
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Deliver all pending events of the asynchronous delegates on the calling thread.
+     */
+    void flush() {
+        Map<Subscription, List<PendingEvent>> events = new LinkedHashMap<>();
+        synchronized (this) {
+            isDispatchScheduled = false;
+            for (Subscription subscription : subscriptions) {
+                if (!subscription.pendingEvents.isEmpty()) {
+                    events.put(subscription, new ArrayList<>(subscription.pendingEvents.values()));
+                    subscription.pendingEvents.clear();
+                }
+            }
+            numberOfPendingEvents = 0;
+        }
+        for (Map.Entry<Subscription, List<PendingEvent>> entry : events.entrySet()) {
+            try {
+                deliver(entry.getKey().delegate, entry.getValue());
+            } catch (RuntimeException exception) {
+                // an error of a delegate must not stop the delivery to other delegates
+                Logger.debug(exception, "A delegate could not handle the datastore events.");
+            }
+        }
+    }
+
+    @Override
+    public void didObjectAdded(PersistentObject persistentObject) {
+        publish(DataRepository.INSERT_ACTION, Collections.singletonList(persistentObject), false);
+    }
+
+    @Override
+    public void didObjectUpdated(PersistentObject persistentObject) {
+        publish(DataRepository.UPDATE_ACTION, Collections.singletonList(persistentObject), false);
+    }
+
+    @Override
+    public void didObjectRemoved(PersistentObject persistentObject) {
+        publish(DataRepository.REMOVE_ACTION, Collections.singletonList(persistentObject), false);
+    }
+
+    @Override
+    public void didObjectsAdded(List<? extends PersistentObject> persistentObjects) {
+        publish(DataRepository.INSERT_ACTION, persistentObjects, true);
+    }
+
+    @Override
+    public void didObjectsUpdated(List<? extends PersistentObject> persistentObjects) {
+        publish(DataRepository.UPDATE_ACTION, persistentObjects, true);
+    }
+
+    @Override
+    public void didObjectsRemoved(List<? extends PersistentObject> persistentObjects) {
+        publish(DataRepository.REMOVE_ACTION, persistentObjects, true);
+    }
+
+    private void publish(int action, @NotNull List<? extends PersistentObject> objects, boolean isBatch) {
+        boolean hasAsynchronousEvents = false;
+        for (Subscription subscription : subscriptions) {
+            List<PersistentObject> acceptedObjects = subscription.accepted(objects);
+            if (acceptedObjects.isEmpty()) {
+                continue;
+            }
+            if (subscription.deliveryMode == DeliveryMode.SYNCHRONOUS) {
+                // errors are reported to the thread changing the datastore
+                if (isBatch) {
+                    deliverBatch(subscription.delegate, action, acceptedObjects);
+                } else {
+                    deliverSingle(subscription.delegate, action, acceptedObjects.get(0));
+                }
+            } else {
+                enqueue(subscription, action, acceptedObjects);
+                hasAsynchronousEvents = true;
+            }
+        }
+        if (hasAsynchronousEvents) {
+            scheduleDispatch();
+        }
+    }
+
+    private synchronized void enqueue(@NotNull Subscription subscription, int action,
+                                      @NotNull List<PersistentObject> objects) {
+        if (!subscriptions.contains(subscription)) {
+            // removed while publishing
+            return;
+        }
+        for (PersistentObject object : objects) {
+            String key = object.getClass().getName() + ':' + object.getUUID().getString();
+            PendingEvent pendingEvent = subscription.pendingEvents.get(key);
+            if (pendingEvent == null) {
+                subscription.pendingEvents.put(key, new PendingEvent(action, object));
+                numberOfPendingEvents++;
+                continue;
+            }
+            int coalescedAction = WriteBehindQueue.coalesce(pendingEvent.action, action);
+            if (coalescedAction < 0) {
+                // added and removed within the time window
+                subscription.pendingEvents.remove(key);
+                numberOfPendingEvents--;
+            } else {
+                subscription.pendingEvents.put(key, new PendingEvent(coalescedAction, object));
+            }
+        }
+    }
+
+    private void scheduleDispatch() {
+        synchronized (this) {
+            if (numberOfPendingEvents < maxPendingEvents) {
+                if (!isDispatchScheduled && numberOfPendingEvents > 0) {
+                    if (executorService == null) {
+                        executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                            Thread thread = new Thread(runnable, "sportsapplications-events");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                    }
+                    executorService.schedule(this::flush, coalescingWindowInMillis, TimeUnit.MILLISECONDS);
+                    isDispatchScheduled = true;
+                }
+                return;
+            }
+        }
+        // the delegates are too slow, deliver on the calling thread
+        flush();
+    }
+
+    // consecutive events with the same action are delivered as one batch
+    private void deliver(@NotNull DatastoreDelegate delegate, @NotNull List<PendingEvent> events) {
+        int start = 0;
+        while (start < events.size()) {
+            int action = events.get(start).action;
+            int end = start + 1;
+            while (end < events.size() && events.get(end).action == action) {
+                end++;
+            }
+            if (end - start == 1) {
+                deliverSingle(delegate, action, events.get(start).object);
+            } else {
+                List<PersistentObject> objects = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) {
+                    objects.add(events.get(i).object);
+                }
+                deliverBatch(delegate, action, objects);
+            }
+            start = end;
+        }
+    }
+
+    private void deliverSingle(@NotNull DatastoreDelegate delegate, int action, @NotNull PersistentObject object) {
+        switch (action) {
+            case DataRepository.INSERT_ACTION: delegate.didObjectAdded(object); break;
+            case DataRepository.UPDATE_ACTION: delegate.didObjectUpdated(object); break;
+            case DataRepository.REMOVE_ACTION: delegate.didObjectRemoved(object); break;
+        }
+    }
+
+    private void deliverBatch(@NotNull DatastoreDelegate delegate, int action,
+                              @NotNull List<PersistentObject> objects) {
+        switch (action) {
+            case DataRepository.INSERT_ACTION: delegate.didObjectsAdded(objects); break;
+            case DataRepository.UPDATE_ACTION: delegate.didObjectsUpdated(objects); break;
+            case DataRepository.REMOVE_ACTION: delegate.didObjectsRemoved(objects); break;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package de.hirola.sportsapplications;
 
+import de.hirola.sportsapplications.database.LocationStorage;
 import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.database.SchemaUpgrade;
 import de.hirola.sportsapplications.model.*;
 
 import java.util.*;
@@ -17,10 +19,30 @@ import java.util.*;
 public final class Global {
 
     public static final String LIBRARY_PACKAGE_NAME = "de.hirola.sportsapplications";
+    public static final String LIBRARY_VERSION = "0.1"; // saved with the seed state of the datastore
     public static final String ROOT_RESOURCE_BUNDLE_BASE_NAME = SportsLibrary.class.getSimpleName();
     public static final Locale DEFAULT_LOCALE = new Locale("en");
     public static final String MOVEMENT_TYPE_KEY_PREFIX = "movement.type.name.";
     public static final String UNDEFINED_MOVEMENT_TYPE_KEY = "N";
+    public static final LocationStorage DEFAULT_LOCATION_STORAGE = LocationStorage.EMBEDDED;
+    public static final long OBJECT_CACHE_MAX_WEIGHT = 10000; // objects and locations of tracks
+    public static final int MAX_PENDING_EVENTS = 1000; // for asynchronous delegates
+    public static final long EVENT_COALESCING_WINDOW_MILLIS = 100;
+    public static final long COMPACTION_CHECK_INTERVAL_MILLIS = 60000;
+    public static final long COMPACTION_IDLE_TIME_MILLIS = 30000; // without commits
+    public static final long COMPACTION_TIME_BUDGET_MILLIS = 200; // for each compaction
+    public static final long COMPACTION_MIN_FILE_SIZE = 4 * 1024 * 1024; // in bytes
+    public static final int COMPACTION_MIN_FILL_RATE = 50; // in percent, compact below
+    public static final int COMPACTION_TARGET_FILL_RATE = 80; // in percent
+    public static final int COMPACTION_WRITE_LIMIT = 256 * 1024; // bytes rewritten for each step
+    public static final int POOL_MAX_OPEN_LIBRARIES = 64; // each with an open database file
+    public static final long POOL_IDLE_TIME_MILLIS = 300000; // without lease before closing
+    public static final long POOL_ACQUIRE_TIMEOUT_MILLIS = 10000; // if all libraries are in use
+    public static final long POOL_CHECK_INTERVAL_MILLIS = 30000; // for idle libraries
+    public static final int SCHEMA_MIGRATION_BATCH_SIZE = 100; // documents upgraded in one transaction
+    public static final int CHANGE_JOURNAL_SEGMENT_SIZE = 10000; // changes in one segment of the journal
+    public static final int SYNC_BATCH_SIZE = 500; // changed objects in one payload of the sync
+    public static final int HASH_TREE_DEPTH = 4; // levels below the root of the hash tree, 16 children per node
     public static final String JSON_RESOURCES = "/json";
     public static final String MOVEMENT_TYPES_JSON = "/json"
             + "/"
@@ -72,6 +94,31 @@ public final class Global {
         CASCADING_DELETED_CLASSES.add(RunningUnit.class);
     }
 
+    /**
+     * A list of all attributes with a (non-unique) secondary index, e.g. used by findByAttribute.
+     * The uuid of all types handled by the database is always indexed.
+     * Missing indexes are created while opening the database, on existing databases in the background.
+     */
+    public static final Map<Class<? extends PersistentObject>, List<String>> INDEXED_ATTRIBUTES;
+    static {
+        INDEXED_ATTRIBUTES = new HashMap<>();
+        INDEXED_ATTRIBUTES.put(LocationData.class, List.of("trackUUID"));
+        INDEXED_ATTRIBUTES.put(RunningPlan.class, List.of("orderNumber"));
+        INDEXED_ATTRIBUTES.put(Track.class, List.of("startTimeInMilli"));
+        INDEXED_ATTRIBUTES.put(Training.class, List.of("trainingDate"));
+    }
+
+    /**
+     * The upgrades of the saved documents of a type. The upgrade at index i upgrades a document
+     * from schema version i to i + 1, the current schema version of a type is the number of upgrades.
+     * Documents without version have the version 0. The upgrades run while reading a document,
+     * the upgraded document is written with the next change of the object or by the background migration.
+     */
+    public static final Map<Class<? extends PersistentObject>, List<SchemaUpgrade>> SCHEMA_UPGRADES;
+    static {
+        SCHEMA_UPGRADES = new HashMap<>();
+    }
+
     /**
      * Training parameter
      */
@@ -0,0 +1,329 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.model.UUID;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.IndexOptions;
+import org.dizitart.no2.IndexType;
+import org.dizitart.no2.Nitrite;
+import org.dizitart.no2.NitriteCollection;
+import org.dizitart.no2.UpdateOptions;
+import org.dizitart.no2.filters.Filters;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A hash tree (Merkle tree) over the objects of the datastore, to find the differences of two replicas
+ * without comparing all objects. Every object has a hash of its type, its uuid and its document.
+ * The objects are distributed to the buckets (leaves) of the tree by the hash of their type and uuid.
+ * Every node has 16 children, the hash of a node combines the hashes of its objects with XOR,
+ * so that the tree is updated with every change of an object along the path of its bucket.
+ * The hashes of the objects and of the buckets are saved with the objects in the same transaction,
+ * the upper levels are calculated while loading.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ * @see AntiEntropy
+ */
+final class HashTree {
+
+    static final int FANOUT = 16;
+    private static final int BITS_PER_LEVEL = 4;
+    private static final String ENTRY_COLLECTION = "hashtree-entries";
+    private static final String BUCKET_COLLECTION = "hashtree-buckets";
+    private static final String KEY_ATTRIBUTE = "key";
+    private static final String BUCKET_ATTRIBUTE = "bucket";
+    private static final String HASH_ATTRIBUTE = "hash";
+    private static final int COMPLETE_MARKER = -1; // bucket of the document, which marks a complete tree
+
+    private final Nitrite database;
+    private final int depth;
+    private long[][] levels; // hashes of the nodes for each level, the root is level 0, null if the tree is empty
+    private boolean isComplete; // all objects are contained in the tree
+
+    /**
+     * Load the tree of a database.
+     *
+     * @param database with the tree
+     * @param depth number of levels below the root
+     */
+    HashTree(@NotNull Nitrite database, int depth) {
+        this.database = database;
+        this.depth = Math.max(1, Math.min(depth, 5));
+        load();
+    }
+
+    /**
+     * Get the number of levels below the root. The buckets are on the last level.
+     *
+     * @return The depth of the tree
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Get a flag to determine if all objects are contained in the tree.
+     * The tree is maintained with every change, if it is complete.
+     *
+     * @return A flag to determine if the tree is complete
+     */
+    synchronized boolean isComplete() {
+        return isComplete;
+    }
+
+    /**
+     * Mark the tree as complete, e.g. after adding all objects. Must be called in a transaction of the datastore.
+     *
+     * @param isComplete a flag to determine if all objects are contained in the tree
+     */
+    synchronized void setComplete(boolean isComplete) {
+        NitriteCollection buckets = bucketCollection();
+        if (isComplete) {
+            buckets.update(Filters.eq(BUCKET_ATTRIBUTE, COMPLETE_MARKER),
+                    Document.createDocument(BUCKET_ATTRIBUTE, COMPLETE_MARKER), UpdateOptions.updateOptions(true));
+        } else {
+            buckets.remove(Filters.eq(BUCKET_ATTRIBUTE, COMPLETE_MARKER));
+        }
+        this.isComplete = isComplete;
+    }
+
+    /**
+     * Set the hash of an object, after the object was added, changed or removed.
+     * Must be called in a transaction of the datastore.
+     *
+     * @param key of the object
+     * @param document of the object or null, if the object was removed
+     */
+    synchronized void update(@NotNull String key, @Null Document document) {
+        NitriteCollection entries = entryCollection();
+        Document savedEntry = entries.find(Filters.eq(KEY_ATTRIBUTE, key)).firstOrDefault();
+        long savedHash = savedEntry == null ? 0 : ((Number) savedEntry.get(HASH_ATTRIBUTE)).longValue();
+        long hash = document == null ? 0 : hashOf(key, document);
+        if (hash == savedHash) {
+            return;
+        }
+        int bucket = bucketOf(key);
+        if (document == null) {
+            entries.remove(Filters.eq(KEY_ATTRIBUTE, key));
+        } else if (savedEntry == null) {
+            Document entry = Document.createDocument(KEY_ATTRIBUTE, key);
+            entry.put(BUCKET_ATTRIBUTE, bucket);
+            entry.put(HASH_ATTRIBUTE, hash);
+            entries.insert(entry);
+        } else {
+            entries.update(Filters.eq(KEY_ATTRIBUTE, key), Document.createDocument(HASH_ATTRIBUTE, hash));
+        }
+        // the old hash is removed and the new hash is added on every level
+        if (levels == null) {
+            levels = emptyLevels();
+        }
+        long difference = savedHash ^ hash;
+        int index = bucket;
+        for (int level = depth; level >= 0; level--) {
+            levels[level][index] ^= difference;
+            index /= FANOUT;
+        }
+        Document bucketDocument = Document.createDocument(BUCKET_ATTRIBUTE, bucket);
+        bucketDocument.put(HASH_ATTRIBUTE, levels[depth][bucket]);
+        bucketCollection().update(Filters.eq(BUCKET_ATTRIBUTE, bucket), bucketDocument,
+                UpdateOptions.updateOptions(true));
+    }
+
+    /**
+     * Remove all objects from the tree. The tree remains complete, e.g. if all objects were removed.
+     * Must be called in a transaction of the datastore.
+     */
+    synchronized void clear() {
+        entryCollection().remove(Filters.ALL);
+        bucketCollection().remove(Filters.gte(BUCKET_ATTRIBUTE, 0));
+        levels = null;
+    }
+
+    /**
+     * The changes of the transaction were discarded, the tree is loaded again.
+     */
+    synchronized void didRollback() {
+        load();
+    }
+
+    /**
+     * Get the hash of all objects.
+     *
+     * @return The hash of the root, 0 if the tree is empty
+     */
+    synchronized long getRootHash() {
+        return levels == null ? 0 : levels[0][0];
+    }
+
+    /**
+     * Get the hashes of the children of a node.
+     *
+     * @param level of the node, 0 for the root
+     * @param index of the node in its level
+     * @return The hashes of the children, 0 for children without objects
+     */
+    synchronized long[] getChildHashes(int level, int index) {
+        if (level < 0 || level >= depth || index < 0 || index >= nodesOf(level)) {
+            throw new IllegalArgumentException("The tree has no node " + index + " on level " + level + ".");
+        }
+        long[] hashes = new long[FANOUT];
+        if (levels != null) {
+            System.arraycopy(levels[level + 1], index * FANOUT, hashes, 0, FANOUT);
+        }
+        return hashes;
+    }
+
+    /**
+     * Get the objects of a bucket with their hashes.
+     *
+     * @param bucket index of the bucket in the last level
+     * @return The hashes of the objects by their keys
+     */
+    synchronized Map<String, Long> getEntries(int bucket) {
+        Map<String, Long> entries = new HashMap<>();
+        for (Document entry : entryCollection().find(Filters.eq(BUCKET_ATTRIBUTE, bucket))) {
+            entries.put((String) entry.get(KEY_ATTRIBUTE), ((Number) entry.get(HASH_ATTRIBUTE)).longValue());
+        }
+        return entries;
+    }
+
+    /**
+     * Get the key of an object in the tree, unique for all types.
+     *
+     * @param type of the object
+     * @param uuid of the object
+     * @return The key of the object
+     */
+    static String keyOf(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid) {
+        return type.getName() + "/" + uuid.getString();
+    }
+
+    // the hashes of the buckets are saved, the other levels are calculated
+    private void load() {
+        levels = null;
+        isComplete = false;
+        if (!database.hasCollection(BUCKET_COLLECTION)) {
+            return;
+        }
+        for (Document document : bucketCollection().find()) {
+            int bucket = ((Number) document.get(BUCKET_ATTRIBUTE)).intValue();
+            if (bucket == COMPLETE_MARKER) {
+                isComplete = true;
+            } else if (bucket >= 0 && bucket < nodesOf(depth)) {
+                if (levels == null) {
+                    levels = emptyLevels();
+                }
+                levels[depth][bucket] = ((Number) document.get(HASH_ATTRIBUTE)).longValue();
+            }
+        }
+        if (levels == null) {
+            return;
+        }
+        for (int level = depth - 1; level >= 0; level--) {
+            for (int index = 0; index < levels[level + 1].length; index++) {
+                levels[level][index / FANOUT] ^= levels[level + 1][index];
+            }
+        }
+    }
+
+    private long[][] emptyLevels() {
+        long[][] emptyLevels = new long[depth + 1][];
+        for (int level = 0; level <= depth; level++) {
+            emptyLevels[level] = new long[nodesOf(level)];
+        }
+        return emptyLevels;
+    }
+
+    private int nodesOf(int level) {
+        return 1 << (BITS_PER_LEVEL * level);
+    }
+
+    // the first bits of the hash of the key
+    private int bucketOf(@NotNull String key) {
+        long hash = digestOf(key.getBytes(StandardCharsets.UTF_8));
+        return (int) (hash >>> (Long.SIZE - BITS_PER_LEVEL * depth));
+    }
+
+    private NitriteCollection entryCollection() {
+        NitriteCollection entries = database.getCollection(ENTRY_COLLECTION);
+        if (!entries.hasIndex(KEY_ATTRIBUTE)) {
+            entries.createIndex(KEY_ATTRIBUTE, IndexOptions.indexOptions(IndexType.Unique));
+            entries.createIndex(BUCKET_ATTRIBUTE, IndexOptions.indexOptions(IndexType.NonUnique));
+        }
+        return entries;
+    }
+
+    private NitriteCollection bucketCollection() {
+        NitriteCollection buckets = database.getCollection(BUCKET_COLLECTION);
+        if (!buckets.hasIndex(BUCKET_ATTRIBUTE)) {
+            buckets.createIndex(BUCKET_ATTRIBUTE, IndexOptions.indexOptions(IndexType.Unique));
+        }
+        return buckets;
+    }
+
+    // the hash of the key and the document with sorted attributes,
+    // equal objects have the same hash on every replica
+    private static long hashOf(@NotNull String key, @NotNull Document document) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (DataOutputStream outputStream = new DataOutputStream(
+                    new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+                outputStream.writeUTF(key);
+                SnapshotFile.writeDocument(outputStream, (Document) canonicalOf(document));
+            }
+            long hash = ByteBuffer.wrap(digest.digest()).getLong();
+            // 0 is the hash of a missing object
+            return hash == 0 ? 1 : hash;
+        } catch (NoSuchAlgorithmException | IOException exception) {
+            throw new IllegalStateException("The hash of the object " + key + " could not be calculated.", exception);
+        }
+    }
+
+    private static long digestOf(@NotNull byte[] bytes) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(bytes)).getLong();
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-256 is not available.", exception);
+        }
+    }
+
+    // the attributes of the datastore (e.g. the id) are not part of the object
+    @SuppressWarnings("unchecked")
+    private static Object canonicalOf(@Null Object value) {
+        if (value instanceof Map) {
+            TreeMap<String, Object> sortedAttributes = new TreeMap<>();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                if (!entry.getKey().startsWith("_")) {
+                    sortedAttributes.put(entry.getKey(), canonicalOf(entry.getValue()));
+                }
+            }
+            return new Document(sortedAttributes);
+        }
+        if (value instanceof List) {
+            List<Object> canonicalList = new ArrayList<>();
+            for (Object element : (List<Object>) value) {
+                canonicalList.add(canonicalOf(element));
+            }
+            return canonicalList;
+        }
+        return value;
+    }
+}
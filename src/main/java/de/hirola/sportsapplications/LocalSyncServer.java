@@ -0,0 +1,116 @@
+package de.hirola.sportsapplications;
+
+import javax.validation.constraints.NotNull;
+import org.dizitart.no2.Document;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A synchronization server in this JVM, e.g. for tests or for devices in one process.
+ * The server keeps the last change of every object in memory. Every accepted change gets
+ * the next version of the server. A change is rejected as conflict, if it is not based
+ * on the current version of the object. The changes of a device are not sent back to the device.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ * @see SyncEngine
+ */
+public final class LocalSyncServer implements SyncEngine.Transport {
+
+    private static final String DEVICE_ATTRIBUTE = "device";
+
+    private final Map<String, Document> objects; // last change by the key of the object
+    private final TreeMap<Long, String> versions; // key of the object by the version of its last change
+    private long version;
+    private long receivedChanges;
+
+    /**
+     * Create an empty server.
+     */
+    public LocalSyncServer() {
+        objects = new HashMap<>();
+        versions = new TreeMap<>();
+    }
+
+    @Override
+    public synchronized byte[] push(@NotNull String deviceId, @NotNull byte[] payload) throws SportsLibraryException {
+        List<Document> response = new ArrayList<>();
+        for (Document change : SyncBatch.decode(payload)) {
+            String key = SyncBatch.keyOf(change);
+            Document currentChange = objects.get(key);
+            long currentVersion = currentChange == null ? 0 : SyncBatch.versionOf(currentChange);
+            if (SyncBatch.versionOf(change) != currentVersion) {
+                // the device has not seen the current version
+                Document conflict = new Document(currentChange);
+                conflict.remove(DEVICE_ATTRIBUTE);
+                conflict.put(SyncBatch.IS_CONFLICT_ATTRIBUTE, true);
+                response.add(conflict);
+                continue;
+            }
+            version++;
+            receivedChanges++;
+            Document savedChange = new Document(change);
+            savedChange.put(SyncBatch.VERSION_ATTRIBUTE, version);
+            savedChange.put(DEVICE_ATTRIBUTE, deviceId);
+            versions.remove(currentVersion);
+            versions.put(version, key);
+            objects.put(key, savedChange);
+            Document acceptedChange = Document.createDocument(SyncBatch.TYPE_ATTRIBUTE,
+                    change.get(SyncBatch.TYPE_ATTRIBUTE));
+            acceptedChange.put(SyncBatch.UUID_ATTRIBUTE, change.get(SyncBatch.UUID_ATTRIBUTE));
+            acceptedChange.put(SyncBatch.VERSION_ATTRIBUTE, version);
+            response.add(acceptedChange);
+        }
+        return SyncBatch.encode(response);
+    }
+
+    @Override
+    public synchronized byte[] pull(@NotNull String deviceId, long cursor, int limit) throws SportsLibraryException {
+        List<Document> changes = new ArrayList<>();
+        long lastVersion = cursor;
+        boolean hasMore = false;
+        for (Map.Entry<Long, String> entry : versions.tailMap(cursor, false).entrySet()) {
+            if (changes.size() >= limit) {
+                hasMore = true;
+                break;
+            }
+            lastVersion = entry.getKey();
+            Document change = objects.get(entry.getValue());
+            if (!deviceId.equals(change.get(DEVICE_ATTRIBUTE))) {
+                Document sentChange = new Document(change);
+                sentChange.remove(DEVICE_ATTRIBUTE);
+                changes.add(sentChange);
+            }
+        }
+        // the first document contains the position of the device
+        Document header = Document.createDocument(SyncBatch.CURSOR_ATTRIBUTE, lastVersion);
+        header.put(SyncBatch.HAS_MORE_ATTRIBUTE, hasMore);
+        changes.add(0, header);
+        return SyncBatch.encode(changes);
+    }
+
+    /**
+     * Get the number of changes accepted by the server.
+     *
+     * @return The number of accepted changes
+     */
+    public synchronized long getReceivedChanges() {
+        return receivedChanges;
+    }
+
+    /**
+     * Get the number of objects known by the server, including the removed objects.
+     *
+     * @return The number of objects
+     */
+    public synchronized int getNumberOfObjects() {
+        return objects.size();
+    }
+}
@@ -38,7 +38,7 @@ final class LogManager {
      * @param isDebugMode of logging on or off
      * @return The logger object for logging.
      */
-    public static LogManager getInstance(@NotNull File loggingDirectory, boolean isDebugMode) {
+    public static synchronized LogManager getInstance(@NotNull File loggingDirectory, boolean isDebugMode) {
         if (instance == null) {
             instance = new LogManager(loggingDirectory, isDebugMode);
         }
@@ -0,0 +1,240 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.CacheStatistics;
+import de.hirola.sportsapplications.database.DatastoreDelegate;
+import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.model.Track;
+import de.hirola.sportsapplications.model.UUID;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+
+import java.util.*;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A size limited cache for objects read from the datastore, the least recently used objects
+ * are removed first. The objects are removed from the cache with the events of the datastore.
+ * Embedded objects are not cached, because they are changed with their parent.
+ * The cache contains the decoded objects and every request gets a copy, so that the objects
+ * are not decoded again and unsaved changes of an object are not seen by other readers.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+final class ObjectCache implements DatastoreDelegate {
+
+    private static final String ALL_OBJECTS_KEY = "*";
+
+    private static final class CacheEntry {
+        private final Object value;
+        private final long weight;
+
+        private CacheEntry(@NotNull Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxWeight;
+    private final LinkedHashMap<String, CacheEntry> entries; // in access order
+    private final Map<Class<? extends PersistentObject>, Long> generations; // changed with every event
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create an empty cache.
+     *
+     * @param maxWeight maximum size of the cache, an object has the weight 1,
+     *                  a track the weight 1 plus the number of locations
+     */
+    ObjectCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        generations = new HashMap<>();
+    }
+
+    /**
+     * Get a cached object.
+     *
+     * @param type of the object
+     * @param uuid of the object
+     * @return A copy of the cached object or null, if the object is not cached.
+     */
+    @Null
+    synchronized PersistentObject get(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid) {
+        if (!isCacheable(type)) {
+            return null;
+        }
+        CacheEntry entry = entries.get(keyOf(type, uuid.getString()));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return ((PersistentObject) entry.value).copy();
+    }
+
+    /**
+     * Get all cached objects of a type. The list contains the objects,
+     * only if all objects of the type were cached with a single call.
+     *
+     * @param type of the objects
+     * @return Copies of the cached objects or null, if the objects are not cached.
+     */
+    @Null
+    @SuppressWarnings("unchecked")
+    synchronized List<PersistentObject> getAll(@NotNull Class<? extends PersistentObject> type) {
+        if (!isCacheable(type)) {
+            return null;
+        }
+        CacheEntry entry = entries.get(keyOf(type, ALL_OBJECTS_KEY));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        List<PersistentObject> objects = new ArrayList<>();
+        for (PersistentObject object : (List<PersistentObject>) entry.value) {
+            objects.add(object.copy());
+        }
+        return objects;
+    }
+
+    /**
+     * Get the generation of a type. The generation is changed, if an object of the type is changed.
+     * It must be requested before the object is read from the datastore.
+     *
+     * @param type of the objects
+     * @return The generation of the type
+     */
+    synchronized long generationOf(@NotNull Class<? extends PersistentObject> type) {
+        return generations.getOrDefault(type, 0L);
+    }
+
+    /**
+     * Add a copy of an object to the cache, if no object of the type was changed
+     * while the object was read from the datastore.
+     *
+     * @param type of the object
+     * @param uuid of the object
+     * @param object with its embedded objects and its saved document
+     * @param generation of the type before the object was read
+     */
+    synchronized void put(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid,
+                          @NotNull PersistentObject object, long generation) {
+        if (isCacheable(type) && generationOf(type) == generation) {
+            putEntry(keyOf(type, uuid.getString()), object.copy(), weightOf(object));
+        }
+    }
+
+    /**
+     * Add copies of all objects of a type to the cache, if no object of the type was changed
+     * while the objects were read from the datastore.
+     *
+     * @param type of the objects
+     * @param objects all objects of the type with their embedded objects and their saved documents
+     * @param generation of the type before the objects were read
+     */
+    synchronized void putAll(@NotNull Class<? extends PersistentObject> type,
+                             @NotNull List<? extends PersistentObject> objects, long generation) {
+        if (isCacheable(type) && generationOf(type) == generation) {
+            long weightOfObjects = 1;
+            List<PersistentObject> copies = new ArrayList<>(objects.size());
+            for (PersistentObject object : objects) {
+                weightOfObjects += weightOf(object);
+                copies.add(object.copy());
+            }
+            putEntry(keyOf(type, ALL_OBJECTS_KEY), copies, weightOfObjects);
+        }
+    }
+
+    /**
+     * Remove an object and the list with all objects of the type from the cache.
+     *
+     * @param type of the object
+     * @param uuid of the object
+     */
+    synchronized void invalidate(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid) {
+        generations.merge(type, 1L, Long::sum);
+        removeEntry(keyOf(type, uuid.getString()));
+        removeEntry(keyOf(type, ALL_OBJECTS_KEY));
+    }
+
+    /**
+     * Remove all objects from the cache, e.g. after changes without events.
+     */
+    synchronized void clear() {
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            generations.merge(type, 1L, Long::sum);
+        }
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Get the counters of the cache.
+     *
+     * @return The counters of the cache
+     */
+    synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(hits, misses, evictions, weight);
+    }
+
+    @Override
+    public void didObjectAdded(PersistentObject persistentObject) {
+        invalidate(persistentObject.getClass(), persistentObject.getUUID());
+    }
+
+    @Override
+    public void didObjectUpdated(PersistentObject persistentObject) {
+        invalidate(persistentObject.getClass(), persistentObject.getUUID());
+    }
+
+    @Override
+    public void didObjectRemoved(PersistentObject persistentObject) {
+        invalidate(persistentObject.getClass(), persistentObject.getUUID());
+    }
+
+    private void putEntry(@NotNull String key, @NotNull Object value, long weightOfValue) {
+        if (weightOfValue > maxWeight) {
+            return;
+        }
+        removeEntry(key);
+        entries.put(key, new CacheEntry(value, weightOfValue));
+        weight += weightOfValue;
+        // remove the least recently used entries
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            weight -= iterator.next().weight;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private void removeEntry(@NotNull String key) {
+        CacheEntry entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    private boolean isCacheable(@NotNull Class<? extends PersistentObject> type) {
+        return !Global.CASCADING_DELETED_CLASSES.contains(type);
+    }
+
+    // the locations are embedded in a track
+    private long weightOf(@NotNull PersistentObject object) {
+        if (object instanceof Track) {
+            return 1L + ((Track) object).getLocations().size();
+        }
+        return 1L;
+    }
+
+    private String keyOf(@NotNull Class<? extends PersistentObject> type, @NotNull String uuid) {
+        return type.getName() + ':' + uuid;
+    }
+}
@@ -0,0 +1,287 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.util.DateUtil;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+import org.dizitart.no2.Filter;
+import org.dizitart.no2.FindOptions;
+import org.dizitart.no2.SortOrder;
+import org.dizitart.no2.filters.Filters;
+
+import java.time.LocalDate;
+import java.util.Collection;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A query for objects of a type with conditions, sorting and paging.
+ * The conditions, the sort order and the page are passed to the datastore, so that only
+ * the objects of the result are read and only the objects of the page are created.
+ * Conditions on an indexed attribute use the index, e.g. the date of a training.
+ * Sorting reads the attribute of all matching objects, a query with sorting and
+ * without condition on an indexed attribute reads all objects of the type.
+ *
+ * <pre>
+ * Query&lt;Training&gt; query = Query.of(Training.class)
+ *         .where(Query.between("trainingDate", firstDay, lastDay))
+ *         .sortBy("trainingDate", true)
+ *         .limit(50);
+ * List&lt;Training&gt; trainings = sportsLibrary.find(query);
+ * </pre>
+ *
+ * The names of the attributes are the names in the datastore, e.g. the names of the fields.
+ * Dates (LocalDate) are compared like they are saved, as date at the start of the day.
+ *
+ * @param <T> type of the objects
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ * @see Global#INDEXED_ATTRIBUTES
+ */
+public final class Query<T extends PersistentObject> {
+
+    /**
+     * A condition for the attributes of the objects.
+     */
+    public static final class Condition {
+        private final Filter filter;
+
+        private Condition(@NotNull Filter filter) {
+            this.filter = filter;
+        }
+    }
+
+    private final Class<T> type;
+    private Condition condition; // all objects, if null
+    private String sortAttribute; // no order, if null
+    private boolean isAscending;
+    private int offset;
+    private int limit; // all objects, if 0
+
+    private Query(@NotNull Class<T> type) {
+        this.type = type;
+        isAscending = true;
+    }
+
+    /**
+     * Create a query for all objects of a type.
+     *
+     * @param type of the objects
+     * @param <T> type of the objects
+     * @return A query for all objects of the type
+     */
+    public static <T extends PersistentObject> Query<T> of(@NotNull Class<T> type) {
+        return new Query<>(type);
+    }
+
+    /**
+     * Get the objects which are equal to the value in the attribute.
+     *
+     * @param attributeName of the objects
+     * @param value of the attribute
+     * @return A condition for the attribute
+     */
+    public static Condition eq(@NotNull String attributeName, @Null Object value) {
+        return new Condition(Filters.eq(attributeName, valueOf(value)));
+    }
+
+    /**
+     * Get the objects which are greater than the value in the attribute.
+     *
+     * @param attributeName of the objects
+     * @param value of the attribute
+     * @return A condition for the attribute
+     */
+    public static Condition gt(@NotNull String attributeName, @NotNull Object value) {
+        return new Condition(Filters.gt(attributeName, valueOf(value)));
+    }
+
+    /**
+     * Get the objects which are greater than or equal to the value in the attribute.
+     *
+     * @param attributeName of the objects
+     * @param value of the attribute
+     * @return A condition for the attribute
+     */
+    public static Condition gte(@NotNull String attributeName, @NotNull Object value) {
+        return new Condition(Filters.gte(attributeName, valueOf(value)));
+    }
+
+    /**
+     * Get the objects which are less than the value in the attribute.
+     *
+     * @param attributeName of the objects
+     * @param value of the attribute
+     * @return A condition for the attribute
+     */
+    public static Condition lt(@NotNull String attributeName, @NotNull Object value) {
+        return new Condition(Filters.lt(attributeName, valueOf(value)));
+    }
+
+    /**
+     * Get the objects which are less than or equal to the value in the attribute.
+     *
+     * @param attributeName of the objects
+     * @param value of the attribute
+     * @return A condition for the attribute
+     */
+    public static Condition lte(@NotNull String attributeName, @NotNull Object value) {
+        return new Condition(Filters.lte(attributeName, valueOf(value)));
+    }
+
+    /**
+     * Get the objects with a value in the attribute within the range, including both values.
+     *
+     * @param attributeName of the objects
+     * @param fromValue first value of the range
+     * @param toValue last value of the range
+     * @return A condition for the attribute
+     */
+    public static Condition between(@NotNull String attributeName, @NotNull Object fromValue,
+                                    @NotNull Object toValue) {
+        return and(gte(attributeName, fromValue), lte(attributeName, toValue));
+    }
+
+    /**
+     * Get the objects with one of the values in the attribute.
+     *
+     * @param attributeName of the objects
+     * @param values of the attribute
+     * @return A condition for the attribute
+     */
+    public static Condition in(@NotNull String attributeName, @NotNull Collection<?> values) {
+        Object[] filterValues = new Object[values.size()];
+        int index = 0;
+        for (Object value : values) {
+            filterValues[index++] = valueOf(value);
+        }
+        return new Condition(Filters.in(attributeName, filterValues));
+    }
+
+    /**
+     * Get the objects matching all conditions.
+     *
+     * @param conditions for the objects
+     * @return A condition combining the conditions
+     */
+    public static Condition and(@NotNull Condition... conditions) {
+        return new Condition(Filters.and(filtersOf(conditions)));
+    }
+
+    /**
+     * Get the objects matching at least one of the conditions.
+     *
+     * @param conditions for the objects
+     * @return A condition combining the conditions
+     */
+    public static Condition or(@NotNull Condition... conditions) {
+        return new Condition(Filters.or(filtersOf(conditions)));
+    }
+
+    /**
+     * Get the objects not matching the condition.
+     *
+     * @param condition for the objects
+     * @return A condition negating the condition
+     */
+    public static Condition not(@NotNull Condition condition) {
+        return new Condition(Filters.not(condition.filter));
+    }
+
+    /**
+     * Restrict the query to the objects matching the condition.
+     * A condition set before will be combined with the condition.
+     *
+     * @param condition for the objects
+     * @return The query
+     */
+    public Query<T> where(@NotNull Condition condition) {
+        this.condition = this.condition == null ? condition : and(this.condition, condition);
+        return this;
+    }
+
+    /**
+     * Sort the objects by an attribute. Only one attribute can be used for sorting.
+     * To get a stable order between the pages, the attribute should be unique.
+     *
+     * @param attributeName of the objects
+     * @param isAscending a flag to determine the order
+     * @return The query
+     */
+    public Query<T> sortBy(@NotNull String attributeName, boolean isAscending) {
+        sortAttribute = attributeName;
+        this.isAscending = isAscending;
+        return this;
+    }
+
+    /**
+     * Skip the first objects, e.g. for the next page.
+     *
+     * @param offset number of objects to skip
+     * @return The query
+     */
+    public Query<T> offset(int offset) {
+        this.offset = Math.max(0, offset);
+        return this;
+    }
+
+    /**
+     * Limit the number of objects, e.g. to the size of a page.
+     *
+     * @param limit maximum number of objects, 0 for all objects
+     * @return The query
+     */
+    public Query<T> limit(int limit) {
+        this.limit = Math.max(0, limit);
+        return this;
+    }
+
+    /**
+     * Get the type of the objects.
+     *
+     * @return The type of the objects
+     */
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Null
+    Filter getFilter() {
+        return condition == null ? null : condition.filter;
+    }
+
+    @Null
+    FindOptions getFindOptions() {
+        if (sortAttribute == null && offset == 0 && limit == 0) {
+            return null;
+        }
+        // the datastore needs a limit for the offset
+        int size = limit == 0 ? Integer.MAX_VALUE - offset : limit;
+        if (sortAttribute == null) {
+            return FindOptions.limit(offset, size);
+        }
+        FindOptions findOptions = FindOptions.sort(sortAttribute,
+                isAscending ? SortOrder.Ascending : SortOrder.Descending);
+        if (offset > 0 || limit > 0) {
+            findOptions.thenLimit(offset, size);
+        }
+        return findOptions;
+    }
+
+    // the dates are saved as date
+    private static Object valueOf(@Null Object value) {
+        if (value instanceof LocalDate) {
+            return DateUtil.getDateFromLocalDate((LocalDate) value);
+        }
+        return value;
+    }
+
+    private static Filter[] filtersOf(@NotNull Condition[] conditions) {
+        Filter[] filters = new Filter[conditions.length];
+        for (int i = 0; i < conditions.length; i++) {
+            filters[i] = conditions[i].filter;
+        }
+        return filters;
+    }
+}
@@ -0,0 +1,173 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.database.SchemaUpgrade;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.mapper.NitriteMapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Maps the objects of the datastore with their schema version. Documents are saved with
+ * the current schema version of their type. Documents with an older version are upgraded
+ * before they are mapped to an object, the saved document is not changed. The object
+ * is marked, so that the upgraded document is written with the next change.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ * @see Global#SCHEMA_UPGRADES
+ */
+final class SchemaMapper implements NitriteMapper {
+
+    static final String SCHEMA_VERSION_ATTRIBUTE = "schemaVersion";
+
+    private final NitriteMapper mapper;
+
+    /**
+     * Create a mapper with the schema versions.
+     *
+     * @param mapper for the objects and documents
+     */
+    SchemaMapper(@NotNull NitriteMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    @Override
+    public <T> Document asDocument(T object) {
+        Document document = mapper.asDocument(object);
+        if (object instanceof PersistentObject && document != null) {
+            stamp(document, ((PersistentObject) object).getClass());
+        }
+        return document;
+    }
+
+    @Override
+    public <T> T asObject(Document document, Class<T> type) {
+        if (document == null || !PersistentObject.class.isAssignableFrom(type) || !isOutdated(document, type)) {
+            return mapper.asObject(document, type);
+        }
+        T object = mapper.asObject(upgraded(document, type), type);
+        if (object != null) {
+            ((PersistentObject) object).setSchemaOutdated(true);
+        }
+        return object;
+    }
+
+    @Override
+    public boolean isValueType(Object object) {
+        return mapper.isValueType(object);
+    }
+
+    @Override
+    public Object asValue(Object object) {
+        return mapper.asValue(object);
+    }
+
+    /**
+     * Get the current schema version of a type.
+     *
+     * @param type of the objects
+     * @return The current schema version, 0 if the schema was never upgraded
+     */
+    static int currentVersionOf(@NotNull Class<?> type) {
+        return upgradesOf(type).size();
+    }
+
+    /**
+     * Get the schema version of a saved document.
+     *
+     * @param document of an object
+     * @return The schema version of the document, 0 if the document has no version
+     */
+    static int versionOf(@NotNull Document document) {
+        Object version = document.get(SCHEMA_VERSION_ATTRIBUTE);
+        return version instanceof Number ? ((Number) version).intValue() : 0;
+    }
+
+    /**
+     * Set the current schema version of the type in a document, which is saved.
+     *
+     * @param document of an object
+     * @param type of the object
+     * @return The document
+     */
+    static Document stamp(@NotNull Document document, @NotNull Class<?> type) {
+        document.put(SCHEMA_VERSION_ATTRIBUTE, currentVersionOf(type));
+        return document;
+    }
+
+    /**
+     * Get a flag to determine if a saved document has an older schema than the type.
+     *
+     * @param document of an object
+     * @param type of the object
+     * @return A flag to determine if the document must be upgraded
+     */
+    static boolean isOutdated(@NotNull Document document, @NotNull Class<?> type) {
+        return versionOf(document) < currentVersionOf(type);
+    }
+
+    /**
+     * Get a copy of a document upgraded to the current schema of the type.
+     * The saved document is not changed.
+     *
+     * @param document of an object
+     * @param type of the object
+     * @return A copy of the document with the current schema or the document, if it has the current schema
+     */
+    static Document upgraded(@NotNull Document document, @NotNull Class<?> type) {
+        List<SchemaUpgrade> upgrades = upgradesOf(type);
+        int version = versionOf(document);
+        if (version >= upgrades.size()) {
+            return document;
+        }
+        // the documents of the store must not be changed
+        Document upgradedDocument = (Document) copyOf(document);
+        for (int i = version; i < upgrades.size(); i++) {
+            upgrades.get(i).upgrade(upgradedDocument);
+        }
+        return stamp(upgradedDocument, type);
+    }
+
+    private static List<SchemaUpgrade> upgradesOf(@NotNull Class<?> type) {
+        List<SchemaUpgrade> upgrades = Global.SCHEMA_UPGRADES.get(type);
+        return upgrades == null ? Collections.emptyList() : upgrades;
+    }
+
+    /**
+     * Get a deep copy of a value of a document, the documents, lists and dates are copied.
+     *
+     * @param value of a document
+     * @return A copy of the value or the value, if it is immutable
+     */
+    @SuppressWarnings("unchecked")
+    static Object copyOf(@Null Object value) {
+        if (value instanceof Document) {
+            Document copy = new Document();
+            for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+                copy.put(entry.getKey(), copyOf(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object element : (List<Object>) value) {
+                copy.add(copyOf(element));
+            }
+            return copy;
+        }
+        if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        return value;
+    }
+}
@@ -0,0 +1,377 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.model.UUID;
+import javax.validation.constraints.NotNull;
+import org.dizitart.no2.Document;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Reads and writes snapshots of the datastore. A snapshot file contains a header,
+ * the compressed documents of all collections and the checksum of the compressed documents.
+ * The values of the documents are written with a type tag, values of unknown types
+ * are serialized. A snapshot is written to a temporary file and renamed when it is complete,
+ * so that an existing snapshot is not replaced by an incomplete one.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+final class SnapshotFile {
+
+    /**
+     * Provides the documents of a collection while writing a snapshot.
+     */
+    interface DocumentSource {
+        Iterable<Document> documentsOf(@NotNull String collectionName);
+    }
+
+    /**
+     * Receives the documents of a collection while reading a snapshot.
+     */
+    interface DocumentSink {
+        void insert(@NotNull String collectionName, @NotNull List<Document> documents) throws SportsLibraryException;
+    }
+
+    private static final byte[] MAGIC = "SPORTSNP".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + Integer.BYTES + Long.BYTES;
+    private static final int TRAILER_SIZE = Long.BYTES; // checksum
+    private static final int BATCH_SIZE = 1000; // documents inserted together
+
+    private static final int NULL_VALUE = 0;
+    private static final int STRING_VALUE = 1;
+    private static final int LONG_VALUE = 2;
+    private static final int INTEGER_VALUE = 3;
+    private static final int DOUBLE_VALUE = 4;
+    private static final int FLOAT_VALUE = 5;
+    private static final int BOOLEAN_VALUE = 6;
+    private static final int DATE_VALUE = 7;
+    private static final int UUID_VALUE = 8;
+    private static final int DOCUMENT_VALUE = 9;
+    private static final int LIST_VALUE = 10;
+    private static final int SERIALIZED_VALUE = 11;
+
+    private static final int DOCUMENT_MARKER = 1;
+    private static final int END_MARKER = 0;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Write a snapshot of the collections.
+     *
+     * @param file of the snapshot, an existing file will be replaced
+     * @param collectionNames of the collections in the snapshot
+     * @param source of the documents
+     * @return The number of written documents
+     * @throws IOException if the snapshot could not be written
+     */
+    static long write(@NotNull File file, @NotNull List<String> collectionNames, @NotNull DocumentSource source)
+            throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temporaryFile = File.createTempFile(file.getName(), ".tmp", directory);
+        long numberOfDocuments = 0;
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+                 BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileOutputStream)) {
+                DataOutputStream headerOutputStream = new DataOutputStream(bufferedOutputStream);
+                headerOutputStream.write(MAGIC);
+                headerOutputStream.writeInt(FORMAT_VERSION);
+                headerOutputStream.writeLong(System.currentTimeMillis());
+                CheckedOutputStream checkedOutputStream = new CheckedOutputStream(
+                        new NonClosingOutputStream(bufferedOutputStream), new CRC32());
+                GZIPOutputStream gzipOutputStream = new GZIPOutputStream(checkedOutputStream, 64 * 1024);
+                DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(gzipOutputStream));
+                outputStream.writeInt(collectionNames.size());
+                for (String collectionName : collectionNames) {
+                    writeString(outputStream, collectionName);
+                    for (Document document : source.documentsOf(collectionName)) {
+                        outputStream.writeByte(DOCUMENT_MARKER);
+                        writeDocument(outputStream, document);
+                        numberOfDocuments++;
+                    }
+                    outputStream.writeByte(END_MARKER);
+                }
+                // the file is not closed with the compressed documents
+                outputStream.close();
+                headerOutputStream.writeLong(checkedOutputStream.getChecksum().getValue());
+                headerOutputStream.flush();
+                fileOutputStream.getFD().sync();
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile.toPath());
+        }
+        return numberOfDocuments;
+    }
+
+    /**
+     * Check the header and the checksum of a snapshot.
+     *
+     * @param file of the snapshot
+     * @throws SportsLibraryException if the file is not a snapshot or is damaged
+     * @throws IOException if the file could not be read
+     */
+    static void verify(@NotNull File file) throws SportsLibraryException, IOException {
+        long payloadSize = file.length() - HEADER_SIZE - TRAILER_SIZE;
+        if (payloadSize <= 0) {
+            throw new SportsLibraryException("The file " + file + " is not a snapshot.");
+        }
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            readHeader(inputStream, file);
+            CheckedInputStream checkedInputStream = new CheckedInputStream(inputStream, new CRC32());
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = payloadSize;
+            while (remaining > 0) {
+                int read = checkedInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                remaining -= read;
+            }
+            if (inputStream.readLong() != checkedInputStream.getChecksum().getValue()) {
+                throw new SportsLibraryException("The snapshot " + file + " is damaged.");
+            }
+        }
+    }
+
+    /**
+     * Read the documents of a snapshot. The snapshot should be verified before.
+     *
+     * @param file of the snapshot
+     * @param sink for the documents
+     * @return The number of read documents
+     * @throws SportsLibraryException if the file is not a snapshot or the documents could not be inserted
+     * @throws IOException if the file could not be read
+     */
+    static long read(@NotNull File file, @NotNull DocumentSink sink) throws SportsLibraryException, IOException {
+        long numberOfDocuments = 0;
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            DataInputStream headerInputStream = new DataInputStream(new BufferedInputStream(fileInputStream, 64 * 1024));
+            readHeader(headerInputStream, file);
+            DataInputStream inputStream = new DataInputStream(
+                    new BufferedInputStream(new GZIPInputStream(headerInputStream, 64 * 1024)));
+            int numberOfCollections = inputStream.readInt();
+            for (int i = 0; i < numberOfCollections; i++) {
+                String collectionName = readString(inputStream);
+                List<Document> documents = new ArrayList<>(BATCH_SIZE);
+                while (inputStream.readByte() == DOCUMENT_MARKER) {
+                    documents.add((Document) readValue(inputStream, DOCUMENT_VALUE));
+                    numberOfDocuments++;
+                    if (documents.size() == BATCH_SIZE) {
+                        sink.insert(collectionName, documents);
+                        documents = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!documents.isEmpty()) {
+                    sink.insert(collectionName, documents);
+                }
+            }
+            inputStream.close();
+        } catch (ClassNotFoundException | ClassCastException exception) {
+            throw new SportsLibraryException("The snapshot " + file + " contains unknown values: "
+                    + exception.getMessage());
+        }
+        return numberOfDocuments;
+    }
+
+    private static void readHeader(@NotNull DataInputStream inputStream, @NotNull File file)
+            throws SportsLibraryException, IOException {
+        byte[] magic = new byte[MAGIC.length];
+        inputStream.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new SportsLibraryException("The file " + file + " is not a snapshot.");
+        }
+        int formatVersion = inputStream.readInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new SportsLibraryException("The format " + formatVersion + " of the snapshot is not supported.");
+        }
+        inputStream.readLong(); // creation time
+    }
+
+    /**
+     * Write a document with its values, e.g. for the payloads of the synchronization.
+     *
+     * @param outputStream for the document
+     * @param document to be written
+     * @throws IOException if the document could not be written
+     */
+    static void writeDocument(@NotNull DataOutputStream outputStream, @NotNull Map<String, Object> document)
+            throws IOException {
+        outputStream.writeInt(document.size());
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            writeString(outputStream, entry.getKey());
+            writeValue(outputStream, entry.getValue());
+        }
+    }
+
+    /**
+     * Read a document written with writeDocument.
+     *
+     * @param inputStream with the document
+     * @return The document
+     * @throws IOException if the document could not be read
+     */
+    static Document readDocument(@NotNull DataInputStream inputStream) throws IOException {
+        try {
+            return (Document) readValue(inputStream, DOCUMENT_VALUE);
+        } catch (ClassNotFoundException exception) {
+            throw new IOException(exception);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(@NotNull DataOutputStream outputStream, Object value) throws IOException {
+        if (value == null) {
+            outputStream.writeByte(NULL_VALUE);
+        } else if (value instanceof String) {
+            outputStream.writeByte(STRING_VALUE);
+            writeString(outputStream, (String) value);
+        } else if (value instanceof Long) {
+            outputStream.writeByte(LONG_VALUE);
+            outputStream.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            outputStream.writeByte(INTEGER_VALUE);
+            outputStream.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            outputStream.writeByte(DOUBLE_VALUE);
+            outputStream.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            outputStream.writeByte(FLOAT_VALUE);
+            outputStream.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            outputStream.writeByte(BOOLEAN_VALUE);
+            outputStream.writeBoolean((Boolean) value);
+        } else if (value.getClass() == Date.class) {
+            outputStream.writeByte(DATE_VALUE);
+            outputStream.writeLong(((Date) value).getTime());
+        } else if (value.getClass() == UUID.class) {
+            outputStream.writeByte(UUID_VALUE);
+            writeString(outputStream, ((UUID) value).getString());
+        } else if (value.getClass() == Document.class) {
+            outputStream.writeByte(DOCUMENT_VALUE);
+            writeDocument(outputStream, (Document) value);
+        } else if (value.getClass() == ArrayList.class) {
+            List<Object> list = (List<Object>) value;
+            outputStream.writeByte(LIST_VALUE);
+            outputStream.writeInt(list.size());
+            for (Object element : list) {
+                writeValue(outputStream, element);
+            }
+        } else {
+            // e.g. arrays or other collections
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream)) {
+                objectOutputStream.writeObject(value);
+            }
+            outputStream.writeByte(SERIALIZED_VALUE);
+            outputStream.writeInt(byteArrayOutputStream.size());
+            byteArrayOutputStream.writeTo(outputStream);
+        }
+    }
+
+    private static Object readValue(@NotNull DataInputStream inputStream, int type)
+            throws IOException, ClassNotFoundException {
+        switch (type) {
+            case NULL_VALUE: return null;
+            case STRING_VALUE: return readString(inputStream);
+            case LONG_VALUE: return inputStream.readLong();
+            case INTEGER_VALUE: return inputStream.readInt();
+            case DOUBLE_VALUE: return inputStream.readDouble();
+            case FLOAT_VALUE: return inputStream.readFloat();
+            case BOOLEAN_VALUE: return inputStream.readBoolean();
+            case DATE_VALUE: return new Date(inputStream.readLong());
+            case UUID_VALUE: return new UUID(readString(inputStream));
+            case DOCUMENT_VALUE:
+                int numberOfEntries = inputStream.readInt();
+                Document document = new Document();
+                for (int i = 0; i < numberOfEntries; i++) {
+                    String key = readString(inputStream);
+                    document.put(key, readValue(inputStream, inputStream.readByte()));
+                }
+                return document;
+            case LIST_VALUE:
+                int size = inputStream.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(inputStream, inputStream.readByte()));
+                }
+                return list;
+            case SERIALIZED_VALUE:
+                byte[] bytes = new byte[inputStream.readInt()];
+                inputStream.readFully(bytes);
+                try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    objectInputStream.setObjectInputFilter(SnapshotFile::checkSerializedClass);
+                    return objectInputStream.readObject();
+                }
+            default:
+                throw new IOException("Unknown type " + type + " of a value in the snapshot.");
+        }
+    }
+
+    // only values of the datastore can be deserialized
+    private static ObjectInputFilter.Status checkSerializedClass(@NotNull ObjectInputFilter.FilterInfo filterInfo) {
+        Class<?> serializedClass = filterInfo.serialClass();
+        if (serializedClass == null) {
+            return ObjectInputFilter.Status.UNDECIDED;
+        }
+        while (serializedClass.isArray()) {
+            serializedClass = serializedClass.getComponentType();
+        }
+        String className = serializedClass.getName();
+        if (serializedClass.isPrimitive() || className.startsWith("java.") || className.startsWith("org.dizitart.")
+                || className.startsWith(Global.LIBRARY_PACKAGE_NAME + ".")) {
+            return ObjectInputFilter.Status.ALLOWED;
+        }
+        return ObjectInputFilter.Status.REJECTED;
+    }
+
+    // the length of strings is not limited to 64 KB like with writeUTF
+    private static void writeString(@NotNull DataOutputStream outputStream, @NotNull String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private static String readString(@NotNull DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[inputStream.readInt()];
+        inputStream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // the checksum is written to the file after the compressed documents, the file must stay open
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(@NotNull OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
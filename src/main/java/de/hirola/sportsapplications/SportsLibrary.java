@@ -1,19 +1,31 @@
 package de.hirola.sportsapplications;
 
+import de.hirola.sportsapplications.database.CacheStatistics;
+import de.hirola.sportsapplications.database.ChangeRecord;
+import de.hirola.sportsapplications.database.CompactionStatistics;
 import de.hirola.sportsapplications.database.DatastoreDelegate;
+import de.hirola.sportsapplications.database.DeliveryMode;
+import de.hirola.sportsapplications.database.LocationStorage;
 import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.database.StorageProfile;
 import de.hirola.sportsapplications.model.*;
 import de.hirola.sportsapplications.model.UUID;
+import de.hirola.sportsapplications.util.GPXManager;
 import de.hirola.sportsapplications.util.LogContent;
 import de.hirola.sportsapplications.util.TemplateLoader;
 
+import org.dizitart.no2.objects.ObjectFilter;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Null;
 import org.tinylog.Logger;
 
 import java.io.File;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.prefs.Preferences;
+import java.util.stream.Stream;
 
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
@@ -21,17 +33,27 @@ import java.util.prefs.Preferences;
  *
  * Initializes the library environment.
  * Sets up local data storage and loads program defaults.
+ * The library can be used by several threads.
  *
  * @author Michael Schmidt (Hirola)
  * @since v0.1
  */
 public final class SportsLibrary implements DatastoreDelegate {
 
+    /**
+     * A sequence of changes, which is saved in one transaction.
+     */
+    public interface Transaction {
+        void run() throws SportsLibraryException;
+    }
+
     private static SportsLibrary instance;
     private final DataRepository dataRepository;
     private final LogManager logManager;
-    private List<DatastoreDelegate> delegates;
+    private final EventDispatcher eventDispatcher =
+            new EventDispatcher(Global.MAX_PENDING_EVENTS, Global.EVENT_COALESCING_WINDOW_MILLIS);
     private final User appUser;
+    private final AsyncTaskRunner asyncTaskRunner = new AsyncTaskRunner();
 
     /**
      * Create a singleton library objekt.
@@ -44,17 +66,75 @@ public final class SportsLibrary implements DatastoreDelegate {
      * @param application on Android needed
      * @throws InstantiationException if library could not initialize
      */
-    public static SportsLibrary getInstance(boolean debugMode,
-                                            @Null Locale locale,
-                                            @Null File libDirectory,
-                                            @Null SportsLibraryApplication application)
+    public static synchronized SportsLibrary getInstance(boolean debugMode,
+                                                         @Null Locale locale,
+                                                         @Null File libDirectory,
+                                                         @Null SportsLibraryApplication application)
+            throws InstantiationException {
+        return getInstance(debugMode, locale, libDirectory, application, StorageProfile.DEFAULT);
+    }
+
+    /**
+     * Create a singleton library objekt with a profile for the local datastore,
+     * e.g. an in-memory datastore for tests. The profile is used only for the first instance.
+     *
+     * @param debugMode of the library
+     * @param locale used by the library
+     * @param libDirectory for the database and log files of library
+     * @param application on Android needed
+     * @param storageProfile for the local datastore
+     * @throws InstantiationException if library could not initialize
+     * @see StorageProfile
+     */
+    public static synchronized SportsLibrary getInstance(boolean debugMode,
+                                                         @Null Locale locale,
+                                                         @Null File libDirectory,
+                                                         @Null SportsLibraryApplication application,
+                                                         @NotNull StorageProfile storageProfile)
             throws InstantiationException {
         if (instance == null) {
-            instance = new SportsLibrary(debugMode, locale, libDirectory, application);
+            instance = new SportsLibrary(debugMode, locale, libDirectory, application, storageProfile, true, false);
         }
         return instance;
     }
 
+    /**
+     * Create a library object, which is not shared, e.g. for one of many users in a server.
+     * The library must be closed, if it is no longer used.
+     *
+     * @param debugMode of the library
+     * @param libDirectory for the database of the library
+     * @param storageProfile for the local datastore
+     * @return A new library object
+     * @throws InstantiationException if library could not initialize
+     * @see SportsLibraryPool
+     */
+    static SportsLibrary newInstance(boolean debugMode,
+                                     @NotNull File libDirectory,
+                                     @NotNull StorageProfile storageProfile) throws InstantiationException {
+        return new SportsLibrary(debugMode, null, libDirectory, null, storageProfile, false, false);
+    }
+
+    /**
+     * Open a library, which can only read the objects, e.g. for analytics and reports.
+     * All changes are refused with an exception. If the library of the directory is open in this JVM,
+     * the read-only library uses its database, its locks and its object cache and reads the committed objects,
+     * without blocking the readers of the library. Otherwise the database file is opened read-only,
+     * so that many processes can read it, but not while another process has opened it for writing.
+     * The library is not shared and must be closed, if it is no longer used.
+     *
+     * @param debugMode of the library
+     * @param libDirectory with the database of the library
+     * @param storageProfile for the local datastore, if the database is not open in this JVM
+     * @return A new read-only library object
+     * @throws InstantiationException if the database does not exist or could not be opened
+     */
+    public static SportsLibrary openReadOnly(boolean debugMode,
+                                             @NotNull File libDirectory,
+                                             @NotNull StorageProfile storageProfile) throws InstantiationException {
+        return new SportsLibrary(debugMode, null, libDirectory, null, storageProfile, false, true);
+    }
+
     /**
      * Create or get the directory for the app files. If no package name
      * given, the package name of this library will be used to create or get
@@ -122,17 +202,36 @@ public final class SportsLibrary implements DatastoreDelegate {
 
     /**
      * Add a delegate to the library to inform about datastore events.
+     * The delegate is informed synchronously about all objects.
      *
      * @param delegate to be added
      * @see DatastoreDelegate
      */
     public void addDelegate(@NotNull DatastoreDelegate delegate) {
-        if (delegates == null) {
-            delegates = new ArrayList<>();
-        }
-        if (!delegates.contains(delegate)) {
-            delegates.add(delegate);
-        }
+        addDelegate(delegate, DeliveryMode.SYNCHRONOUS, Collections.emptyList());
+    }
+
+    /**
+     * Add a delegate to the library to inform about datastore events of the given types.
+     * Asynchronous delegates are informed on a background thread, so that slow delegates
+     * do not delay the changes of the datastore. A previously added delegate will be replaced.
+     *
+     * @param delegate to be added
+     * @param deliveryMode of the events
+     * @param types of the objects, if empty the delegate is informed about all objects
+     * @see DatastoreDelegate
+     * @see DeliveryMode
+     */
+    public void addDelegate(@NotNull DatastoreDelegate delegate, @NotNull DeliveryMode deliveryMode,
+                            @NotNull Collection<Class<? extends PersistentObject>> types) {
+        eventDispatcher.subscribe(delegate, deliveryMode, types);
+    }
+
+    /**
+     * Inform the asynchronous delegates about all pending events on the calling thread.
+     */
+    public void flushEvents() {
+        eventDispatcher.flush();
     }
 
     /**
@@ -143,7 +242,7 @@ public final class SportsLibrary implements DatastoreDelegate {
      * @see DatastoreDelegate
      */
     public void removeDelegate(@NotNull DatastoreDelegate delegate) {
-        delegates.remove(delegate);
+        eventDispatcher.unsubscribe(delegate);
     }
 
     /**
@@ -222,6 +321,24 @@ public final class SportsLibrary implements DatastoreDelegate {
         return trainings;
     }
 
+    /**
+     * Returns a page of the trainings within a period, sorted by training date.
+     * If an error occurred or no trainings could be found, the list is empty.
+     *
+     * @param fromDate first day of the period
+     * @param toDate last day of the period
+     * @param offset of the first training
+     * @param limit maximum number of trainings, 0 for all trainings
+     * @return A list of the trainings within the period, sorted by training date.
+     */
+    public List<Training> getTrainings(@NotNull LocalDate fromDate, @NotNull LocalDate toDate, int offset, int limit) {
+        return dataRepository.find(Query.of(Training.class)
+                .where(Query.between("trainingDate", fromDate, toDate))
+                .sortBy("trainingDate", true)
+                .offset(offset)
+                .limit(limit));
+    }
+
     /**
      * Returns a list of all available movement types.
      * If an error occurred or not types could be found, the list is empty.
@@ -278,6 +395,66 @@ public final class SportsLibrary implements DatastoreDelegate {
         }
     }
 
+    /**
+     * Add a collection of new objects with as few datastore operations as possible.
+     * Existing objects will be ignored. The delegates are informed once about all added objects.
+     *
+     * @param objects to be added
+     * @throws SportsLibraryException if an error occurred while adding
+     */
+    public void addAll(@NotNull Collection<? extends PersistentObject> objects) throws SportsLibraryException {
+        if (dataRepository.isOpen()) {
+            dataRepository.addAll(objects);
+        }
+    }
+
+    /**
+     * Save a collection of existing objects. All objects must exist, otherwise nothing will be saved.
+     * The delegates are informed once about all saved objects.
+     *
+     * @param objects to be saved
+     * @throws SportsLibraryException if an object not exist or an error occurred while saving
+     */
+    public void updateAll(@NotNull Collection<? extends PersistentObject> objects) throws SportsLibraryException {
+        if (dataRepository.isOpen()) {
+            dataRepository.updateAll(objects);
+        }
+    }
+
+    /**
+     * Removes a collection of existing objects from the local datastore.
+     * All objects must exist, otherwise nothing will be removed.
+     * The delegates are informed once about all removed objects.
+     *
+     * @param objects to be removed
+     * @throws SportsLibraryException if an object not exist or an error occurred while removing
+     */
+    public void deleteAll(@NotNull Collection<? extends PersistentObject> objects) throws SportsLibraryException {
+        if (dataRepository.isOpen()) {
+            dataRepository.deleteAll(objects);
+        }
+    }
+
+    /**
+     * Removes all objects of a type matching the filter from the local datastore,
+     * e.g. all tracks recorded before a date. The objects and their embedded objects
+     * are removed with one operation for each type. The removed tracks are reported
+     * to the delegates without their locations.
+     *
+     * @param fromType of the objects to be removed
+     * @param filter for the objects to be removed
+     * @return The number of removed objects
+     * @throws SportsLibraryException if the objects are embedded in other objects
+     *                                or an error occurred while removing
+     */
+    public int deleteWhere(@NotNull Class<? extends PersistentObject> fromType, @NotNull ObjectFilter filter)
+            throws SportsLibraryException {
+        if (dataRepository.isOpen()) {
+            return dataRepository.deleteWhere(fromType, filter);
+        }
+        return 0;
+    }
+
     /**
      * Get an object from given type with given UUID.
      *
@@ -308,6 +485,74 @@ public final class SportsLibrary implements DatastoreDelegate {
         return new ArrayList<>();
     }
 
+    /**
+     * Get an iterator over all objects with a given type. The objects are read while iterating,
+     * so that large datastores can be processed with bounded memory.
+     * If the datastore is not open, the iterator is empty.
+     *
+     * @param fromType of objects to iterate
+     * @param <T> type of the objects
+     * @return An iterator over all objects with the given type.
+     */
+    public <T extends PersistentObject> Iterator<T> iterator(@NotNull Class<T> fromType) {
+        return dataRepository.iterator(fromType);
+    }
+
+    /**
+     * Get a sequential stream of all objects with a given type. The objects are read
+     * while the stream is consumed.
+     * If the datastore is not open, the stream is empty.
+     *
+     * @param fromType of objects to stream
+     * @param <T> type of the objects
+     * @return A stream of all objects with the given type.
+     */
+    public <T extends PersistentObject> Stream<T> stream(@NotNull Class<T> fromType) {
+        return dataRepository.stream(fromType);
+    }
+
+    /**
+     * Get a page of objects with a given type, sorted ascending by an attribute.
+     * To get a stable order between the pages, the attribute should be unique.
+     * If the datastore is not open or the offset is behind the last object, the list is empty.
+     *
+     * @param fromType of objects to get
+     * @param sortAttribute name of the attribute for sorting, if null the uuid is used
+     * @param offset of the first object
+     * @param limit maximum number of objects in the page
+     * @param <T> type of the objects
+     * @return A list with the objects of the page. The list can be empty.
+     */
+    public <T extends PersistentObject> List<T> findPage(@NotNull Class<T> fromType, @Null String sortAttribute,
+                                                         int offset, int limit) {
+        return dataRepository.findPage(fromType, sortAttribute, offset, limit);
+    }
+
+    /**
+     * Get the objects matching a query, e.g. the trainings of a month sorted by date.
+     * Only the matching objects are read from the datastore.
+     * If the datastore is not open, the list is empty.
+     *
+     * @param query for the objects
+     * @param <T> type of the objects
+     * @return A list with the objects matching the query. The list can be empty.
+     * @see Query
+     */
+    public <T extends PersistentObject> List<T> find(@NotNull Query<T> query) {
+        return dataRepository.find(query);
+    }
+
+    /**
+     * Get a summary of all tracks, e.g. to show a list of tracks.
+     * The locations of the tracks will not be loaded.
+     *
+     * @return A list with the summary of all tracks. The list can be empty.
+     * @see TrackSummary
+     */
+    public List<TrackSummary> findTrackSummaries() {
+        return dataRepository.findTrackSummaries();
+    }
+
     /**
      * Find objects with given name of attribute and value. List can bei empty.
      *
@@ -351,6 +596,74 @@ public final class SportsLibrary implements DatastoreDelegate {
         templateLoader.exportRunningPlanToJSON(runningPlan, exportDir);
     }
 
+    /**
+     * Set the executor for the asynchronous methods of the library.
+     * By default, every task runs in its own virtual thread, if the runtime supports virtual threads.
+     * Otherwise, the tasks run in a pool of daemon threads.
+     *
+     * @param executor for the asynchronous methods, if null the default executor is used
+     */
+    public void setAsyncExecutor(@Null Executor executor) {
+        asyncTaskRunner.setExecutor(executor);
+    }
+
+    /**
+     * Add a new object asynchronously.
+     * Cancelling the future skips the task, if it is not running yet.
+     *
+     * @param object to be added
+     * @return A future, completed with a SportsLibraryException if an error occurred while adding.
+     */
+    public CompletableFuture<Void> addAsync(@NotNull PersistentObject object) {
+        return asyncTaskRunner.run(() -> {
+            add(object);
+            return null;
+        });
+    }
+
+    /**
+     * Get all objects with a given type asynchronously.
+     * Cancelling the future skips the task, if it is not running yet.
+     *
+     * @param fromType of object to get
+     * @return A future with a list of objects with the given type. The list can be empty.
+     */
+    public CompletableFuture<List<? extends PersistentObject>> findAllAsync(
+            @NotNull Class<? extends PersistentObject> fromType) {
+        return asyncTaskRunner.run(() -> findAll(fromType));
+    }
+
+    /**
+     * Import the tracks of a file in GPX format asynchronously.
+     * Cancelling the future skips the task, if it is not running yet.
+     *
+     * @param importFile with data in GPX format
+     * @return A future, completed with a SportsLibraryException if the file could not be imported.
+     * @see GPXManager
+     */
+    public CompletableFuture<Void> importGPXAsync(@NotNull File importFile) {
+        return asyncTaskRunner.run(() -> {
+            GPXManager.importGPX(this, importFile);
+            return null;
+        });
+    }
+
+    /**
+     * Export a track to a file in GPX format asynchronously.
+     * Cancelling the future skips the task, if it is not running yet.
+     *
+     * @param track to be exported
+     * @param exportFile for the track
+     * @return A future, completed with a SportsLibraryException if the track could not be exported.
+     * @see GPXManager
+     */
+    public CompletableFuture<Void> exportGPXAsync(@NotNull Track track, @NotNull File exportFile) {
+        return asyncTaskRunner.run(() -> {
+            GPXManager.exportGPX(track, exportFile);
+            return null;
+        });
+    }
+
     /**
      * Delete all objects from the database.
      */
@@ -360,6 +673,333 @@ public final class SportsLibrary implements DatastoreDelegate {
         }
     }
 
+    /**
+     * Write a compressed snapshot of all objects to a file, e.g. for a nightly backup.
+     * The objects can be read while the snapshot is written, changes wait until the snapshot is complete.
+     *
+     * @param file of the snapshot, an existing file will be replaced
+     * @return The number of documents in the snapshot
+     * @throws SportsLibraryException if the snapshot could not be written
+     */
+    public long backup(@NotNull File file) throws SportsLibraryException {
+        return dataRepository.backup(file);
+    }
+
+    /**
+     * Write a compressed snapshot of all objects to a file asynchronously.
+     * Cancelling the future skips the task, if it is not running yet.
+     *
+     * @param file of the snapshot, an existing file will be replaced
+     * @return A future with the number of documents in the snapshot,
+     *         completed with a SportsLibraryException if the snapshot could not be written.
+     */
+    public CompletableFuture<Long> backupAsync(@NotNull File file) {
+        return asyncTaskRunner.run(() -> backup(file));
+    }
+
+    /**
+     * Replace all objects with the objects of a snapshot. The checksum of the snapshot is verified before,
+     * all objects are replaced in one transaction. Objects read before must be read again.
+     * If the restore fails, the objects before the restore are kept, also for snapshots larger
+     * than the commit buffer of the storage profile.
+     *
+     * @param file of the snapshot
+     * @return The number of restored documents
+     * @throws SportsLibraryException if the snapshot is damaged or could not be restored
+     */
+    public long restore(@NotNull File file) throws SportsLibraryException {
+        return dataRepository.restore(file);
+    }
+
+    /**
+     * Get a flag to determine if the library can only read the objects.
+     *
+     * @return A flag to determine if the library was opened read-only
+     * @see #openReadOnly(boolean, File, StorageProfile)
+     */
+    public boolean isReadOnly() {
+        return dataRepository.isReadOnly();
+    }
+
+    /**
+     * Upgrade all saved objects with an older schema to the current schema of their type.
+     * Objects are also upgraded while reading, so the upgrade is not needed before using the library.
+     *
+     * @return The number of upgraded objects
+     * @throws SportsLibraryException if the objects could not be upgraded
+     * @see Global#SCHEMA_UPGRADES
+     */
+    public long upgradeSchema() throws SportsLibraryException {
+        return dataRepository.upgradeSchema();
+    }
+
+    /**
+     * Upgrade all saved objects with an older schema in the background.
+     *
+     * @return A future with the number of upgraded objects,
+     *         completed with a SportsLibraryException if the objects could not be upgraded.
+     */
+    public CompletableFuture<Long> upgradeSchemaAsync() {
+        return asyncTaskRunner.run(this::upgradeSchema);
+    }
+
+    /**
+     * Record every change of the objects in the change journal, e.g. for search indexing
+     * or statistics, so that consumers can process only the changes since their last read.
+     *
+     * @param isDiffRecorded a flag to determine if the changed attributes are recorded with the changes
+     */
+    public void enableChangeJournal(boolean isDiffRecorded) {
+        dataRepository.enableChangeJournal(isDiffRecorded);
+    }
+
+    /**
+     * Stop recording the changes of the objects. The recorded changes can still be read.
+     */
+    public void disableChangeJournal() {
+        dataRepository.disableChangeJournal();
+    }
+
+    /**
+     * Get the recorded changes from a sequence number in the order of the changes.
+     *
+     * @param fromSequence sequence number of the first change, 1 for all changes
+     * @param limit maximum number of changes, 0 for all changes
+     * @return A list of the changes. The list can be empty.
+     * @throws SportsLibraryException if the pending objects could not be written
+     */
+    public List<ChangeRecord> getChanges(long fromSequence, int limit) throws SportsLibraryException {
+        return dataRepository.getChanges(fromSequence, limit);
+    }
+
+    /**
+     * Get the sequence number of the last recorded change.
+     *
+     * @return The sequence number of the last change, 0 if no change was recorded
+     */
+    public long getLastChangeSequence() {
+        return dataRepository.getLastChangeSequence();
+    }
+
+    /**
+     * Remove the recorded changes before a sequence number, e.g. after all consumers have processed them.
+     * The changes are removed by segments, so some changes before the sequence number can remain.
+     *
+     * @param beforeSequence sequence number of the first change to keep
+     * @return The number of removed changes
+     * @throws SportsLibraryException if the changes could not be removed
+     */
+    public long truncateChanges(long beforeSequence) throws SportsLibraryException {
+        return dataRepository.truncateChanges(beforeSequence);
+    }
+
+    /**
+     * Get a flag to determine if the hash tree of the objects is maintained.
+     *
+     * @return A flag to determine if the hash tree is maintained
+     */
+    public boolean isHashTreeEnabled() {
+        return dataRepository.isHashTreeEnabled();
+    }
+
+    /**
+     * Maintain a hash tree of the objects with every change, so that the objects can be compared
+     * with another replica, e.g. of another device, without comparing all objects.
+     * The tree is built once and maintained after a restart, until it is disabled.
+     *
+     * @throws SportsLibraryException if the library is read-only or the tree could not be built
+     * @see AntiEntropy
+     */
+    public void enableHashTree() throws SportsLibraryException {
+        dataRepository.enableHashTree();
+    }
+
+    /**
+     * Stop maintaining the hash tree and remove it.
+     *
+     * @throws SportsLibraryException if the library is read-only or the tree could not be removed
+     */
+    public void disableHashTree() throws SportsLibraryException {
+        dataRepository.disableHashTree();
+    }
+
+    /**
+     * Build the hash tree again from all objects, e.g. after new schema upgrades.
+     *
+     * @throws SportsLibraryException if the library is read-only or the tree could not be built
+     */
+    public void rebuildHashTree() throws SportsLibraryException {
+        dataRepository.rebuildHashTree();
+    }
+
+    /**
+     * Get a flag to determine if the objects are synchronized with other devices.
+     * The sync must be enabled by the app and by the user in the preferences.
+     *
+     * @return A flag to determine if the sync is enabled
+     * @see SyncEngine
+     */
+    public boolean isSyncEnabled() {
+        if (!Global.AppSettings.useSync) {
+            return false;
+        }
+        Preferences userPreferences = Preferences.userRoot().node(Global.UserPreferencesKeys.USER_ROOT_NODE);
+        return userPreferences.getBoolean(Global.UserPreferencesKeys.USE_SYNC, false);
+    }
+
+    /**
+     * Close the local datastore, pending objects are written before.
+     * The library can not be used afterwards, a new singleton can be created with getInstance.
+     * The datastore is closed, even if pending objects could not be written.
+     *
+     * @throws SportsLibraryException if an error occurred while writing the pending objects
+     */
+    public void close() throws SportsLibraryException {
+        synchronized (SportsLibrary.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        try {
+            dataRepository.close();
+        } finally {
+            eventDispatcher.flush();
+        }
+    }
+
+    /**
+     * Get the counters of the cache for objects read from the local datastore.
+     *
+     * @return The counters of the object cache
+     * @see CacheStatistics
+     */
+    public CacheStatistics getCacheStatistics() {
+        return dataRepository.getCacheStatistics();
+    }
+
+    /**
+     * Get the counters of the compaction of the local datastore file, e.g. the reclaimed bytes.
+     *
+     * @return The counters of the compaction
+     * @see CompactionStatistics
+     */
+    public CompactionStatistics getCompactionStatistics() {
+        return dataRepository.getCompactionStatistics();
+    }
+
+    /**
+     * Set the maximum time for a compaction of the local datastore file. The file is compacted
+     * in the background, if it is large, contains much unused space and the library is idle.
+     *
+     * @param timeBudgetInMillis maximum time in milliseconds for a compaction, 0 disables the compaction
+     */
+    public void setCompactionTimeBudget(long timeBudgetInMillis) {
+        dataRepository.setCompactionTimeBudget(timeBudgetInMillis);
+    }
+
+    /**
+     * Compact the local datastore file within the time budget, e.g. before the app is paused.
+     * The compaction is skipped, if other threads change the datastore.
+     *
+     * @return A flag to determine if the file was compacted
+     */
+    public boolean compact() {
+        return dataRepository.compact();
+    }
+
+    /**
+     * Get a flag to determine if the objects are written in the background.
+     *
+     * @return A flag to determine if the objects are written in the background
+     */
+    public boolean isWriteBehindEnabled() {
+        return dataRepository.isWriteBehindEnabled();
+    }
+
+    /**
+     * Write added, saved and removed objects in the background, e.g. while recording or importing.
+     * Changes of the same object are coalesced and written with one commit.
+     * The objects are found immediately, the delegates are informed when the objects are written.
+     * Errors while writing in the background are thrown by the next call of flush,
+     * the failed objects remain pending and are written again with the next flush.
+     *
+     * @param maxPendingWrites maximum number of pending objects, if reached the objects are written
+     *                         on the calling thread
+     * @param flushIntervalInMillis maximum time in milliseconds between the writes
+     */
+    public void enableWriteBehind(int maxPendingWrites, long flushIntervalInMillis) {
+        if (dataRepository.isOpen()) {
+            dataRepository.enableWriteBehind(maxPendingWrites, flushIntervalInMillis);
+        }
+    }
+
+    /**
+     * Write all pending objects and write further objects immediately.
+     *
+     * @throws SportsLibraryException if an error occurred while writing the pending objects
+     */
+    public void disableWriteBehind() throws SportsLibraryException {
+        dataRepository.disableWriteBehind();
+    }
+
+    /**
+     * Write all pending objects, if the objects are written in the background.
+     *
+     * @throws SportsLibraryException if an error occurred while writing the pending objects
+     */
+    public void flush() throws SportsLibraryException {
+        dataRepository.flush();
+    }
+
+    /**
+     * Run the changes of a transaction as one unit. The changed objects and their nested objects
+     * become visible together after the transaction. If the transaction throws an exception,
+     * all changes of the transaction will be discarded. The delegates are informed after the transaction.
+     * Other threads can not change the datastore while the transaction is running.
+     * The changes are held in memory up to the commit buffer of the storage profile. Larger changes
+     * are written to the database file before the end of the transaction. They are discarded too,
+     * if the transaction fails, but they remain saved, if the process is terminated during the transaction.
+     *
+     * @param transaction with the changes
+     * @throws SportsLibraryException if the transaction failed, the changes were discarded
+     */
+    public void inTransaction(@NotNull Transaction transaction) throws SportsLibraryException {
+        dataRepository.inTransaction(transaction::run);
+    }
+
+    /**
+     * Get the layout for storing the locations of the tracks in the local datastore.
+     *
+     * @return The layout for storing the locations of the tracks
+     * @see LocationStorage
+     */
+    public LocationStorage getLocationStorage() {
+        return dataRepository.getLocationStorage();
+    }
+
+    /**
+     * Set the layout for storing the locations of the tracks in the local datastore.
+     * All saved tracks are migrated to the new layout.
+     *
+     * @param locationStorage new layout for storing the locations of the tracks
+     * @throws SportsLibraryException if an error occurred while migrating the tracks
+     * @see LocationStorage
+     */
+    public void setLocationStorage(@NotNull LocationStorage locationStorage) throws SportsLibraryException {
+        if (dataRepository.isOpen()) {
+            dataRepository.setLocationStorage(locationStorage);
+        }
+    }
+
+    /**
+     * Get the access layer of the local datastore, e.g. for the sync.
+     *
+     * @return The access layer of the datastore
+     */
+    DataRepository getDataRepository() {
+        return dataRepository;
+    }
+
     /**
      * Get a flag to determine, whether errors should be logged.
      * Can only be true, if (file) logging is enabled.
@@ -426,35 +1066,70 @@ public final class SportsLibrary implements DatastoreDelegate {
 
     @Override
     public void didObjectAdded(PersistentObject persistentObject) {
-        if (delegates != null) {
-            for (DatastoreDelegate delegate : delegates) {
-                delegate.didObjectAdded(persistentObject);
-            }
-        }
+        eventDispatcher.didObjectAdded(persistentObject);
     }
 
     @Override
     public void didObjectUpdated(PersistentObject persistentObject) {
-        if (delegates != null) {
-            for (DatastoreDelegate delegate : delegates) {
-                delegate.didObjectUpdated(persistentObject);
-            }
-        }
+        eventDispatcher.didObjectUpdated(persistentObject);
     }
 
     @Override
     public void didObjectRemoved(PersistentObject persistentObject) {
-        if (delegates != null) {
-            for (DatastoreDelegate delegate : delegates) {
-                delegate.didObjectRemoved(persistentObject);
+        eventDispatcher.didObjectRemoved(persistentObject);
+    }
+
+    @Override
+    public void didObjectsAdded(List<? extends PersistentObject> persistentObjects) {
+        eventDispatcher.didObjectsAdded(persistentObjects);
+    }
+
+    @Override
+    public void didObjectsUpdated(List<? extends PersistentObject> persistentObjects) {
+        eventDispatcher.didObjectsUpdated(persistentObjects);
+    }
+
+    @Override
+    public void didObjectsRemoved(List<? extends PersistentObject> persistentObjects) {
+        eventDispatcher.didObjectsRemoved(persistentObjects);
+    }
+
+    // the user of a datastore of an older version or a new user
+    private User loadOrCreateAppUser() throws SportsLibraryException {
+        List<? extends PersistentObject> users = dataRepository.findAll(User.class);
+        if (users.size() > 1) {
+            // not good
+            if (logManager.isDebugMode()) {
+                Logger.debug("More as one user in the app.");
+            }
+        }
+        if (users.isEmpty()) {
+            // create the App user, a read-only datastore gets no user
+            User user = new User();
+            if (!dataRepository.isReadOnly()) {
+                dataRepository.add(user);
             }
+            return user;
         }
+        // set the App user
+        PersistentObject persistentObject = users.get(0);
+        if (persistentObject instanceof User) {
+            return (User) persistentObject;
+        }
+        if (logManager.isDebugMode()) {
+            Logger.debug("Couldn't get the user from datastore.");
+        }
+        return new User();
     }
 
     private SportsLibrary(boolean debugMode,
                           @Null Locale locale,
                           @Null File libraryDirectory,
-                          @Null SportsLibraryApplication application) throws InstantiationException {
+                          @Null SportsLibraryApplication application,
+                          @NotNull StorageProfile storageProfile,
+                          boolean isShared,
+                          boolean isReadOnly) throws InstantiationException {
+        DatabaseManager databaseManager = null;
         try {
             // if locale is null the default (english) locale is used
             Preferences userPreferences = Preferences.userRoot().node(Global.UserPreferencesKeys.USER_ROOT_NODE);
@@ -467,39 +1142,48 @@ public final class SportsLibrary implements DatastoreDelegate {
             // initialize the logManager
             logManager = LogManager.getInstance(libraryDirectory, debugMode);
             // lokalen Datenspeicher mit dem Namen der App anlegen / öffnen
-            DatabaseManager databaseManager = DatabaseManager.getInstance(libraryDirectory);
+            if (isReadOnly) {
+                databaseManager = DatabaseManager.openReadOnly(libraryDirectory, storageProfile);
+            } else if (isShared) {
+                databaseManager = DatabaseManager.getInstance(libraryDirectory, storageProfile);
+            } else {
+                databaseManager = DatabaseManager.open(libraryDirectory, storageProfile);
+            }
             dataRepository = new DataRepository(this, databaseManager, this);
-            // bei neu angelegtem Datenspeicher diesen mit initialen Werten befüllen
-            if (dataRepository.isEmpty()) {
-                TemplateLoader templateLoader = new TemplateLoader(this, application);
-                // alle Templates in Datenspeicher laden
-                templateLoader.addAllFromJSON();
+            // the cached objects are removed with the events of the datastore
+            addDelegate(dataRepository.getObjectCache());
+            if (!isReadOnly && isSyncEnabled()) {
+                // the sync sends only the recorded changes
+                dataRepository.enableChangeJournal(false);
             }
-            // create or load the App user
-            List<? extends PersistentObject> users = dataRepository.findAll(User.class);
-            if (users.size() > 1) {
-                // not good
-                if (logManager.isDebugMode()) {
-                    Logger.debug("More as one user in the app.");
+            // bei neu angelegtem Datenspeicher diesen mit initialen Werten befüllen
+            // the saved state avoids reading the objects on every start
+            TemplateLoader templateLoader = new TemplateLoader(this, application);
+            String templateBundleHash = templateLoader.getTemplateBundleHash();
+            if (!isReadOnly && !dataRepository.isSeeded(templateBundleHash)) {
+                // first start, new templates or a datastore of an older version,
+                // the templates are only added to an empty datastore, otherwise the hash is saved
+                // to check the templates once
+                if (dataRepository.isEmpty()) {
+                    // alle Templates in Datenspeicher laden
+                    templateLoader.addAllFromJSON();
                 }
+                dataRepository.setSeeded(templateBundleHash);
             }
-            if (users.isEmpty()) {
-                // create the App user
-                appUser = new User();
-                dataRepository.add(appUser);
-            } else {
-                // set the App user
-                PersistentObject persistentObject = users.get(0);
-                if (persistentObject instanceof User) {
-                    appUser = (User) persistentObject;
-                } else {
-                    appUser = new User();
-                    if (logManager.isDebugMode()) {
-                        Logger.debug("Couldn't get the user from datastore.");
-                    }
+            // load the App user with the saved uuid
+            User user = dataRepository.findAppUser();
+            if (user == null) {
+                user = loadOrCreateAppUser();
+                if (!isReadOnly) {
+                    dataRepository.setAppUser(user);
                 }
             }
+            appUser = user;
         } catch (SportsLibraryException exception) {
+            if (!isShared && databaseManager != null) {
+                // release the database file
+                databaseManager.close();
+            }
             throw new InstantiationException(exception.getMessage());
         }
     }
@@ -0,0 +1,331 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.StorageProfile;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+import org.tinylog.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A pool of libraries for many users (tenants) in one JVM, e.g. in a server.
+ * Every tenant has its own directory with its own database, the library of a tenant
+ * is opened with the first lease and warmed up, e.g. to fill the object cache.
+ * The number of open libraries (and database files) is limited. If the limit is reached,
+ * the least recently used library without a lease is closed. Libraries without a lease
+ * are closed after an idle time by a background thread.
+ *
+ * The log files of all libraries are written to the directory of the first opened library,
+ * because the logging is shared by all libraries in the JVM.
+ *
+ * <pre>
+ * try (SportsLibraryPool.Lease lease = pool.acquire(directoryOfUser)) {
+ *     lease.getLibrary().add(track);
+ * }
+ * </pre>
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+public final class SportsLibraryPool implements AutoCloseable {
+
+    /**
+     * Prepares a newly opened library of a tenant, before it is leased for the first time.
+     */
+    public interface Warmup {
+        void warmUp(@NotNull SportsLibrary library) throws SportsLibraryException;
+    }
+
+    /**
+     * The usage of the library of a tenant. The library is not closed by the pool,
+     * until all leases of the tenant are closed or the pool is closed.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean isReleased;
+
+        private Lease(@NotNull Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Get the library of the tenant. The library must not be used after the lease is closed.
+         *
+         * @return The library of the tenant
+         */
+        public SportsLibrary getLibrary() {
+            return entry.library;
+        }
+
+        /**
+         * Release the library of the tenant. A lease can be closed more than once.
+         */
+        @Override
+        public void close() {
+            synchronized (SportsLibraryPool.this) {
+                if (!isReleased) {
+                    isReleased = true;
+                    release(entry);
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final File directory;
+        private SportsLibrary library; // null, until opened by the first lease
+        private int leases;
+        private long lastUsedTime;
+
+        private Entry(@NotNull File directory) {
+            this.directory = directory;
+        }
+    }
+
+    private final boolean debugMode;
+    private final int maxOpenLibraries;
+    private final long idleTimeInMillis;
+    private final long acquireTimeoutInMillis;
+    private final StorageProfile storageProfile;
+    private final Warmup warmup;
+    private final LinkedHashMap<File, Entry> entries; // in order of the last usage
+    private final ScheduledExecutorService executorService;
+    private final Thread shutdownHook;
+    private boolean isClosed;
+
+    /**
+     * Create a pool with the default limits.
+     *
+     * @param debugMode of the libraries
+     * @param storageProfile for the local datastores of the libraries
+     * @param warmup for newly opened libraries, can be null
+     */
+    public SportsLibraryPool(boolean debugMode, @NotNull StorageProfile storageProfile, @Null Warmup warmup) {
+        this(debugMode, Global.POOL_MAX_OPEN_LIBRARIES, Global.POOL_IDLE_TIME_MILLIS,
+                Global.POOL_ACQUIRE_TIMEOUT_MILLIS, storageProfile, warmup);
+    }
+
+    /**
+     * Create a pool. The open libraries are closed on shutdown of the JVM.
+     *
+     * @param debugMode of the libraries
+     * @param maxOpenLibraries maximum number of open libraries
+     * @param idleTimeInMillis time in milliseconds without lease before a library is closed
+     * @param acquireTimeoutInMillis maximum time in milliseconds to wait for a library, if all are in use
+     * @param storageProfile for the local datastores of the libraries
+     * @param warmup for newly opened libraries, can be null
+     */
+    public SportsLibraryPool(boolean debugMode, int maxOpenLibraries, long idleTimeInMillis,
+                             long acquireTimeoutInMillis, @NotNull StorageProfile storageProfile,
+                             @Null Warmup warmup) {
+        this.debugMode = debugMode;
+        this.maxOpenLibraries = Math.max(1, maxOpenLibraries);
+        this.idleTimeInMillis = Math.max(0, idleTimeInMillis);
+        this.acquireTimeoutInMillis = Math.max(0, acquireTimeoutInMillis);
+        this.storageProfile = storageProfile;
+        this.warmup = warmup;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sportsapplications-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, Math.min(Global.POOL_CHECK_INTERVAL_MILLIS, this.idleTimeInMillis));
+        executorService.scheduleWithFixedDelay(this::closeIdleLibraries, interval, interval, TimeUnit.MILLISECONDS);
+        shutdownHook = new Thread(this::close, "sportsapplications-pool-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Lease the library of a tenant. The library is opened and warmed up, if it is not open.
+     * If the maximum number of libraries is open, the least recently used library
+     * without a lease is closed. If all libraries are leased, the call waits for a release.
+     *
+     * @param directory of the tenant for the database
+     * @return A lease of the library, which must be closed after usage
+     * @throws SportsLibraryException if the library could not be opened or all libraries
+     *                                are still in use after the timeout
+     */
+    public Lease acquire(@NotNull File directory) throws SportsLibraryException {
+        File key = directory.getAbsoluteFile();
+        Entry entry;
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + acquireTimeoutInMillis;
+            while (true) {
+                if (isClosed) {
+                    throw new SportsLibraryException("The pool of libraries is closed.");
+                }
+                entry = entries.get(key);
+                if (entry != null) {
+                    break;
+                }
+                if (entries.size() < maxOpenLibraries) {
+                    entry = new Entry(key);
+                    entries.put(key, entry);
+                    break;
+                }
+                if (closeLeastRecentlyUsedLibrary()) {
+                    continue;
+                }
+                long remainingTime = deadline - System.currentTimeMillis();
+                if (remainingTime <= 0) {
+                    throw new SportsLibraryException("Too many open libraries, all "
+                            + maxOpenLibraries + " libraries are in use.");
+                }
+                try {
+                    wait(remainingTime);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new SportsLibraryException(exception);
+                }
+            }
+            entry.leases++;
+            entry.lastUsedTime = System.currentTimeMillis();
+        }
+        // other tenants are not blocked while opening,
+        // the lock of the pool is not taken with the lock of the entry
+        SportsLibraryException openException = null;
+        synchronized (entry) {
+            if (entry.library == null) {
+                try {
+                    entry.library = open(key);
+                } catch (SportsLibraryException exception) {
+                    openException = exception;
+                }
+            }
+        }
+        synchronized (this) {
+            if (openException != null) {
+                release(entry);
+                throw openException;
+            }
+            if (isClosed) {
+                // the pool was closed while opening, the library was closed with the pool
+                release(entry);
+                closeLibrary(entry);
+                throw new SportsLibraryException("The pool of libraries is closed.");
+            }
+        }
+        return new Lease(entry);
+    }
+
+    /**
+     * Get the number of open libraries.
+     *
+     * @return The number of open libraries
+     */
+    public synchronized int getNumberOfOpenLibraries() {
+        return entries.size();
+    }
+
+    /**
+     * Close all libraries, also the leased libraries. The pool can not be used afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            for (Entry entry : entries.values()) {
+                closeLibrary(entry);
+            }
+            entries.clear();
+            notifyAll();
+        }
+        executorService.shutdownNow();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException exception) {
+            // the JVM is shutting down
+        }
+    }
+
+    private SportsLibrary open(@NotNull File directory) throws SportsLibraryException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new SportsLibraryException("Could not create the directory " + directory + ".");
+        }
+        SportsLibrary library;
+        try {
+            library = SportsLibrary.newInstance(debugMode, directory, storageProfile);
+        } catch (InstantiationException exception) {
+            throw new SportsLibraryException("Could not open the library in " + directory + ": "
+                    + exception.getMessage());
+        }
+        if (warmup != null) {
+            try {
+                warmup.warmUp(library);
+            } catch (SportsLibraryException | RuntimeException exception) {
+                library.close();
+                throw new SportsLibraryException("Could not warm up the library in " + directory + ": "
+                        + exception.getMessage());
+            }
+        }
+        return library;
+    }
+
+    // must be called with the lock of the pool
+    private void release(@NotNull Entry entry) {
+        entry.leases--;
+        entry.lastUsedTime = System.currentTimeMillis();
+        if (entry.leases == 0 && entry.library == null) {
+            // the library could not be opened
+            entries.remove(entry.directory, entry);
+        }
+        notifyAll();
+    }
+
+    // must be called with the lock of the pool, the database file is released before a new one is opened
+    private boolean closeLeastRecentlyUsedLibrary() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.leases == 0) {
+                iterator.remove();
+                closeLibrary(entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void closeIdleLibraries() {
+        long now = System.currentTimeMillis();
+        List<Entry> idleEntries = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.leases == 0 && now - entry.lastUsedTime >= idleTimeInMillis) {
+                idleEntries.add(entry);
+            }
+        }
+        for (Entry entry : idleEntries) {
+            entries.remove(entry.directory);
+            closeLibrary(entry);
+        }
+    }
+
+    // must be called with the lock of the pool, waits until the library of the entry is opened
+    private void closeLibrary(@NotNull Entry entry) {
+        synchronized (entry) {
+            if (entry.library == null) {
+                return;
+            }
+            try {
+                entry.library.close();
+            } catch (SportsLibraryException | RuntimeException exception) {
+                Logger.debug(exception, "The library in " + entry.directory + " could not be closed.");
+            }
+            entry.library = null;
+        }
+    }
+}
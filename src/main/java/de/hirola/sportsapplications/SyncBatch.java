@@ -0,0 +1,117 @@
+package de.hirola.sportsapplications;
+
+import javax.validation.constraints.NotNull;
+import org.dizitart.no2.Document;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The compressed payload of the synchronization, a list of documents.
+ * A change of an object contains the type, the uuid, the version and the document of the object
+ * or the flag, that the object was removed. The client sends the version of the server,
+ * on which the change is based, the server sends the version of the accepted change.
+ * The values of the documents are written like in a snapshot.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ * @see SnapshotFile
+ */
+final class SyncBatch {
+
+    static final String TYPE_ATTRIBUTE = "type";
+    static final String UUID_ATTRIBUTE = "uuid";
+    static final String VERSION_ATTRIBUTE = "version";
+    static final String IS_REMOVED_ATTRIBUTE = "isRemoved";
+    static final String DOCUMENT_ATTRIBUTE = "document";
+    static final String IS_CONFLICT_ATTRIBUTE = "isConflict"; // the change was rejected, the server state is sent
+    static final String CURSOR_ATTRIBUTE = "cursor"; // last version of the server in a pulled batch
+    static final String HAS_MORE_ATTRIBUTE = "hasMore"; // more changes can be pulled
+
+    private SyncBatch() {
+    }
+
+    /**
+     * Compress a list of documents.
+     *
+     * @param documents of the payload
+     * @return The compressed payload
+     * @throws SportsLibraryException if a document could not be written
+     */
+    static byte[] encode(@NotNull List<Document> documents) throws SportsLibraryException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (DataOutputStream outputStream = new DataOutputStream(new GZIPOutputStream(byteArrayOutputStream))) {
+            outputStream.writeInt(documents.size());
+            for (Document document : documents) {
+                SnapshotFile.writeDocument(outputStream, document);
+            }
+        } catch (IOException exception) {
+            throw new SportsLibraryException("The payload could not be written: " + exception.getMessage());
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Read the documents of a compressed payload.
+     *
+     * @param payload with the documents
+     * @return The documents of the payload
+     * @throws SportsLibraryException if the payload is damaged
+     */
+    static List<Document> decode(@NotNull byte[] payload) throws SportsLibraryException {
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(payload))))) {
+            int numberOfDocuments = inputStream.readInt();
+            List<Document> documents = new ArrayList<>(Math.max(0, Math.min(numberOfDocuments, 10000)));
+            for (int i = 0; i < numberOfDocuments; i++) {
+                documents.add(SnapshotFile.readDocument(inputStream));
+            }
+            return documents;
+        } catch (IOException | ClassCastException exception) {
+            throw new SportsLibraryException("The payload could not be read: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Get the key of an object in a change, unique for all types.
+     *
+     * @param change of an object
+     * @return The key of the object
+     */
+    static String keyOf(@NotNull Document change) {
+        return keyOf(change.get(TYPE_ATTRIBUTE, String.class), change.get(UUID_ATTRIBUTE, String.class));
+    }
+
+    /**
+     * Get the key of an object, unique for all types.
+     *
+     * @param typeName name of the class of the object
+     * @param uuid of the object
+     * @return The key of the object
+     */
+    static String keyOf(@NotNull String typeName, @NotNull String uuid) {
+        return typeName + "/" + uuid;
+    }
+
+    /**
+     * Get the version of a change.
+     *
+     * @param change of an object
+     * @return The version of the change, 0 if the object has no version
+     */
+    static long versionOf(@NotNull Document change) {
+        Object version = change.get(VERSION_ATTRIBUTE);
+        return version instanceof Number ? ((Number) version).longValue() : 0;
+    }
+}
@@ -0,0 +1,491 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.ChangeRecord;
+import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.model.TrainingType;
+import de.hirola.sportsapplications.model.UUID;
+import de.hirola.sportsapplications.model.User;
+import de.hirola.sportsapplications.util.UUIDFactory;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+import org.dizitart.no2.Document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Synchronizes the objects of a library with other devices over a server.
+ * Only the objects changed since the last sync are sent, the changes are determined
+ * with the change journal of the datastore, which is enabled by the engine. At the first sync
+ * all objects are sent. The server numbers the accepted changes, the device pulls the changes
+ * of the other devices after its last pulled version (the cursor). The changes are sent
+ * in compressed batches over a transport, e.g. HTTP.
+ *
+ * Every change contains the version of the server, on which it is based. The server rejects
+ * a change of an object, which was changed by another device in the meantime. The conflicts
+ * are resolved for each object by a handler, without handler the remote object is kept.
+ * Changes made while the change journal was disabled are not sent.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ * @see Global.AppSettings#useSync
+ * @see LocalSyncServer
+ */
+public final class SyncEngine {
+
+    /**
+     * The connection to the server of the sync.
+     */
+    public interface Transport {
+
+        /**
+         * Send changes of objects to the server.
+         *
+         * @param deviceId of the sending device
+         * @param payload with the compressed changes
+         * @return The compressed response with the accepted versions and the rejected changes
+         * @throws SportsLibraryException if the changes could not be sent
+         */
+        byte[] push(@NotNull String deviceId, @NotNull byte[] payload) throws SportsLibraryException;
+
+        /**
+         * Get the changes of the other devices after a version of the server.
+         *
+         * @param deviceId of the requesting device
+         * @param cursor last version pulled by the device, 0 for all changes
+         * @param limit maximum number of changes
+         * @return The compressed changes, the first document contains the new cursor
+         * @throws SportsLibraryException if the changes could not be received
+         */
+        byte[] pull(@NotNull String deviceId, long cursor, int limit) throws SportsLibraryException;
+    }
+
+    /**
+     * The resolution of a conflict.
+     */
+    public enum Resolution {
+        KEEP_LOCAL, KEEP_REMOTE
+    }
+
+    /**
+     * Resolves the conflicts of objects changed on this device and on another device.
+     */
+    public interface ConflictHandler {
+
+        /**
+         * Determine which change of an object is kept.
+         *
+         * @param type of the object
+         * @param uuid of the object
+         * @param localObject the object on this device, null if the object was removed
+         * @param remoteObject the object on the server, null if the object was removed
+         * @return The change to keep
+         */
+        Resolution resolve(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid,
+                           @Null PersistentObject localObject, @Null PersistentObject remoteObject);
+    }
+
+    /**
+     * The counters of a sync.
+     */
+    public static final class Result {
+
+        private long pushedChanges;
+        private long pulledChanges;
+        private long conflicts;
+
+        /**
+         * Get the number of changes accepted by the server.
+         *
+         * @return The number of sent changes
+         */
+        public long getPushedChanges() {
+            return pushedChanges;
+        }
+
+        /**
+         * Get the number of changes of other devices saved on this device.
+         *
+         * @return The number of received changes
+         */
+        public long getPulledChanges() {
+            return pulledChanges;
+        }
+
+        /**
+         * Get the number of objects changed on this device and on another device.
+         *
+         * @return The number of conflicts
+         */
+        public long getConflicts() {
+            return conflicts;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "pushedChanges=" + pushedChanges +
+                    ", pulledChanges=" + pulledChanges +
+                    ", conflicts=" + conflicts +
+                    '}';
+        }
+    }
+
+    // a changed object
+    private static final class ObjectReference {
+
+        private final Class<? extends PersistentObject> type;
+        private final UUID uuid;
+        private final String key;
+
+        private ObjectReference(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid) {
+            this.type = type;
+            this.uuid = uuid;
+            key = SyncBatch.keyOf(type.getName(), uuid.getString());
+        }
+    }
+
+    private static final String STATE_KEY = "state";
+    private static final String VERSION_KEY_PREFIX = "version/";
+    private static final String DEVICE_ATTRIBUTE = "deviceId";
+    private static final String PUSHED_SEQUENCE_ATTRIBUTE = "pushedSequence"; // last change sent to the server
+    private static final String CURSOR_ATTRIBUTE = "cursor"; // last version pulled from the server
+    private static final String VERSION_ATTRIBUTE = "version";
+    // attributes with a unique index besides the uuid, e.g. of the templates added on every device
+    private static final Map<Class<? extends PersistentObject>, String> UNIQUE_ATTRIBUTES =
+            Map.of(TrainingType.class, "name", User.class, "emailAddress");
+
+    private final SportsLibrary sportsLibrary;
+    private final DataRepository dataRepository;
+    private final Transport transport;
+    private final ConflictHandler conflictHandler;
+    private final Map<String, Class<? extends PersistentObject>> syncedTypes; // by the name of the class
+
+    /**
+     * Create an engine to synchronize a library. The change journal of the library is enabled,
+     * changes made before are sent with the first sync.
+     *
+     * @param sportsLibrary to be synchronized
+     * @param transport to the server
+     * @param conflictHandler to resolve the conflicts, if null the remote objects are kept
+     * @throws SportsLibraryException if the library is read-only
+     */
+    public SyncEngine(@NotNull SportsLibrary sportsLibrary, @NotNull Transport transport,
+                      @Null ConflictHandler conflictHandler) throws SportsLibraryException {
+        if (sportsLibrary.isReadOnly()) {
+            throw new SportsLibraryException("A read-only library can not be synchronized.");
+        }
+        this.sportsLibrary = sportsLibrary;
+        this.transport = transport;
+        this.conflictHandler = conflictHandler;
+        dataRepository = sportsLibrary.getDataRepository();
+        // embedded objects are sent with their parent
+        syncedTypes = new LinkedHashMap<>();
+        for (Class<? extends PersistentObject> type : Global.PERSISTENT_CLASSES_LIST) {
+            if (!Global.CASCADING_DELETED_CLASSES.contains(type)) {
+                syncedTypes.put(type.getName(), type);
+            }
+        }
+        if (!dataRepository.isChangeJournalEnabled()) {
+            dataRepository.enableChangeJournal(false);
+        }
+    }
+
+    /**
+     * Send the changed objects to the server and save the changes of the other devices.
+     * The changes of a pulled batch are saved in one transaction with the cursor,
+     * so an interrupted sync can be continued. The delegates are notified about the saved objects.
+     *
+     * @return The counters of the sync
+     * @throws SportsLibraryException if the server is not available or the changes could not be saved
+     */
+    public synchronized Result sync() throws SportsLibraryException {
+        dataRepository.flush();
+        Document state = dataRepository.findSyncState(STATE_KEY);
+        if (state == null || state.get(DEVICE_ATTRIBUTE) == null) {
+            state = Document.createDocument("key", STATE_KEY);
+            state.put(DEVICE_ATTRIBUTE, UUIDFactory.generateUUID());
+            dataRepository.saveSyncStates(List.of(state));
+        }
+        String deviceId = (String) state.get(DEVICE_ATTRIBUTE);
+        Object pushedSequence = state.get(PUSHED_SEQUENCE_ATTRIBUTE);
+        Object cursor = state.get(CURSOR_ATTRIBUTE);
+        // changes after the sequence are sent with the next sync
+        long lastSequence = dataRepository.getLastChangeSequence();
+        Result result = new Result();
+        push(deviceId, changedObjects(pushedSequence instanceof Number ? ((Number) pushedSequence).longValue() : -1,
+                lastSequence), result);
+        Document pushedState = Document.createDocument("key", STATE_KEY);
+        pushedState.put(PUSHED_SEQUENCE_ATTRIBUTE, lastSequence);
+        dataRepository.saveSyncStates(List.of(pushedState));
+        pull(deviceId, cursor instanceof Number ? ((Number) cursor).longValue() : 0, lastSequence, result);
+        if (sportsLibrary.isDebugMode()) {
+            sportsLibrary.debug("Sync completed: " + result);
+        }
+        return result;
+    }
+
+    // the objects of the recorded changes, all objects at the first sync
+    // or if recorded changes were removed before they were sent
+    private Collection<ObjectReference> changedObjects(long pushedSequence, long lastSequence)
+            throws SportsLibraryException {
+        Map<String, ObjectReference> objects = new LinkedHashMap<>();
+        if (pushedSequence >= 0 && pushedSequence <= lastSequence) {
+            long fromSequence = pushedSequence + 1;
+            boolean isComplete = true;
+            while (fromSequence <= lastSequence) {
+                List<ChangeRecord> changes = dataRepository.getChanges(fromSequence, Global.SYNC_BATCH_SIZE);
+                if (changes.isEmpty() || changes.get(0).getSequence() != fromSequence) {
+                    isComplete = false;
+                    break;
+                }
+                for (ChangeRecord change : changes) {
+                    Class<? extends PersistentObject> type = syncedTypes.get(change.getTypeName());
+                    if (type != null && change.getSequence() <= lastSequence) {
+                        ObjectReference reference = new ObjectReference(type, change.getUUID());
+                        objects.put(reference.key, reference);
+                    }
+                }
+                fromSequence = changes.get(changes.size() - 1).getSequence() + 1;
+            }
+            if (isComplete) {
+                return objects.values();
+            }
+        }
+        if (sportsLibrary.isDebugMode()) {
+            sportsLibrary.debug("The changes are not recorded, all objects are sent.");
+        }
+        objects.clear();
+        for (Class<? extends PersistentObject> type : syncedTypes.values()) {
+            Iterator<? extends PersistentObject> iterator = dataRepository.iterator(type);
+            while (iterator.hasNext()) {
+                ObjectReference reference = new ObjectReference(type, iterator.next().getUUID());
+                objects.put(reference.key, reference);
+            }
+        }
+        return objects.values();
+    }
+
+    private void push(@NotNull String deviceId, @NotNull Collection<ObjectReference> objects, @NotNull Result result)
+            throws SportsLibraryException {
+        Deque<ObjectReference> queue = new ArrayDeque<>(objects);
+        while (!queue.isEmpty()) {
+            List<Document> changes = new ArrayList<>();
+            Map<String, ObjectReference> batch = new HashMap<>();
+            while (!queue.isEmpty() && changes.size() < Global.SYNC_BATCH_SIZE) {
+                ObjectReference reference = queue.poll();
+                Document change = localChangeOf(reference);
+                if (change != null) {
+                    changes.add(change);
+                    batch.put(reference.key, reference);
+                }
+            }
+            if (changes.isEmpty()) {
+                continue;
+            }
+            List<Document> versions = new ArrayList<>();
+            List<Document> conflicts = new ArrayList<>();
+            for (Document answer : SyncBatch.decode(transport.push(deviceId, SyncBatch.encode(changes)))) {
+                if (Boolean.TRUE.equals(answer.get(SyncBatch.IS_CONFLICT_ATTRIBUTE))) {
+                    conflicts.add(answer);
+                } else {
+                    versions.add(versionStateOf(SyncBatch.keyOf(answer), SyncBatch.versionOf(answer)));
+                    result.pushedChanges++;
+                }
+            }
+            dataRepository.saveSyncStates(versions);
+            for (Document conflict : conflicts) {
+                ObjectReference reference = batch.get(SyncBatch.keyOf(conflict));
+                if (reference != null && resolvePushConflict(reference, conflict, result)) {
+                    // sent again, based on the version of the server
+                    queue.add(reference);
+                }
+            }
+        }
+    }
+
+    // the local change is sent again, if it is kept
+    private boolean resolvePushConflict(@NotNull ObjectReference reference, @NotNull Document remoteChange,
+                                        @NotNull Result result) throws SportsLibraryException {
+        PersistentObject localObject = dataRepository.findByUUID(reference.type, reference.uuid);
+        Document versionState = versionStateOf(reference.key, SyncBatch.versionOf(remoteChange));
+        if (isEqual(localObject, remoteChange)) {
+            // both devices made the same change
+            dataRepository.saveSyncStates(List.of(versionState));
+            return false;
+        }
+        result.conflicts++;
+        if (resolve(reference, localObject, remoteChange) == Resolution.KEEP_LOCAL) {
+            dataRepository.saveSyncStates(List.of(versionState));
+            return true;
+        }
+        dataRepository.applyRemoteChanges(() -> {
+            applyRemoteChange(reference, remoteChange);
+            dataRepository.saveSyncStates(List.of(versionState));
+        });
+        return false;
+    }
+
+    private void pull(@NotNull String deviceId, long cursor, long lastSequence, @NotNull Result result)
+            throws SportsLibraryException {
+        boolean hasMore;
+        do {
+            List<Document> response = SyncBatch.decode(transport.pull(deviceId, cursor, Global.SYNC_BATCH_SIZE));
+            if (response.isEmpty() || !(response.get(0).get(SyncBatch.CURSOR_ATTRIBUTE) instanceof Number)) {
+                throw new SportsLibraryException("The response of the server has no cursor.");
+            }
+            Document header = response.get(0);
+            long nextCursor = ((Number) header.get(SyncBatch.CURSOR_ATTRIBUTE)).longValue();
+            hasMore = Boolean.TRUE.equals(header.get(SyncBatch.HAS_MORE_ATTRIBUTE));
+            // objects changed on this device while syncing
+            Set<String> changedKeys = new HashSet<>();
+            for (ChangeRecord change : dataRepository.getChanges(lastSequence + 1, 0)) {
+                changedKeys.add(SyncBatch.keyOf(change.getTypeName(), change.getUUID().getString()));
+            }
+            Map<ObjectReference, Document> remoteChanges = new LinkedHashMap<>();
+            List<Document> states = new ArrayList<>();
+            for (Document remoteChange : response.subList(1, response.size())) {
+                Class<? extends PersistentObject> type = syncedTypes.get(remoteChange.get(SyncBatch.TYPE_ATTRIBUTE));
+                if (type == null) {
+                    // a type of a newer version of the library
+                    continue;
+                }
+                ObjectReference reference = new ObjectReference(type,
+                        new UUID((String) remoteChange.get(SyncBatch.UUID_ATTRIBUTE)));
+                long version = SyncBatch.versionOf(remoteChange);
+                if (version <= versionOf(reference.key)) {
+                    // the change is already saved
+                    continue;
+                }
+                states.add(versionStateOf(reference.key, version));
+                if (changedKeys.contains(reference.key)) {
+                    PersistentObject localObject = dataRepository.findByUUID(type, reference.uuid);
+                    if (!isEqual(localObject, remoteChange)) {
+                        result.conflicts++;
+                        if (resolve(reference, localObject, remoteChange) == Resolution.KEEP_LOCAL) {
+                            // the local change is sent with the next sync
+                            continue;
+                        }
+                    }
+                }
+                remoteChanges.put(reference, remoteChange);
+            }
+            Document cursorState = Document.createDocument("key", STATE_KEY);
+            cursorState.put(CURSOR_ATTRIBUTE, nextCursor);
+            states.add(cursorState);
+            dataRepository.applyRemoteChanges(() -> {
+                for (Map.Entry<ObjectReference, Document> entry : remoteChanges.entrySet()) {
+                    applyRemoteChange(entry.getKey(), entry.getValue());
+                }
+                dataRepository.saveSyncStates(states);
+            });
+            result.pulledChanges += remoteChanges.size();
+            cursor = nextCursor;
+        } while (hasMore);
+    }
+
+    // the change of an object based on the last known version of the server,
+    // null if the object was never sent and is removed
+    @Null
+    private Document localChangeOf(@NotNull ObjectReference reference) {
+        PersistentObject object = dataRepository.findByUUID(reference.type, reference.uuid);
+        long version = versionOf(reference.key);
+        if (object == null && version == 0) {
+            return null;
+        }
+        Document change = Document.createDocument(SyncBatch.TYPE_ATTRIBUTE, reference.type.getName());
+        change.put(SyncBatch.UUID_ATTRIBUTE, reference.uuid.getString());
+        change.put(SyncBatch.VERSION_ATTRIBUTE, version);
+        if (object == null) {
+            change.put(SyncBatch.IS_REMOVED_ATTRIBUTE, true);
+        } else {
+            change.put(SyncBatch.DOCUMENT_ATTRIBUTE, dataRepository.documentOf(object));
+        }
+        return change;
+    }
+
+    // must be called in a transaction of the remote changes
+    private void applyRemoteChange(@NotNull ObjectReference reference, @NotNull Document remoteChange)
+            throws SportsLibraryException {
+        Object document = remoteChange.get(SyncBatch.DOCUMENT_ATTRIBUTE);
+        if (Boolean.TRUE.equals(remoteChange.get(SyncBatch.IS_REMOVED_ATTRIBUTE)) || !(document instanceof Document)) {
+            dataRepository.replaceObject(reference.type, reference.uuid, null);
+        } else if (hasUniqueConflict(reference, (Document) document)) {
+            // e.g. a template of the other device, the local object is kept
+            if (sportsLibrary.isDebugMode()) {
+                sportsLibrary.debug("The remote object has the unique attribute of a local object: "
+                        + reference.key);
+            }
+        } else {
+            dataRepository.replaceObject(reference.type, reference.uuid, (Document) document);
+        }
+    }
+
+    // another local object has the value of a unique attribute of the remote object
+    private boolean hasUniqueConflict(@NotNull ObjectReference reference, @NotNull Document remoteDocument) {
+        String attributeName = UNIQUE_ATTRIBUTES.get(reference.type);
+        Object value = attributeName == null ? null : remoteDocument.get(attributeName);
+        if (value == null) {
+            return false;
+        }
+        for (PersistentObject object : dataRepository.findByAttribute(attributeName, value, reference.type)) {
+            if (!object.getUUID().equals(reference.uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Resolution resolve(@NotNull ObjectReference reference, @Null PersistentObject localObject,
+                               @NotNull Document remoteChange) {
+        if (conflictHandler == null) {
+            return Resolution.KEEP_REMOTE;
+        }
+        Resolution resolution = conflictHandler.resolve(reference.type, reference.uuid, localObject,
+                remoteObjectOf(reference, remoteChange));
+        return resolution == null ? Resolution.KEEP_REMOTE : resolution;
+    }
+
+    @Null
+    private PersistentObject remoteObjectOf(@NotNull ObjectReference reference, @NotNull Document remoteChange) {
+        Object document = remoteChange.get(SyncBatch.DOCUMENT_ATTRIBUTE);
+        if (Boolean.TRUE.equals(remoteChange.get(SyncBatch.IS_REMOVED_ATTRIBUTE)) || !(document instanceof Document)) {
+            return null;
+        }
+        return dataRepository.getMapper().asObject((Document) document, reference.type);
+    }
+
+    // the local object has the state of the remote change
+    private boolean isEqual(@Null PersistentObject localObject, @NotNull Document remoteChange) {
+        if (localObject == null || Boolean.TRUE.equals(remoteChange.get(SyncBatch.IS_REMOVED_ATTRIBUTE))) {
+            return localObject == null && Boolean.TRUE.equals(remoteChange.get(SyncBatch.IS_REMOVED_ATTRIBUTE));
+        }
+        return Objects.equals(dataRepository.documentOf(localObject), remoteChange.get(SyncBatch.DOCUMENT_ATTRIBUTE));
+    }
+
+    // the version of the server, on which the local object is based
+    private long versionOf(@NotNull String key) {
+        Document state = dataRepository.findSyncState(VERSION_KEY_PREFIX + key);
+        Object version = state == null ? null : state.get(VERSION_ATTRIBUTE);
+        return version instanceof Number ? ((Number) version).longValue() : 0;
+    }
+
+    private Document versionStateOf(@NotNull String key, long version) {
+        Document state = Document.createDocument("key", VERSION_KEY_PREFIX + key);
+        state.put(VERSION_ATTRIBUTE, version);
+        return state;
+    }
+}
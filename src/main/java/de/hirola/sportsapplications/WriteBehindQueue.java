@@ -0,0 +1,324 @@
+package de.hirola.sportsapplications;
+
+import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.model.UUID;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A bounded queue for pending writes of the datastore. The writes are coalesced by the
+ * type and uuid of the objects and written by a background thread in one batch,
+ * if half of the queue is filled, the flush interval has elapsed or flush is called.
+ * If the queue is full, the calling thread writes the pending writes.
+ * Failed writes remain in the queue and are written again with the next flush.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+final class WriteBehindQueue {
+
+    /**
+     * A pending write of an object.
+     */
+    static final class PendingWrite {
+
+        private final int action;
+        private final PersistentObject object;
+        private boolean isWriting;
+
+        private PendingWrite(int action, @NotNull PersistentObject object) {
+            this.action = action;
+            this.object = object;
+        }
+
+        /**
+         * Get the action of the write, e.g. insert.
+         *
+         * @return The action of the write
+         */
+        public int getAction() {
+            return action;
+        }
+
+        /**
+         * Get the object of the write.
+         *
+         * @return The object to be written
+         */
+        public PersistentObject getObject() {
+            return object;
+        }
+    }
+
+    /**
+     * Writes the pending writes to the datastore in one batch.
+     */
+    interface Writer {
+
+        /**
+         * Write the pending writes in one batch.
+         *
+         * @param pendingWrites to be written
+         * @param failedWrites receives the writes with an error, which remain in the queue
+         * @throws SportsLibraryException if a write failed
+         */
+        void write(@NotNull List<PendingWrite> pendingWrites, @NotNull List<PendingWrite> failedWrites)
+                throws SportsLibraryException;
+    }
+
+    private final Writer writer;
+    private final int maxPendingWrites;
+    private final Map<String, PendingWrite> pendingWrites; // in order of the first write
+    private final Object flushLock;
+    private final ScheduledExecutorService executorService;
+    private SportsLibraryException backgroundException; // thrown by the next flush
+
+    /**
+     * Create a queue for pending writes and start the background writer.
+     *
+     * @param writer to write the pending writes
+     * @param maxPendingWrites maximum number of pending writes
+     * @param flushIntervalInMillis maximum time in milliseconds between the writes
+     */
+    WriteBehindQueue(@NotNull Writer writer, int maxPendingWrites, long flushIntervalInMillis) {
+        this.writer = writer;
+        this.maxPendingWrites = Math.max(1, maxPendingWrites);
+        pendingWrites = new LinkedHashMap<>();
+        flushLock = new Object();
+        executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sportsapplications-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, flushIntervalInMillis);
+        executorService.scheduleWithFixedDelay(this::flushDeferred, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a write to the queue. A pending write of the same object will be replaced,
+     * e.g. an insert followed by an update results in an insert of the updated object.
+     *
+     * @param action of the write
+     * @param object to be written
+     * @throws SportsLibraryException if the queue is full and an error occurred while writing
+     */
+    void enqueue(int action, @NotNull PersistentObject object) throws SportsLibraryException {
+        int size;
+        synchronized (this) {
+            String key = keyOf(object.getClass(), object.getUUID());
+            PendingWrite pendingWrite = pendingWrites.get(key);
+            if (pendingWrite == null || pendingWrite.isWriting) {
+                // a write in progress is handled as written
+                pendingWrites.put(key, new PendingWrite(action, object));
+            } else {
+                int coalescedAction = coalesce(pendingWrite.action, action);
+                if (coalescedAction < 0) {
+                    // inserted and removed before writing
+                    pendingWrites.remove(key);
+                } else {
+                    pendingWrites.put(key, new PendingWrite(coalescedAction, object));
+                }
+            }
+            size = pendingWrites.size();
+        }
+        if (size >= maxPendingWrites) {
+            // the writer is too slow, write on the calling thread
+            flush();
+        } else if (size >= maxPendingWrites / 2 && !executorService.isShutdown()) {
+            executorService.execute(this::flushDeferred);
+        }
+    }
+
+    /**
+     * Get the pending write of an object.
+     *
+     * @param type of the object
+     * @param uuid of the object
+     * @return The pending write of the object or null, if there is no pending write.
+     */
+    @Null
+    synchronized PendingWrite pendingWriteOf(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid) {
+        return pendingWrites.get(keyOf(type, uuid));
+    }
+
+    /**
+     * Get all pending writes of objects with the given type in order of the writes.
+     *
+     * @param type of the objects
+     * @return A list of pending writes. The list can be empty.
+     */
+    synchronized List<PendingWrite> pendingWritesOf(@NotNull Class<? extends PersistentObject> type) {
+        List<PendingWrite> results = new ArrayList<>();
+        for (PendingWrite pendingWrite : pendingWrites.values()) {
+            if (pendingWrite.object.getClass().equals(type)) {
+                results.add(pendingWrite);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get a flag to determine if there are pending writes for objects with the given type.
+     *
+     * @param type of the objects
+     * @return A flag to determine if there are pending writes
+     */
+    boolean hasPendingWrites(@NotNull Class<? extends PersistentObject> type) {
+        return !pendingWritesOf(type).isEmpty();
+    }
+
+    /**
+     * Get a flag to determine if there are pending writes.
+     *
+     * @return A flag to determine if there are pending writes
+     */
+    synchronized boolean hasPendingWrites() {
+        return !pendingWrites.isEmpty();
+    }
+
+    /**
+     * Get a flag to determine if the current thread writes the pending writes.
+     *
+     * @return A flag to determine if the current thread writes the pending writes
+     */
+    boolean isWritingOnCurrentThread() {
+        return Thread.holdsLock(flushLock);
+    }
+
+    /**
+     * Write all pending writes in one batch. Writes with an error remain in the queue.
+     * An error of a previous write in the background is thrown by the next call.
+     *
+     * @throws SportsLibraryException if an error occurred while writing
+     */
+    void flush() throws SportsLibraryException {
+        synchronized (flushLock) {
+            SportsLibraryException exception = backgroundException;
+            backgroundException = null;
+            try {
+                write();
+            } catch (SportsLibraryException writeException) {
+                if (exception == null) {
+                    exception = writeException;
+                } else {
+                    exception.addSuppressed(writeException);
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Write all pending writes in one batch, e.g. before a query.
+     * An error is thrown by the next call of flush.
+     */
+    void flushDeferred() {
+        synchronized (flushLock) {
+            try {
+                write();
+            } catch (SportsLibraryException exception) {
+                // report the first error with the next flush
+                if (backgroundException == null) {
+                    backgroundException = exception;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all pending writes without writing.
+     */
+    void clear() {
+        synchronized (flushLock) {
+            synchronized (this) {
+                pendingWrites.clear();
+            }
+            backgroundException = null;
+        }
+    }
+
+    /**
+     * Write all pending writes and stop the background writer.
+     *
+     * @throws SportsLibraryException if an error occurred while writing
+     */
+    void close() throws SportsLibraryException {
+        executorService.shutdown();
+        flush();
+    }
+
+    // must be called with the flush lock
+    private void write() throws SportsLibraryException {
+        List<PendingWrite> writes;
+        synchronized (this) {
+            writes = new ArrayList<>(pendingWrites.values());
+            // the writes are visible for readers until they are written
+            writes.forEach(pendingWrite -> pendingWrite.isWriting = true);
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
+        List<PendingWrite> failedWrites = new ArrayList<>();
+        try {
+            writer.write(writes, failedWrites);
+        } catch (SportsLibraryException | RuntimeException exception) {
+            if (failedWrites.isEmpty()) {
+                // the writer could not tell the failed writes
+                failedWrites.addAll(writes);
+            }
+            throw exception;
+        } finally {
+            synchronized (this) {
+                for (PendingWrite failedWrite : failedWrites) {
+                    requeue(failedWrite);
+                }
+                // newer writes of the same objects stay in the queue
+                pendingWrites.values().removeIf(pendingWrite -> pendingWrite.isWriting);
+            }
+        }
+    }
+
+    // a failed write is written again, combined with a newer write of the same object
+    private void requeue(@NotNull PendingWrite failedWrite) {
+        String key = keyOf(failedWrite.object.getClass(), failedWrite.object.getUUID());
+        PendingWrite pendingWrite = pendingWrites.get(key);
+        if (pendingWrite == failedWrite) {
+            failedWrite.isWriting = false;
+        } else if (pendingWrite == null) {
+            pendingWrites.put(key, new PendingWrite(failedWrite.action, failedWrite.object));
+        } else if (!pendingWrite.isWriting) {
+            int coalescedAction = coalesce(failedWrite.action, pendingWrite.action);
+            if (coalescedAction < 0) {
+                pendingWrites.remove(key);
+            } else {
+                pendingWrites.put(key, new PendingWrite(coalescedAction, pendingWrite.object));
+            }
+        }
+    }
+
+    // the resulting action of two writes of the same object, -1 if nothing is to do
+    static int coalesce(int pendingAction, int action) {
+        if (pendingAction == DataRepository.INSERT_ACTION) {
+            return action == DataRepository.REMOVE_ACTION ? -1 : DataRepository.INSERT_ACTION;
+        }
+        if (pendingAction == DataRepository.REMOVE_ACTION && action == DataRepository.INSERT_ACTION) {
+            // the object exists in the datastore
+            return DataRepository.UPDATE_ACTION;
+        }
+        return action;
+    }
+
+    private String keyOf(@NotNull Class<? extends PersistentObject> type, @NotNull UUID uuid) {
+        return type.getName() + ':' + uuid.getString();
+    }
+}
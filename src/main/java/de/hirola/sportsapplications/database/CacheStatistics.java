@@ -0,0 +1,80 @@
+package de.hirola.sportsapplications.database;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The counters of the object cache at a point in time.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+public final class CacheStatistics {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long weight;
+
+    /**
+     * Create the counters of the object cache.
+     *
+     * @param hits number of objects found in the cache
+     * @param misses number of objects not found in the cache
+     * @param evictions number of objects removed from the cache to limit the size
+     * @param weight current size of the cache
+     */
+    public CacheStatistics(long hits, long misses, long evictions, long weight) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.weight = weight;
+    }
+
+    /**
+     * Get the number of objects found in the cache.
+     *
+     * @return The number of objects found in the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of objects not found in the cache.
+     *
+     * @return The number of objects not found in the cache
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of objects removed from the cache to limit the size.
+     *
+     * @return The number of objects removed from the cache
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Get the current size of the cache. An object has the weight 1,
+     * a track the weight 1 plus the number of locations.
+     *
+     * @return The current size of the cache
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatistics{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", weight=" + weight +
+                '}';
+    }
+}
@@ -0,0 +1,121 @@
+package de.hirola.sportsapplications.database;
+
+import de.hirola.sportsapplications.model.UUID;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A change of an object in the change journal of the datastore.
+ * The changes are numbered in the order of their commit, without gaps.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+public final class ChangeRecord {
+
+    /**
+     * The operation of a change.
+     */
+    public enum Operation {
+        INSERT, UPDATE, REMOVE
+    }
+
+    private final long sequence;
+    private final Operation operation;
+    private final String typeName;
+    private final UUID uuid;
+    private final long timeInMillis;
+    private final Map<String, Object> diff;
+
+    /**
+     * Create a change of an object.
+     *
+     * @param sequence number of the change
+     * @param operation of the change
+     * @param typeName name of the class of the object
+     * @param uuid of the object
+     * @param timeInMillis of the change
+     * @param diff changed attributes with their new values, can be null
+     */
+    public ChangeRecord(long sequence, @NotNull Operation operation, @NotNull String typeName, @NotNull UUID uuid,
+                        long timeInMillis, @Null Map<String, Object> diff) {
+        this.sequence = sequence;
+        this.operation = operation;
+        this.typeName = typeName;
+        this.uuid = uuid;
+        this.timeInMillis = timeInMillis;
+        this.diff = diff == null ? null : Collections.unmodifiableMap(diff);
+    }
+
+    /**
+     * Get the number of the change.
+     *
+     * @return The sequence number of the change
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the operation of the change.
+     *
+     * @return The operation of the change
+     */
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Get the name of the class of the changed object.
+     *
+     * @return The name of the class of the object
+     */
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * Get the uuid of the changed object.
+     *
+     * @return The uuid of the object
+     */
+    public UUID getUUID() {
+        return uuid;
+    }
+
+    /**
+     * Get the time of the change.
+     *
+     * @return The time of the change in milliseconds since the epoch
+     */
+    public long getTimeInMillis() {
+        return timeInMillis;
+    }
+
+    /**
+     * Get the changed attributes of the object with their new values.
+     * An insert contains all attributes, a remove none.
+     *
+     * @return The changed attributes or null, if the changes were recorded without the attributes
+     */
+    @Null
+    public Map<String, Object> getDiff() {
+        return diff;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeRecord{" +
+                "sequence=" + sequence +
+                ", operation=" + operation +
+                ", typeName='" + typeName + '\'' +
+                ", uuid=" + uuid +
+                '}';
+    }
+}
@@ -0,0 +1,79 @@
+package de.hirola.sportsapplications.database;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The counters of the compaction of the database file at a point in time.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+public final class CompactionStatistics {
+
+    private final long compactions;
+    private final long reclaimedBytes;
+    private final long fileSize;
+    private final int fillRate;
+
+    /**
+     * Create the counters of the compaction.
+     *
+     * @param compactions number of compactions
+     * @param reclaimedBytes number of bytes removed from the database file by the compactions
+     * @param fileSize current size of the database file in bytes
+     * @param fillRate current rate of live data in the database file in percent
+     */
+    public CompactionStatistics(long compactions, long reclaimedBytes, long fileSize, int fillRate) {
+        this.compactions = compactions;
+        this.reclaimedBytes = reclaimedBytes;
+        this.fileSize = fileSize;
+        this.fillRate = fillRate;
+    }
+
+    /**
+     * Get the number of compactions.
+     *
+     * @return The number of compactions
+     */
+    public long getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * Get the number of bytes removed from the database file by the compactions.
+     *
+     * @return The number of reclaimed bytes
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    /**
+     * Get the current size of the database file.
+     *
+     * @return The size of the database file in bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Get the current rate of live data in the database file.
+     *
+     * @return The fill rate in percent
+     */
+    public int getFillRate() {
+        return fillRate;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactionStatistics{" +
+                "compactions=" + compactions +
+                ", reclaimedBytes=" + reclaimedBytes +
+                ", fileSize=" + fileSize +
+                ", fillRate=" + fillRate +
+                '}';
+    }
+}
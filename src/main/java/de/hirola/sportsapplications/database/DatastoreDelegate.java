@@ -1,10 +1,14 @@
 package de.hirola.sportsapplications.database;
 
+import java.util.List;
+
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
  * This software us licensed under the AGPL-3.0 or later.
  *
  * Delegate for datastore events. Update the ui without view model.
+ * Batch operations report all objects in one event. By default the batch events
+ * are forwarded to the events for a single object.
  *
  * @author Michael Schmidt (Hirola)
  * @since v0.1
@@ -13,4 +17,22 @@ public interface DatastoreDelegate {
     default void didObjectAdded(PersistentObject persistentObject) {}
     default void didObjectUpdated(PersistentObject persistentObject) {}
     default void didObjectRemoved(PersistentObject persistentObject) {}
+
+    default void didObjectsAdded(List<? extends PersistentObject> persistentObjects) {
+        for (PersistentObject persistentObject : persistentObjects) {
+            didObjectAdded(persistentObject);
+        }
+    }
+
+    default void didObjectsUpdated(List<? extends PersistentObject> persistentObjects) {
+        for (PersistentObject persistentObject : persistentObjects) {
+            didObjectUpdated(persistentObject);
+        }
+    }
+
+    default void didObjectsRemoved(List<? extends PersistentObject> persistentObjects) {
+        for (PersistentObject persistentObject : persistentObjects) {
+            didObjectRemoved(persistentObject);
+        }
+    }
 }
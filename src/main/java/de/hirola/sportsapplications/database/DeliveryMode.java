@@ -0,0 +1,22 @@
+package de.hirola.sportsapplications.database;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * The delivery of datastore events to a delegate.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+public enum DeliveryMode {
+    /**
+     * The events are delivered on the thread changing the datastore, before the change returns.
+     */
+    SYNCHRONOUS,
+    /**
+     * The events are delivered on a background thread. Events of the same object within
+     * a short time are coalesced, e.g. an added and updated object is reported once as added.
+     */
+    ASYNCHRONOUS
+}
@@ -1,7 +1,21 @@
 package de.hirola.sportsapplications.database;
 
 import de.hirola.sportsapplications.model.UUID;
+import org.dizitart.no2.Document;
 import org.dizitart.no2.mapper.Mappable;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Null;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Copyright 2021 by Michael Schmidt, Hirola Consulting
@@ -10,9 +24,136 @@ import org.dizitart.no2.mapper.Mappable;
  * A layer to abstract the used data management library.
  * Objects of this type can be managed in the data store.
  *
+ * The datastore remembers the document of an object after loading or saving,
+ * so that only the changed objects and fields are written by an update.
+ * Objects loaded from a document with an older schema are written completely by the next update.
+ * The saved document is a second copy of the values, so that a loaded object needs about twice
+ * the memory, e.g. a track with its locations. The copies of a cached object share its saved document.
+ *
  * @author Michael Schmidt (Hirola)
  * @since v0.1
  */
-public abstract class PersistentObject implements Mappable {
+public abstract class PersistentObject implements Mappable, Cloneable {
+
+    // the fields of each type with values, which are copied with the object
+    private static final Map<Class<?>, List<Field>> COPIED_FIELDS = new ConcurrentHashMap<>();
+
+    private transient Document savedDocument; // null, if the saved state is unknown
+    private transient boolean isSchemaOutdated; // loaded from a document with an older schema
+
     public abstract UUID getUUID();
+
+    /**
+     * Get the document of the object at the last load or save.
+     *
+     * @return The saved document or null, if the saved state of the object is unknown.
+     */
+    @Null
+    public Document getSavedDocument() {
+        return savedDocument;
+    }
+
+    /**
+     * Set the document of the object at the last load or save. Set by the datastore.
+     *
+     * @param savedDocument of the object or null, if the object is not saved
+     */
+    public void setSavedDocument(@Null Document savedDocument) {
+        this.savedDocument = savedDocument;
+    }
+
+    /**
+     * Get a flag to determine if the object was loaded from a document with an older schema,
+     * which is not yet written with the current schema.
+     *
+     * @return A flag to determine if the saved document has an older schema
+     */
+    public boolean isSchemaOutdated() {
+        return isSchemaOutdated;
+    }
+
+    /**
+     * Set a flag to determine if the saved document of the object has an older schema. Set by the datastore.
+     *
+     * @param isSchemaOutdated a flag to determine if the saved document has an older schema
+     */
+    public void setSchemaOutdated(boolean isSchemaOutdated) {
+        this.isSchemaOutdated = isSchemaOutdated;
+    }
+
+    /**
+     * Get the names of the fields changed since the last load or save.
+     *
+     * @param document with the current state of the object
+     * @return The names of the changed fields. If the saved state is unknown, all fields are changed.
+     */
+    public Set<String> getChangedFields(@NotNull Document document) {
+        Set<String> changedFields = new HashSet<>();
+        for (String field : document.keySet()) {
+            if (savedDocument == null || !savedDocument.containsKey(field)
+                    || !Objects.equals(savedDocument.get(field), document.get(field))) {
+                changedFields.add(field);
+            }
+        }
+        return changedFields;
+    }
+
+    /**
+     * Get a copy of the object, e.g. of an object in the cache of the datastore. The copy is not decoded
+     * from a document, the embedded objects, lists and dates are copied. The saved document is shared,
+     * it is replaced and not changed by the datastore.
+     *
+     * @return A copy of the object
+     */
+    public PersistentObject copy() {
+        try {
+            PersistentObject copy = (PersistentObject) clone();
+            for (Field field : copiedFieldsOf(getClass())) {
+                field.set(copy, copyOf(field.get(this)));
+            }
+            return copy;
+        } catch (CloneNotSupportedException | IllegalAccessException exception) {
+            throw new IllegalStateException("The object " + getClass().getSimpleName() + " could not be copied.",
+                    exception);
+        }
+    }
+
+    // primitive, immutable and final values are shared with the copy
+    private static List<Field> copiedFieldsOf(@NotNull Class<?> type) {
+        return COPIED_FIELDS.computeIfAbsent(type, key -> {
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> declaringType = key; declaringType != PersistentObject.class;
+                 declaringType = declaringType.getSuperclass()) {
+                for (Field field : declaringType.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || field.getType().isPrimitive()
+                            || field.getType().equals(String.class) || field.getType().equals(UUID.class)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+            return fields;
+        });
+    }
+
+    @Null
+    private static Object copyOf(@Null Object value) {
+        if (value instanceof PersistentObject) {
+            return ((PersistentObject) value).copy();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> copy = new ArrayList<>(list.size());
+            for (Object element : list) {
+                copy.add(copyOf(element));
+            }
+            return copy;
+        }
+        return value;
+    }
 }
@@ -0,0 +1,20 @@
+package de.hirola.sportsapplications.database;
+
+import org.dizitart.no2.Document;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Upgrades the saved document of an object by one schema version, e.g. renames or converts a field.
+ * The document is changed in place. An upgrade must not depend on other documents.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ * @see de.hirola.sportsapplications.Global#SCHEMA_UPGRADES
+ */
+public interface SchemaUpgrade {
+    void upgrade(@NotNull Document document);
+}
@@ -0,0 +1,125 @@
+package de.hirola.sportsapplications.database;
+
+import de.hirola.sportsapplications.Global;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * Presets for the local datastore, depending on the memory and I/O budget of the deployment.
+ * The profile is passed with the first instance of the library and applies until the library is closed.
+ *
+ * The changes of a transaction are held in memory until the commit. If the unsaved changes exceed
+ * the buffer of the profile, the store writes them before the commit. A failed transaction is
+ * rolled back to the state before the transaction, but if the process is terminated during
+ * the transaction, the written changes remain saved.
+ *
+ * The size of the database file depends mostly on the layout of the locations of the tracks,
+ * about 1.4 KB per location with separately stored locations and about 0.26 KB per location
+ * with embedded locations (uncompressed pages). In memory every loaded object keeps the document
+ * of its last load or save, so that a loaded object and each cached object needs about twice its size.
+ *
+ * The numbers of the presets are measured with testStorageProfileBenchmark of the tests:
+ * mvn test -Dtest=SportsLibraryTest#testStorageProfileBenchmark -Dsportslibrary.benchmark=true
+ * The workload adds 100 tracks with 1000 locations each (embedded locations) one by one, one commit each,
+ * reads all tracks by their uuid and reads them again, partly from the object cache. The file size
+ * is measured after adding, before the compaction in the background. The numbers are the median
+ * of 3 runs (JDK 17, Linux, 1 CPU) and are meant to compare the presets, not as absolute numbers.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ */
+public enum StorageProfile {
+    /**
+     * The default store: database file, 16 MB page cache (the default of the store),
+     * 1 GB buffer for transactions, no compression. The first versions of the library committed
+     * every change automatically with a 1 MB buffer, the profiles commit with each transaction.
+     * Add 2.21 s, read 1.30 s, read again 0.43 s, file 47.6 MB.
+     */
+    DEFAULT(false, 16, 1024 * 1024, false, Global.OBJECT_CACHE_MAX_WEIGHT),
+    /**
+     * No database file, all objects are lost when the library is closed, e.g. for tests
+     * or short-lived workers. The page cache is not used, the pages are kept in memory.
+     * Add 0.45 s, read 0.27 s, read again 0.25 s.
+     */
+    IN_MEMORY(true, 0, 1024 * 1024, false, Global.OBJECT_CACHE_MAX_WEIGHT),
+    /**
+     * Mobile devices with little memory: 4 MB page cache, 64 MB buffer for transactions,
+     * compressed pages and a small object cache. The compression makes the file smaller
+     * and costs time while writing.
+     * Add 2.14 s, read 0.50 s, read again 0.46 s, file 6.7 MB.
+     */
+    MOBILE_LOW_MEMORY(false, 4, 64 * 1024, true, 1000),
+    /**
+     * Servers with many writes: 256 MB page cache, 1 GB buffer for transactions, no compression.
+     * Add 1.53 s, read 0.22 s, read again 0.21 s, file 37.7 MB.
+     */
+    SERVER_HIGH_THROUGHPUT(false, 256, 1024 * 1024, false, Global.OBJECT_CACHE_MAX_WEIGHT),
+    /**
+     * Mostly reading applications, e.g. analysis of recorded tracks: 128 MB page cache
+     * and a large object cache, so that most reads are served from memory.
+     * Add 1.37 s, read 0.36 s, read again 0.003 s, file 48.1 MB.
+     */
+    READ_HEAVY(false, 128, 1024 * 1024, false, 200000);
+
+    private final boolean isInMemory;
+    private final int cacheSizeInMB;
+    private final int commitBufferSizeInKB;
+    private final boolean isCompressed;
+    private final long objectCacheMaxWeight;
+
+    StorageProfile(boolean isInMemory, int cacheSizeInMB, int commitBufferSizeInKB,
+                   boolean isCompressed, long objectCacheMaxWeight) {
+        this.isInMemory = isInMemory;
+        this.cacheSizeInMB = cacheSizeInMB;
+        this.commitBufferSizeInKB = commitBufferSizeInKB;
+        this.isCompressed = isCompressed;
+        this.objectCacheMaxWeight = objectCacheMaxWeight;
+    }
+
+    /**
+     * Get a flag to determine if the objects are stored only in memory.
+     *
+     * @return A flag to determine if no database file is used
+     */
+    public boolean isInMemory() {
+        return isInMemory;
+    }
+
+    /**
+     * Get the size of the cache for the pages of the database file.
+     *
+     * @return The size of the page cache in MB
+     */
+    public int getCacheSizeInMB() {
+        return cacheSizeInMB;
+    }
+
+    /**
+     * Get the size of the buffer for the unsaved changes of a transaction.
+     *
+     * @return The size of the buffer in KB
+     */
+    public int getCommitBufferSizeInKB() {
+        return commitBufferSizeInKB;
+    }
+
+    /**
+     * Get a flag to determine if the pages of the database file are compressed.
+     *
+     * @return A flag to determine if the pages are compressed
+     */
+    public boolean isCompressed() {
+        return isCompressed;
+    }
+
+    /**
+     * Get the maximum size of the cache for objects read from the datastore.
+     * An object has the weight 1, a track the weight 1 plus the number of locations.
+     *
+     * @return The maximum size of the object cache
+     */
+    public long getObjectCacheMaxWeight() {
+        return objectCacheMaxWeight;
+    }
+}
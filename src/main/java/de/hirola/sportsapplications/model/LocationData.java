@@ -6,6 +6,7 @@ import de.hirola.sportsapplications.util.UUIDFactory;
 import org.dizitart.no2.Document;
 import org.dizitart.no2.mapper.NitriteMapper;
 import org.dizitart.no2.objects.Id;
+import javax.validation.constraints.NotNull;
 
 import java.util.Objects;
 import java.util.Optional;
@@ -21,6 +22,15 @@ import java.util.Optional;
  */
 public class LocationData extends PersistentObject {
 
+    // the fields of the document
+    private static final String UUID_FIELD = "uuid";
+    private static final String TIME_STAMP_FIELD = "timeStamp";
+    private static final String PROVIDER_FIELD = "provider";
+    private static final String LATITUDE_FIELD = "latitude";
+    private static final String LONGITUDE_FIELD = "longitude";
+    private static final String ELEVATION_FIELD = "elevation";
+    private static final String SPEED_FIELD = "speed";
+
     @Id
     private String uuid = UUIDFactory.generateUUID();
     private long timeStamp; // UTC time of this location, in milliseconds since epoch (January 1, 1970).
@@ -186,14 +196,15 @@ public class LocationData extends PersistentObject {
 
     @Override
     public Document write(NitriteMapper mapper) {
+        // the values must be compared by isWrittenTo too
         Document document = new Document();
-        document.put("uuid", uuid);
-        document.put("timeStamp", timeStamp);
-        document.put("provider", gpsFix);
-        document.put("latitude", latitude);
-        document.put("longitude", longitude);
-        document.put("elevation", elevation);
-        document.put("speed", speed);
+        document.put(UUID_FIELD, uuid);
+        document.put(TIME_STAMP_FIELD, timeStamp);
+        document.put(PROVIDER_FIELD, gpsFix);
+        document.put(LATITUDE_FIELD, latitude);
+        document.put(LONGITUDE_FIELD, longitude);
+        document.put(ELEVATION_FIELD, elevation);
+        document.put(SPEED_FIELD, speed);
 
         return document;
     }
@@ -201,17 +212,34 @@ public class LocationData extends PersistentObject {
     @Override
     public void read(NitriteMapper mapper, Document document) {
         if (document != null) {
-            uuid = (String) document.get("uuid");
-            timeStamp = (long) document.get("timeStamp");
-            gpsFix = (String) document.get("provider");
-            latitude = (double) document.get("latitude");
-            longitude = (double) document.get("longitude");
-            elevation = (double) document.get("elevation");
-            speed = (double) document.get("speed");
+            uuid = (String) document.get(UUID_FIELD);
+            timeStamp = (long) document.get(TIME_STAMP_FIELD);
+            gpsFix = (String) document.get(PROVIDER_FIELD);
+            latitude = (double) document.get(LATITUDE_FIELD);
+            longitude = (double) document.get(LONGITUDE_FIELD);
+            elevation = (double) document.get(ELEVATION_FIELD);
+            speed = (double) document.get(SPEED_FIELD);
 
         }
     }
 
+    /**
+     * Get a flag to determine if a document contains the current values of the location.
+     * The values are compared without writing a new document, e.g. to find the changed locations of a track.
+     *
+     * @param document of the location, written by {@link #write(NitriteMapper)}
+     * @return A flag to determine if the values of the location are not changed since the document was written
+     */
+    public boolean isWrittenTo(@NotNull Document document) {
+        return Objects.equals(document.get(UUID_FIELD), uuid)
+                && Objects.equals(document.get(TIME_STAMP_FIELD), timeStamp)
+                && Objects.equals(document.get(PROVIDER_FIELD), gpsFix)
+                && Objects.equals(document.get(LATITUDE_FIELD), latitude)
+                && Objects.equals(document.get(LONGITUDE_FIELD), longitude)
+                && Objects.equals(document.get(ELEVATION_FIELD), elevation)
+                && Objects.equals(document.get(SPEED_FIELD), speed);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -344,6 +344,8 @@ public class Track extends PersistentObject {
 
         if (locationData != null) {
             document.put("locationData", ListMapper.toDocumentsList(mapper, locationData));
+            // read by the track summary without decoding the locations
+            document.put("numberOfLocations", locationData.size());
         }
 
 
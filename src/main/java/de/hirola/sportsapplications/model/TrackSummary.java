@@ -0,0 +1,192 @@
+package de.hirola.sportsapplications.model;
+
+import de.hirola.sportsapplications.util.DateUtil;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.mapper.Mappable;
+import org.dizitart.no2.mapper.NitriteMapper;
+
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Copyright 2021 by Michael Schmidt, Hirola Consulting
+ * This software us licensed under the AGPL-3.0 or later.
+ *
+ * A read only projection of a track with the scalar values only.
+ * The locations of the track are not loaded, e.g. to show a list of tracks.
+ *
+ * @author Michael Schmidt (Hirola)
+ * @since v0.1
+ * @see Track
+ */
+public final class TrackSummary implements Mappable {
+
+    private String uuid;
+    private String name;
+    private String description;
+    private Date importDate;
+    private long startTimeInMilli = -1;
+    private long stopTimeInMilli = -1;
+    private double distance = -1.0;
+    private double averageSpeed = -1.0;
+    private double elevationDifference = -1.0;
+    private int numberOfLocations;
+
+    /**
+     * Default constructor for reflection and database management.
+     */
+    public TrackSummary() {
+    }
+
+    /**
+     * Get the uuid of the track, e.g. to load the complete track.
+     *
+     * @return The uuid of the track.
+     */
+    public UUID getUUID() {
+        return new UUID(uuid);
+    }
+
+    /**
+     * Get the name the track.
+     *
+     * @return The name of the track.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the description of the track.
+     *
+     * @return The description of the track.
+     */
+    public Optional<String> getDescription() {
+        return Optional.ofNullable(description);
+    }
+
+    /**
+     * Get the import date of the track.
+     *
+     * @return The import date of the track.
+     */
+    public Optional<LocalDate> getImportDate() {
+        return Optional.ofNullable(DateUtil.getLocalDateFromDate(importDate));
+    }
+
+    /**
+     * Get the start time the track in milliseconds to UTC Time
+     * or -1 if no time is set.
+     *
+     * @return The start time of the track in milliseconds to UTC Time
+     */
+    public long getStartTimeInMilli() {
+        return startTimeInMilli;
+    }
+
+    /**
+     * Get the stop time the track in milliseconds to UTC Time
+     * or -1 if no time is set.
+     *
+     * @return The stop time of the track.
+     */
+    public long getStopTimeInMilli() {
+        return stopTimeInMilli;
+    }
+
+    /**
+     * Get the distance of the track in meters.
+     *
+     * @return The distance of the track in meters.
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * Get the average speed of the track in km/h.
+     *
+     * @return The average speed of the track in km/h
+     */
+    public double getAverageSpeed() {
+        if (averageSpeed == -1) {
+            return 0.0;
+        }
+        return averageSpeed;
+    }
+
+    /**
+     * Get the altitudeDifference of the track in meter.
+     *
+     * @return The altitude difference of the track in meter.
+     */
+    public double getElevationDifference() {
+        return elevationDifference;
+    }
+
+    /**
+     * Get the number of locations of the track.
+     *
+     * @return The number of locations of the track.
+     */
+    public int getNumberOfLocations() {
+        return numberOfLocations;
+    }
+
+    @Override
+    public Document write(NitriteMapper mapper) {
+        Document document = new Document();
+        document.put("uuid", uuid);
+        document.put("name", name);
+        document.put("description", description);
+        document.put("importDate", importDate);
+        document.put("startTimeInMilli", startTimeInMilli);
+        document.put("stopTimeInMilli", stopTimeInMilli);
+        document.put("distance", distance);
+        document.put("averageSpeed", averageSpeed);
+        document.put("elevationDifference", elevationDifference);
+        document.put("numberOfLocations", numberOfLocations);
+
+        return document;
+    }
+
+    @Override
+    public void read(NitriteMapper mapper, Document document) {
+        if (document != null) {
+            uuid = (String) document.get("uuid");
+            name = (String) document.get("name");
+            description = (String) document.get("description");
+            importDate = (Date) document.get("importDate");
+            startTimeInMilli = (long) document.get("startTimeInMilli");
+            stopTimeInMilli = (long) document.get("stopTimeInMilli");
+            distance = (double) document.get("distance");
+            averageSpeed = (double) document.get("averageSpeed");
+            elevationDifference = (double) document.get("elevationDifference");
+
+            Object numberOfLocationsValue = document.get("numberOfLocations");
+            if (numberOfLocationsValue instanceof Integer) {
+                numberOfLocations = (int) numberOfLocationsValue;
+            } else {
+                // tracks saved without the number, count the documents without mapping
+                Object locationDocuments = document.get("locationData");
+                numberOfLocations = locationDocuments instanceof List ? ((List<?>) locationDocuments).size() : 0;
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TrackSummary that = (TrackSummary) o;
+        return Objects.equals(uuid, that.uuid);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(uuid);
+    }
+}
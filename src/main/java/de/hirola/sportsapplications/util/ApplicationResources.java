@@ -23,7 +23,7 @@ public final class ApplicationResources
 	private static final String RESOURCE_NOT_FOUND = "[Resource cannot be found]";
 	private ResourceBundle resourceBundle;
 
-	public static ApplicationResources getInstance() {
+	public static synchronized ApplicationResources getInstance() {
 		if (instance == null) {
 			instance = new ApplicationResources();
 		}
@@ -19,6 +19,8 @@ import javax.validation.constraints.Null;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
@@ -115,6 +117,57 @@ public class TemplateLoader {
         }
     }
 
+    /**
+     * Get a hash of the templates, which are added to a new data store. The hash contains the movement types,
+     * the training types, the index of the running plans and every running plan template of the index.
+     * The hash is saved with the data store, to determine if the templates are changed since the first start.
+     * Changed templates are not added to a data store with objects, because the running plans
+     * would be duplicated. For such a data store the hash records the checked templates, not the added templates.
+     *
+     * @return The hash (SHA-256) of the templates or null, if the templates are provided by the application
+     *         or could not be read
+     */
+    @Null
+    public String getTemplateBundleHash() {
+        if (isRunningOnAndroid) {
+            // the templates of the application can be read only once
+            return null;
+        }
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            List<String> resourceNames = new ArrayList<>(List.of(Global.MOVEMENT_TYPES_JSON,
+                    Global.TRAINING_TYPES_JSON, Global.RUNNING_PLAN_TEMPLATE_INDEX_JSON));
+            try (InputStream inputStream = getClass().getResourceAsStream(Global.RUNNING_PLAN_TEMPLATE_INDEX_JSON)) {
+                if (inputStream == null) {
+                    return null;
+                }
+                // the running plan templates in the order of the index
+                for (RunningPlanTemplateFile runningPlanTemplateFile
+                        : new ObjectMapper().readValue(inputStream, RunningPlanTemplateFile[].class)) {
+                    resourceNames.add(Global.JSON_RESOURCES + "/" + runningPlanTemplateFile.fileName + ".json");
+                }
+            }
+            for (String resourceName : resourceNames) {
+                try (InputStream inputStream = getClass().getResourceAsStream(resourceName)) {
+                    if (inputStream == null) {
+                        return null;
+                    }
+                    messageDigest.update(IOUtils.toByteArray(inputStream));
+                }
+            }
+            StringBuilder hash = new StringBuilder();
+            for (byte value : messageDigest.digest()) {
+                hash.append(String.format("%02x", value));
+            }
+            return hash.toString();
+        } catch (IOException | NoSuchAlgorithmException exception) {
+            if (sportsLibrary.isDebugMode()) {
+                sportsLibrary.debug(exception, "Could not read the templates.");
+            }
+            return null;
+        }
+    }
+
     /**
      * Loads objects of specific types from available templates (JSON) and adds them to the local data store.
      *
@@ -277,9 +330,8 @@ public class TemplateLoader {
             }
             // Trainingsarten speichern
             try {
-                for (TrainingType trainingType : trainingTypes) {
-                    sportsLibrary.add(trainingType);
-                }
+                // one datastore operation for all types
+                sportsLibrary.addAll(Arrays.asList(trainingTypes));
             } catch (SportsLibraryException exception) {
                 // TODO: Logging
                 String errorMessage = "Error occurred while saving an TrainingType object: ".concat(exception.getMessage());
@@ -318,9 +370,8 @@ public class TemplateLoader {
             }
             // Bewegungsarten speichern
             try {
-                for (MovementType movementType : movementTypes) {
-                    sportsLibrary.add(movementType);
-                }
+                // one datastore operation for all types
+                sportsLibrary.addAll(Arrays.asList(movementTypes));
             } catch (SportsLibraryException exception) {
                 // TODO: Logging
                 String errorMessage = "Error occurred while saving an MovementType: "
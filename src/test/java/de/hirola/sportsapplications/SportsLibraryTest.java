@@ -1,6 +1,13 @@
 package de.hirola.sportsapplications;
 
+import de.hirola.sportsapplications.database.CacheStatistics;
+import de.hirola.sportsapplications.database.ChangeRecord;
+import de.hirola.sportsapplications.database.CompactionStatistics;
+import de.hirola.sportsapplications.database.DatastoreDelegate;
+import de.hirola.sportsapplications.database.DeliveryMode;
+import de.hirola.sportsapplications.database.LocationStorage;
 import de.hirola.sportsapplications.database.PersistentObject;
+import de.hirola.sportsapplications.database.StorageProfile;
 import de.hirola.sportsapplications.model.*;
 
 import de.hirola.sportsapplications.model.UUID;
@@ -8,7 +15,11 @@ import de.hirola.sportsapplications.util.*;
 import io.jenetics.jpx.GPX;
 import io.jenetics.jpx.TrackSegment;
 import io.jenetics.jpx.WayPoint;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.Nitrite;
+import org.dizitart.no2.objects.filters.ObjectFilters;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -17,6 +28,7 @@ import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 class SportsLibraryTest {
@@ -271,6 +283,8 @@ class SportsLibraryTest {
         SportsLibrary sportsLibrary = null;
         try {
             sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            // the locations are checked as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
 
             // create a track with locationData
             LocationData locationData1 = new LocationData();
@@ -315,15 +329,1154 @@ class SportsLibraryTest {
             // delete all objects
             if (sportsLibrary != null) {
                 sportsLibrary.clearAll();
+                resetLocationStorage(sportsLibrary);
             }
         }
     }
 
+    @Test
+    void testTrackWithManyLocations() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            // the locations are checked as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
+
+            // a long track
+            List<LocationData> locationData = new ArrayList<>(5000);
+            for (int i = 0; i < 5000; i++) {
+                locationData.add(new LocationData(51.0 + i * 0.0001, 14.2));
+            }
+            Track track = new Track("Long-Track", null, locationData);
+            sportsLibrary.add(track);
+            assertEquals(5000, sportsLibrary.findAll(LocationData.class).size(), "LocationData not saved.");
+
+            // a new track with an existing location must not be saved
+            List<LocationData> otherLocationData = new ArrayList<>(2);
+            otherLocationData.add(new LocationData());
+            otherLocationData.add(locationData.get(0));
+            Track otherTrack = new Track("Other-Track", null, otherLocationData);
+            final SportsLibrary library = sportsLibrary;
+            assertThrows(SportsLibraryException.class, () -> library.add(otherTrack));
+            assertNull(sportsLibrary.findByUUID(Track.class, otherTrack.getUUID()), "Track must not be saved.");
+            assertEquals(5000, sportsLibrary.findAll(LocationData.class).size(), "LocationData must not be saved.");
+
+            // update the track with a new location
+            track.setName("Renamed-Track");
+            track.getLocations().add(new LocationData());
+            sportsLibrary.update(track);
+            Track updatedTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(updatedTrack);
+            assertEquals("Renamed-Track", updatedTrack.getName());
+            assertEquals(5001, sportsLibrary.findAll(LocationData.class).size(), "New location was not saved.");
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+                resetLocationStorage(sportsLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testLongTrackTiming() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            // the locations are checked as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
+
+            // a short ride and a long ride with a location every second,
+            // the time for each location must not grow with the length of the track
+            Track shortTrack = new Track("Short-Ride", null, locationsOf(2000));
+            Track longTrack = new Track("Long-Ride", null, locationsOf(20000));
+            long startTime = System.nanoTime();
+            sportsLibrary.add(shortTrack);
+            long shortInsertTime = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            sportsLibrary.add(longTrack);
+            long longInsertTime = System.nanoTime() - startTime;
+            assertEquals(22000, sportsLibrary.findAll(LocationData.class).size(), "LocationData not saved.");
+            assertTrue(longInsertTime < 20 * shortInsertTime,
+                    "Insert of 20000 locations took " + longInsertTime / 1000000 + " ms, of 2000 locations "
+                            + shortInsertTime / 1000000 + " ms.");
+
+            // the locations are removed with the track
+            startTime = System.nanoTime();
+            sportsLibrary.delete(shortTrack);
+            long shortDeleteTime = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            sportsLibrary.delete(longTrack);
+            long longDeleteTime = System.nanoTime() - startTime;
+            assertTrue(sportsLibrary.findAll(LocationData.class).isEmpty(), "LocationData not removed.");
+            assertTrue(longDeleteTime < 20 * shortDeleteTime,
+                    "Delete of 20000 locations took " + longDeleteTime / 1000000 + " ms, of 2000 locations "
+                            + shortDeleteTime / 1000000 + " ms.");
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+                resetLocationStorage(sportsLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testTrackSummaries() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+
+            List<LocationData> locationData = new ArrayList<>(3);
+            for (int i = 0; i < 3; i++) {
+                locationData.add(new LocationData(51.0 + i * 0.0001, 14.2));
+            }
+            Track track = new Track("Summary-Track", "A description", LocalDate.now(),
+                    1000L, 2000L, 10.5, 1234.0, locationData);
+            sportsLibrary.add(track);
+
+            List<TrackSummary> trackSummaries = sportsLibrary.findTrackSummaries();
+            assertEquals(1, trackSummaries.size(), "Summary of track not found.");
+            TrackSummary trackSummary = trackSummaries.get(0);
+            assertEquals(track.getUUID(), trackSummary.getUUID());
+            assertEquals("Summary-Track", trackSummary.getName());
+            assertEquals(Optional.of("A description"), trackSummary.getDescription());
+            assertEquals(Optional.of(LocalDate.now()), trackSummary.getImportDate());
+            assertEquals(1000L, trackSummary.getStartTimeInMilli());
+            assertEquals(2000L, trackSummary.getStopTimeInMilli());
+            assertEquals(10.5, trackSummary.getAverageSpeed());
+            assertEquals(1234.0, trackSummary.getDistance());
+            assertEquals(3, trackSummary.getNumberOfLocations());
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+            }
+        }
+    }
+
+    @Test
+    void testLocationStorage() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            assertEquals(Global.DEFAULT_LOCATION_STORAGE, sportsLibrary.getLocationStorage());
+
+            List<LocationData> locationData = new ArrayList<>(3);
+            for (int i = 0; i < 3; i++) {
+                locationData.add(new LocationData(51.0 + i * 0.0001, 14.2));
+            }
+            Track track = new Track("Storage-Track", null, locationData);
+            sportsLibrary.add(track);
+
+            // the locations are stored only as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
+            assertEquals(3, sportsLibrary.findAll(LocationData.class).size());
+            Track separateTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(separateTrack);
+            assertEquals(uuidsOf(locationData), uuidsOf(separateTrack.getLocations()), "Locations not loaded in order.");
+
+            // migrate to embedded locations
+            sportsLibrary.setLocationStorage(LocationStorage.EMBEDDED);
+            assertEquals(LocationStorage.EMBEDDED, sportsLibrary.getLocationStorage());
+            assertTrue(sportsLibrary.findAll(LocationData.class).isEmpty(), "Locations are stored twice.");
+            Track embeddedTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(embeddedTrack);
+            assertEquals(uuidsOf(locationData), uuidsOf(embeddedTrack.getLocations()), "Locations not migrated.");
+
+            // update with embedded locations
+            embeddedTrack.getLocations().add(new LocationData());
+            sportsLibrary.update(embeddedTrack);
+            assertTrue(sportsLibrary.findAll(LocationData.class).isEmpty(), "Locations are stored twice.");
+
+            // migrate back
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
+            assertEquals(4, sportsLibrary.findAll(LocationData.class).size(), "Locations not migrated.");
+            separateTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(separateTrack);
+            assertEquals(uuidsOf(embeddedTrack.getLocations()), uuidsOf(separateTrack.getLocations()),
+                    "Locations not migrated.");
+            assertEquals(4, sportsLibrary.findTrackSummaries().get(0).getNumberOfLocations());
+
+            // remove a location
+            separateTrack.getLocations().remove(0);
+            sportsLibrary.update(separateTrack);
+            assertEquals(3, sportsLibrary.findAll(LocationData.class).size(), "Location not removed.");
+
+            // remove the track with all locations
+            sportsLibrary.delete(separateTrack);
+            assertTrue(sportsLibrary.findAll(LocationData.class).isEmpty(), "Locations not removed.");
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+                try {
+                    sportsLibrary.setLocationStorage(Global.DEFAULT_LOCATION_STORAGE);
+                } catch (SportsLibraryException exception) {
+                    fail(exception.getMessage());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testDirtyTracking() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            // the locations are checked as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
+
+            // a plan with two units
+            RunningUnit runningUnit1 = new RunningUnit(30, new MovementType("D", "red", 0.0, 0.0));
+            RunningUnit runningUnit2 = new RunningUnit(5, new MovementType("D", "red", 0.0, 0.0));
+            List<RunningUnit> runningUnits = new ArrayList<>(List.of(runningUnit1, runningUnit2));
+            List<RunningPlanEntry> entries = new ArrayList<>();
+            entries.add(new RunningPlanEntry(1, 1, runningUnits));
+            RunningPlan runningPlan = new RunningPlan("Dirty-Plan", null, 1, entries, false);
+            assertNull(runningUnit1.getSavedDocument(), "New unit has a saved state.");
+            sportsLibrary.add(runningPlan);
+
+            // only the changed fields
+            assertTrue(runningUnit1.getChangedFields(runningUnit1.write(null)).isEmpty(), "Saved unit was changed.");
+            runningPlan.completeUnit(runningUnit1);
+            assertEquals(Set.of("isCompleted"), runningUnit1.getChangedFields(runningUnit1.write(null)));
+            assertTrue(runningUnit2.getChangedFields(runningUnit2.write(null)).isEmpty(), "Unit 2 was changed.");
+            sportsLibrary.update(runningPlan);
+            assertTrue(runningUnit1.getChangedFields(runningUnit1.write(null)).isEmpty(), "Changes were not saved.");
+            RunningUnit savedRunningUnit1 = (RunningUnit) sportsLibrary.findByUUID(RunningUnit.class,
+                    runningUnit1.getUUID());
+            assertNotNull(savedRunningUnit1);
+            assertTrue(savedRunningUnit1.isCompleted());
+            RunningUnit savedRunningUnit2 = (RunningUnit) sportsLibrary.findByUUID(RunningUnit.class,
+                    runningUnit2.getUUID());
+            assertNotNull(savedRunningUnit2);
+            assertFalse(savedRunningUnit2.isCompleted());
+
+            // rename a track with separately stored locations
+            List<LocationData> locationData = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                locationData.add(new LocationData());
+            }
+            Track track = new Track("Dirty-Track", null, locationData);
+            sportsLibrary.add(track);
+            Track loadedTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(loadedTrack);
+            loadedTrack.setName("Renamed-Track");
+            // remove a location, the others are not changed
+            loadedTrack.getLocations().remove(1);
+            sportsLibrary.update(loadedTrack);
+            Track renamedTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(renamedTrack);
+            assertEquals("Renamed-Track", renamedTrack.getName());
+            assertEquals(List.of(locationData.get(0).getUUID(), locationData.get(2).getUUID()),
+                    uuidsOf(renamedTrack.getLocations()));
+            assertEquals(2, sportsLibrary.findAll(LocationData.class).size());
+
+            // a rename does not touch the location documents
+            LocationData firstLocation = renamedTrack.getLocations().get(0);
+            LocationData secondLocation = renamedTrack.getLocations().get(1);
+            Document firstSavedDocument = firstLocation.getSavedDocument();
+            Document secondSavedDocument = secondLocation.getSavedDocument();
+            renamedTrack.setName("Renamed-Again");
+            sportsLibrary.update(renamedTrack);
+            assertSame(firstSavedDocument, firstLocation.getSavedDocument(), "Location document was rebuilt.");
+            assertSame(secondSavedDocument, secondLocation.getSavedDocument(), "Location document was rebuilt.");
+            // a changed location is saved
+            firstLocation.setSpeed(12.5);
+            sportsLibrary.update(renamedTrack);
+            assertNotSame(firstSavedDocument, firstLocation.getSavedDocument(), "Changed location not saved.");
+            assertSame(secondSavedDocument, secondLocation.getSavedDocument(), "Location document was rebuilt.");
+            renamedTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(renamedTrack);
+            assertEquals("Renamed-Again", renamedTrack.getName());
+            assertEquals(12.5, renamedTrack.getLocations().get(0).getSpeed());
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+                resetLocationStorage(sportsLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testTransactions() {
+        SportsLibrary sportsLibrary = null;
+        List<UUID> addedUUIDs = new ArrayList<>();
+        DatastoreDelegate delegate = new DatastoreDelegate() {
+            @Override
+            public void didObjectAdded(PersistentObject persistentObject) {
+                addedUUIDs.add(persistentObject.getUUID());
+            }
+        };
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            // the locations are checked as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
+            sportsLibrary.addDelegate(delegate);
+            SportsLibrary library = sportsLibrary;
+
+            // the changes are saved together, the delegate is informed after the commit
+            User user = new User();
+            Track track = new Track("Transaction-Track", null, new ArrayList<>(List.of(new LocationData())));
+            sportsLibrary.inTransaction(() -> {
+                library.add(user);
+                library.add(track);
+                assertTrue(addedUUIDs.isEmpty(), "The delegate was informed before the commit.");
+                assertNotNull(library.findByUUID(User.class, user.getUUID()), "User not visible in transaction.");
+            });
+            assertEquals(List.of(user.getUUID(), track.getUUID()), addedUUIDs);
+            assertNotNull(sportsLibrary.findByUUID(User.class, user.getUUID()));
+            assertNotNull(sportsLibrary.findByUUID(Track.class, track.getUUID()));
+
+            // a failed transaction discards all changes
+            addedUUIDs.clear();
+            User discardedUser = new User();
+            Track discardedTrack = new Track("Discarded-Track", null, new ArrayList<>(List.of(new LocationData())));
+            assertThrows(SportsLibraryException.class, () -> library.inTransaction(() -> {
+                library.add(discardedUser);
+                library.add(discardedTrack);
+                throw new SportsLibraryException("Discard the changes.");
+            }));
+            assertTrue(addedUUIDs.isEmpty(), "The delegate was informed about discarded objects.");
+            assertNull(sportsLibrary.findByUUID(User.class, discardedUser.getUUID()));
+            assertNull(sportsLibrary.findByUUID(Track.class, discardedTrack.getUUID()));
+            assertEquals(1, sportsLibrary.findAll(LocationData.class).size());
+
+            // a failed cascade is not saved partially
+            RunningUnit runningUnit = new RunningUnit(30, new MovementType("T", "red", 0.0, 0.0));
+            List<RunningPlanEntry> entries = new ArrayList<>();
+            entries.add(new RunningPlanEntry(1, 1, new ArrayList<>(List.of(runningUnit))));
+            entries.add(new RunningPlanEntry(1, 2, new ArrayList<>(List.of(runningUnit))));
+            RunningPlan runningPlan = new RunningPlan("Transaction-Plan", null, 1, entries, false);
+            assertThrows(SportsLibraryException.class, () -> library.add(runningPlan));
+            assertNull(sportsLibrary.findByUUID(RunningPlanEntry.class, entries.get(0).getUUID()));
+            assertNull(sportsLibrary.findByUUID(RunningUnit.class, runningUnit.getUUID()));
+            assertNull(sportsLibrary.findByUUID(MovementType.class, runningUnit.getMovementType().getUUID()));
+
+            // the index entries of the discarded changes are repaired
+            assertThrows(SportsLibraryException.class, () -> library.inTransaction(() -> {
+                library.delete(track);
+                throw new SportsLibraryException("Discard the removal.");
+            }));
+            Track restoredTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(restoredTrack, "Removed track not restored.");
+            assertEquals(1, restoredTrack.getLocations().size(), "Locations of the track not restored.");
+            assertNotNull(sportsLibrary.findByUUID(LocationData.class, track.getLocations().get(0).getUUID()));
+
+            // changes written before the commit, e.g. if they exceed the buffer, are discarded too
+            User writtenUser = new User();
+            assertThrows(SportsLibraryException.class, () -> library.inTransaction(() -> {
+                library.deleteAll(library.findAll(User.class));
+                library.add(writtenUser);
+                Objects.requireNonNull(DatabaseManager.getInstance(new File("")).getStore()).commit();
+                throw new SportsLibraryException("Discard the written changes.");
+            }));
+            assertNull(sportsLibrary.findByUUID(User.class, writtenUser.getUUID()), "Written user not discarded.");
+            assertNotNull(sportsLibrary.findByUUID(User.class, user.getUUID()), "Removed user not restored.");
+            assertNotNull(sportsLibrary.findByUUID(Track.class, track.getUUID()));
+            User laterUser = new User();
+            sportsLibrary.add(laterUser);
+            assertNotNull(sportsLibrary.findByUUID(User.class, laterUser.getUUID()));
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.removeDelegate(delegate);
+                sportsLibrary.clearAll();
+                resetLocationStorage(sportsLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testBulkDelete() {
+        SportsLibrary sportsLibrary = null;
+        DatastoreDelegate delegate = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            // the locations are checked as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
+
+            // tracks with separately stored locations
+            List<Track> tracks = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                List<LocationData> locationData = new ArrayList<>(List.of(new LocationData(), new LocationData()));
+                tracks.add(new Track(i < 2 ? "Old-Track" : "New-Track", null, locationData));
+            }
+            sportsLibrary.addAll(tracks);
+            assertEquals(6, sportsLibrary.findAll(LocationData.class).size());
+
+            // the locations are removed with the tracks
+            assertEquals(2, sportsLibrary.deleteWhere(Track.class, ObjectFilters.eq("name", "Old-Track")));
+            assertEquals(List.of(tracks.get(2).getUUID()), uuidsOf(sportsLibrary.findAll(Track.class)));
+            assertEquals(uuidsOf(tracks.get(2).getLocations()), uuidsOf(sportsLibrary.findAll(LocationData.class)));
+            assertEquals(0, sportsLibrary.deleteWhere(Track.class, ObjectFilters.eq("name", "Old-Track")));
+
+            // embedded objects can only be removed with their parent
+            SportsLibrary library = sportsLibrary;
+            assertThrows(SportsLibraryException.class,
+                    () -> library.deleteWhere(LocationData.class, ObjectFilters.ALL));
+
+            // the entries and units are removed with the running plans
+            List<RunningPlan> runningPlans = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                RunningUnit runningUnit = new RunningUnit(30, new MovementType("B", "red", 0.0, 0.0));
+                List<RunningPlanEntry> entries = new ArrayList<>();
+                entries.add(new RunningPlanEntry(1, 1, new ArrayList<>(List.of(runningUnit))));
+                runningPlans.add(new RunningPlan("Bulk-Plan " + i, null, 1, entries, false));
+            }
+            sportsLibrary.addAll(runningPlans);
+            sportsLibrary.deleteAll(runningPlans);
+            assertTrue(sportsLibrary.findAll(RunningPlan.class).isEmpty(), "Running plans not removed.");
+            assertTrue(sportsLibrary.findAll(RunningPlanEntry.class).isEmpty(), "Entries not removed.");
+            assertTrue(sportsLibrary.findAll(RunningUnit.class).isEmpty(), "Units not removed.");
+            assertEquals(1, sportsLibrary.findAll(MovementType.class).size(), "Movement type was removed.");
+
+            // the removed tracks are reported without decoding their locations
+            sportsLibrary.setLocationStorage(LocationStorage.EMBEDDED);
+            List<PersistentObject> removedObjects = new ArrayList<>();
+            delegate = new DatastoreDelegate() {
+                @Override
+                public void didObjectsRemoved(List<? extends PersistentObject> persistentObjects) {
+                    removedObjects.addAll(persistentObjects);
+                }
+            };
+            sportsLibrary.addDelegate(delegate);
+            Track embeddedTrack = new Track("Embedded-Track", null,
+                    new ArrayList<>(List.of(new LocationData(), new LocationData())));
+            sportsLibrary.add(embeddedTrack);
+            assertEquals(1, sportsLibrary.deleteWhere(Track.class, ObjectFilters.eq("name", "Embedded-Track")));
+            assertEquals(1, removedObjects.size());
+            Track removedTrack = (Track) removedObjects.get(0);
+            assertEquals(embeddedTrack.getUUID(), removedTrack.getUUID());
+            assertEquals("Embedded-Track", removedTrack.getName());
+            assertTrue(removedTrack.getLocations().isEmpty(), "Locations of the removed track were decoded.");
+            assertNull(sportsLibrary.findByUUID(Track.class, embeddedTrack.getUUID()));
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                if (delegate != null) {
+                    sportsLibrary.removeDelegate(delegate);
+                }
+                sportsLibrary.clearAll();
+                resetLocationStorage(sportsLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testCompaction() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+
+            // track churn leaves unused space in the database file
+            for (int i = 0; i < 5; i++) {
+                List<LocationData> locationData = new ArrayList<>();
+                for (int j = 0; j < 1000; j++) {
+                    locationData.add(new LocationData());
+                }
+                sportsLibrary.add(new Track("Churn-Track", null, locationData));
+                sportsLibrary.deleteWhere(Track.class, ObjectFilters.eq("name", "Churn-Track"));
+            }
+            CompactionStatistics statisticsBefore = sportsLibrary.getCompactionStatistics();
+            assertTrue(statisticsBefore.getFileSize() > 0, "No database file.");
+            assertTrue(sportsLibrary.compact(), "The database file was not compacted.");
+            CompactionStatistics statistics = sportsLibrary.getCompactionStatistics();
+            assertEquals(statisticsBefore.getCompactions() + 1, statistics.getCompactions());
+            assertTrue(statistics.getReclaimedBytes() >= statisticsBefore.getReclaimedBytes());
+
+            // the compaction can be disabled
+            sportsLibrary.setCompactionTimeBudget(0);
+            assertFalse(sportsLibrary.compact(), "The compaction was not disabled.");
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.setCompactionTimeBudget(Global.COMPACTION_TIME_BUDGET_MILLIS);
+                sportsLibrary.clearAll();
+            }
+        }
+    }
+
+    @Test
+    void testQuery() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+
+            // one training each day in january 2000
+            LocalDate firstDay = LocalDate.of(2000, 1, 1);
+            List<Training> trainings = new ArrayList<>();
+            for (int i = 30; i >= 0; i--) {
+                trainings.add(new Training("Query-Training-" + (i % 3), null, firstDay.plusDays(i), null, null));
+            }
+            sportsLibrary.addAll(trainings);
+
+            // trainings between two dates, sorted by date, in pages
+            List<Training> page = sportsLibrary.getTrainings(firstDay.plusDays(10), firstDay.plusDays(19), 0, 4);
+            assertEquals(4, page.size());
+            assertEquals(Optional.of(firstDay.plusDays(10)), page.get(0).getTrainingDate());
+            assertEquals(Optional.of(firstDay.plusDays(13)), page.get(3).getTrainingDate());
+            page = sportsLibrary.getTrainings(firstDay.plusDays(10), firstDay.plusDays(19), 8, 4);
+            assertEquals(2, page.size());
+            assertEquals(Optional.of(firstDay.plusDays(19)), page.get(1).getTrainingDate());
+            assertTrue(sportsLibrary.getTrainings(firstDay.plusDays(10), firstDay.plusDays(19), 20, 4).isEmpty());
+
+            // combined conditions and descending order
+            List<Training> results = sportsLibrary.find(Query.of(Training.class)
+                    .where(Query.or(Query.lt("trainingDate", firstDay.plusDays(2)),
+                            Query.gte("trainingDate", firstDay.plusDays(29))))
+                    .where(Query.not(Query.eq("name", "Query-Training-1")))
+                    .sortBy("trainingDate", false));
+            assertEquals(List.of(firstDay.plusDays(30), firstDay.plusDays(29), firstDay),
+                    results.stream().map(training -> training.getTrainingDate().orElse(null))
+                            .collect(Collectors.toList()));
+            assertEquals(21, sportsLibrary.find(Query.of(Training.class)
+                    .where(Query.in("name", List.of("Query-Training-0", "Query-Training-2")))).size());
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+            }
+        }
+    }
+
+    @Test
+    void testSnapshot() {
+        SportsLibrary sportsLibrary = null;
+        File snapshotFile = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            snapshotFile = File.createTempFile("snapshot", ".snp");
+
+            List<LocationData> locationData = new ArrayList<>(List.of(new LocationData(), new LocationData()));
+            Track track = new Track("Snapshot-Track", null, locationData);
+            sportsLibrary.add(track);
+            Training training = new Training("Snapshot-Training", null, LocalDate.of(2000, 1, 1),
+                    null, track.getUUID());
+            sportsLibrary.add(training);
+            int numberOfMovementTypes = sportsLibrary.getMovementTypes().size();
+            assertTrue(sportsLibrary.backup(snapshotFile) > 0, "Empty snapshot.");
+
+            // the snapshot replaces the changes after the backup
+            sportsLibrary.delete(track);
+            sportsLibrary.add(new Track("Other-Track", null, new ArrayList<>(List.of(new LocationData()))));
+            sportsLibrary.restore(snapshotFile);
+            assertEquals(List.of(track.getUUID()), uuidsOf(sportsLibrary.findAll(Track.class)));
+            Track restoredTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(restoredTrack, "Track not restored.");
+            assertEquals(uuidsOf(locationData), uuidsOf(restoredTrack.getLocations()));
+            Training restoredTraining = (Training) sportsLibrary.findByUUID(Training.class, training.getUUID());
+            assertNotNull(restoredTraining, "Training not restored.");
+            assertEquals(training.getTrainingDate(), restoredTraining.getTrainingDate());
+            assertEquals(numberOfMovementTypes, sportsLibrary.getMovementTypes().size());
+
+            // a damaged snapshot is not restored
+            byte[] bytes = java.nio.file.Files.readAllBytes(snapshotFile.toPath());
+            bytes[bytes.length / 2] ^= 0x01;
+            java.nio.file.Files.write(snapshotFile.toPath(), bytes);
+            SportsLibrary library = sportsLibrary;
+            File damagedFile = snapshotFile;
+            assertThrows(SportsLibraryException.class, () -> library.restore(damagedFile));
+            assertEquals(List.of(track.getUUID()), uuidsOf(sportsLibrary.findAll(Track.class)));
+
+        } catch (InstantiationException | SportsLibraryException | IOException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+            }
+            if (snapshotFile != null) {
+                snapshotFile.delete();
+            }
+        }
+    }
+
+    @Test
+    void testChangeJournal() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            // the logging is initialized with the directory of the app
+            SportsLibrary.getInstance(true, null, null, null);
+            File directory = java.nio.file.Files.createTempDirectory("journal").toFile();
+            sportsLibrary = SportsLibrary.newInstance(true, directory, StorageProfile.DEFAULT);
+            long firstSequence = sportsLibrary.getLastChangeSequence() + 1;
+            sportsLibrary.enableChangeJournal(true);
+            Training training = new Training("Journal-Training", null, LocalDate.of(2000, 1, 1), null, null);
+            sportsLibrary.add(training);
+            training.setName("Changed-Training");
+            sportsLibrary.update(training);
+            sportsLibrary.delete(training);
+
+            List<ChangeRecord> changes = sportsLibrary.getChanges(firstSequence, 0);
+            assertEquals(3, changes.size());
+            assertEquals(List.of(ChangeRecord.Operation.INSERT, ChangeRecord.Operation.UPDATE,
+                    ChangeRecord.Operation.REMOVE), changes.stream().map(ChangeRecord::getOperation)
+                    .collect(Collectors.toList()));
+            for (int i = 0; i < changes.size(); i++) {
+                assertEquals(firstSequence + i, changes.get(i).getSequence());
+                assertEquals(training.getUUID(), changes.get(i).getUUID());
+                assertEquals(Training.class.getName(), changes.get(i).getTypeName());
+            }
+            assertNotNull(changes.get(0).getDiff(), "No diff of the insert.");
+            assertEquals("Journal-Training", changes.get(0).getDiff().get("name"));
+            assertEquals(Set.of("name"), changes.get(1).getDiff().keySet());
+            assertNull(changes.get(2).getDiff());
+            // read from an offset
+            changes = sportsLibrary.getChanges(firstSequence + 1, 1);
+            assertEquals(1, changes.size());
+            assertEquals(ChangeRecord.Operation.UPDATE, changes.get(0).getOperation());
+
+            // the changes of a failed transaction are not recorded
+            SportsLibrary library = sportsLibrary;
+            assertThrows(SportsLibraryException.class, () -> library.inTransaction(() -> {
+                library.add(new Training("Failed-Training", null, null, null, null));
+                throw new SportsLibraryException("Failed transaction.");
+            }));
+            assertEquals(firstSequence + 2, sportsLibrary.getLastChangeSequence());
+            sportsLibrary.add(new Training("Next-Training", null, null, null, null));
+            sportsLibrary.close();
+            sportsLibrary = SportsLibrary.newInstance(true, directory, StorageProfile.DEFAULT);
+            assertEquals(firstSequence + 3, sportsLibrary.getLastChangeSequence());
+
+            // the journal is split into segments, which can be removed
+            Nitrite database = Nitrite.builder().openOrCreate();
+            ChangeJournal changeJournal = new ChangeJournal(database, 2);
+            for (int i = 0; i < 5; i++) {
+                changeJournal.append(ChangeRecord.Operation.INSERT, new Training(), null);
+            }
+            assertTrue(changeJournal.read(1, 0).isEmpty(), "Uncommitted changes read.");
+            changeJournal.didCommit();
+            assertEquals(5, changeJournal.getLastSequence());
+            assertEquals(2, changeJournal.truncate(4));
+            assertEquals(List.of(3L, 4L, 5L), changeJournal.read(1, 0).stream()
+                    .map(ChangeRecord::getSequence).collect(Collectors.toList()));
+            assertEquals(2, changeJournal.truncate(100));
+            assertEquals(List.of(5L), changeJournal.read(1, 0).stream()
+                    .map(ChangeRecord::getSequence).collect(Collectors.toList()));
+            database.close();
+
+        } catch (InstantiationException | SportsLibraryException | IOException exception) {
+            fail(exception.getMessage());
+        } finally {
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+                close(sportsLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testReadOnlyLibrary() {
+        SportsLibrary writableLibrary = null;
+        SportsLibrary readOnlyLibrary = null;
+        try {
+            // the logging is initialized with the directory of the app
+            SportsLibrary.getInstance(true, null, null, null);
+            File directory = java.nio.file.Files.createTempDirectory("readonly").toFile();
+            writableLibrary = SportsLibrary.newInstance(true, directory, StorageProfile.DEFAULT);
+            Training training = new Training("Read-Only-Training", null, LocalDate.of(2000, 1, 1), null, null);
+            writableLibrary.add(training);
+
+            // the read-only library uses the open database of the writable library
+            readOnlyLibrary = SportsLibrary.openReadOnly(true, directory, StorageProfile.DEFAULT);
+            assertTrue(readOnlyLibrary.isReadOnly(), "Library not read-only.");
+            assertFalse(writableLibrary.isReadOnly(), "Library read-only.");
+            assertNotNull(readOnlyLibrary.findByUUID(Training.class, training.getUUID()), "Training not found.");
+            SportsLibrary library = readOnlyLibrary;
+            assertThrows(SportsLibraryException.class, () -> library.add(new Training()));
+            assertThrows(SportsLibraryException.class, () -> library.delete(training));
+            Training otherTraining = new Training("Other-Training", null, LocalDate.of(2000, 1, 2), null, null);
+            writableLibrary.add(otherTraining);
+            assertNotNull(readOnlyLibrary.findByUUID(Training.class, otherTraining.getUUID()), "Training not found.");
+            assertEquals(writableLibrary.getAppUser().getUUID(), readOnlyLibrary.getAppUser().getUUID());
+            readOnlyLibrary.close();
+            writableLibrary.close();
+            writableLibrary = null;
+
+            // without a writable library the database file is opened read-only
+            readOnlyLibrary = SportsLibrary.openReadOnly(true, directory, StorageProfile.DEFAULT);
+            assertEquals(2, readOnlyLibrary.findAll(Training.class).size());
+            SportsLibrary fileLibrary = readOnlyLibrary;
+            assertThrows(SportsLibraryException.class, () -> fileLibrary.update(training));
+            assertThrows(InstantiationException.class,
+                    () -> SportsLibrary.newInstance(true, directory, StorageProfile.DEFAULT));
+            readOnlyLibrary.close();
+            readOnlyLibrary = null;
+
+            // the objects were not changed by the read-only library
+            writableLibrary = SportsLibrary.newInstance(true, directory, StorageProfile.DEFAULT);
+            assertEquals(2, writableLibrary.findAll(Training.class).size());
+
+        } catch (InstantiationException | SportsLibraryException | IOException exception) {
+            fail(exception.getMessage());
+        } finally {
+            if (readOnlyLibrary != null) {
+                close(readOnlyLibrary);
+            }
+            if (writableLibrary != null) {
+                writableLibrary.clearAll();
+                close(writableLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testSync() {
+        SportsLibrary firstLibrary = null;
+        SportsLibrary secondLibrary = null;
+        try {
+            // the logging is initialized with the directory of the app
+            SportsLibrary.getInstance(true, null, null, null);
+            firstLibrary = SportsLibrary.newInstance(true,
+                    java.nio.file.Files.createTempDirectory("sync").toFile(), StorageProfile.DEFAULT);
+            secondLibrary = SportsLibrary.newInstance(true,
+                    java.nio.file.Files.createTempDirectory("sync").toFile(), StorageProfile.DEFAULT);
+            LocalSyncServer server = new LocalSyncServer();
+            List<Class<? extends PersistentObject>> conflictTypes = new ArrayList<>();
+            SyncEngine firstEngine = new SyncEngine(firstLibrary, server, null);
+            SyncEngine secondEngine = new SyncEngine(secondLibrary, server, (type, uuid, localObject, remoteObject) -> {
+                conflictTypes.add(type);
+                return type.equals(Training.class) ? SyncEngine.Resolution.KEEP_LOCAL : SyncEngine.Resolution.KEEP_REMOTE;
+            });
+
+            // the objects are sent to the other device
+            List<LocationData> locations = new ArrayList<>(List.of(new LocationData(), new LocationData()));
+            Track track = new Track("Sync-Track", null, locations);
+            Training training = new Training("Sync-Training", null, LocalDate.of(2000, 1, 1), null, null);
+            firstLibrary.add(track);
+            firstLibrary.add(training);
+            assertTrue(firstEngine.sync().getPushedChanges() > 0, "No changes sent.");
+            secondEngine.sync();
+            Track syncedTrack = (Track) secondLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(syncedTrack, "Track not synced.");
+            assertEquals(2, syncedTrack.getLocations().size());
+            assertNotNull(secondLibrary.findByUUID(Training.class, training.getUUID()), "Training not synced.");
+
+            // only the changed objects are sent
+            long receivedChanges = server.getReceivedChanges();
+            training.setName("Changed-Training");
+            firstLibrary.update(training);
+            SyncEngine.Result result = firstEngine.sync();
+            assertEquals(1, result.getPushedChanges());
+            assertEquals(receivedChanges + 1, server.getReceivedChanges());
+            assertEquals(1, secondEngine.sync().getPulledChanges());
+            Training syncedTraining = (Training) secondLibrary.findByUUID(Training.class, training.getUUID());
+            assertNotNull(syncedTraining, "Training not synced.");
+            assertEquals("Changed-Training", syncedTraining.getName());
+            assertEquals(0, firstEngine.sync().getPushedChanges());
+
+            // removed objects are removed on the other device
+            secondLibrary.delete(syncedTrack);
+            secondEngine.sync();
+            firstEngine.sync();
+            assertNull(firstLibrary.findByUUID(Track.class, track.getUUID()), "Track not removed.");
+
+            // conflicts are resolved for each object
+            conflictTypes.clear();
+            training.setName("First-Training");
+            firstLibrary.update(training);
+            syncedTraining.setName("Second-Training");
+            secondLibrary.update(syncedTraining);
+            firstEngine.sync();
+            result = secondEngine.sync();
+            assertEquals(1, result.getConflicts());
+            assertEquals(List.of(Training.class), conflictTypes);
+            firstEngine.sync();
+            Training resolvedTraining = (Training) firstLibrary.findByUUID(Training.class, training.getUUID());
+            assertNotNull(resolvedTraining, "Training not found.");
+            assertEquals("Second-Training", resolvedTraining.getName());
+
+        } catch (InstantiationException | SportsLibraryException | IOException exception) {
+            fail(exception.getMessage());
+        } finally {
+            if (firstLibrary != null) {
+                firstLibrary.clearAll();
+                close(firstLibrary);
+            }
+            if (secondLibrary != null) {
+                secondLibrary.clearAll();
+                close(secondLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testAntiEntropy() {
+        SportsLibrary firstLibrary = null;
+        SportsLibrary secondLibrary = null;
+        try {
+            // the logging is initialized with the directory of the app
+            SportsLibrary.getInstance(true, null, null, null);
+            File firstDirectory = java.nio.file.Files.createTempDirectory("replica").toFile();
+            firstLibrary = SportsLibrary.newInstance(true, firstDirectory, StorageProfile.DEFAULT);
+            secondLibrary = SportsLibrary.newInstance(true,
+                    java.nio.file.Files.createTempDirectory("replica").toFile(), StorageProfile.DEFAULT);
+            firstLibrary.clearAll();
+            secondLibrary.clearAll();
+            firstLibrary.enableHashTree();
+            secondLibrary.enableHashTree();
+            assertTrue(firstLibrary.isHashTreeEnabled(), "Hash tree not enabled.");
+            AntiEntropy.Replica firstReplica = AntiEntropy.replicaOf(firstLibrary);
+            AntiEntropy.Replica secondReplica = AntiEntropy.replicaOf(secondLibrary);
+            assertTrue(AntiEntropy.compare(firstReplica, secondReplica).isEmpty(), "Empty replicas differ.");
+
+            // the missing objects are found and copied
+            List<LocationData> locations = new ArrayList<>(List.of(new LocationData(), new LocationData()));
+            Track track = new Track("Replica-Track", null, locations);
+            firstLibrary.add(track);
+            List<Training> trainings = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                trainings.add(new Training("Replica-Training-" + i, null, LocalDate.of(2000, 1, 1), null, null));
+            }
+            firstLibrary.addAll(trainings);
+            List<AntiEntropy.Difference> differences = AntiEntropy.compare(firstReplica, secondReplica);
+            assertEquals(101, differences.size());
+            assertTrue(differences.stream().allMatch(AntiEntropy.Difference::isMissingRemotely));
+            assertEquals(101, AntiEntropy.repair(firstLibrary, secondLibrary, differences));
+            assertEquals(firstReplica.getRootHash(), secondReplica.getRootHash());
+            Track copiedTrack = (Track) secondLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(copiedTrack, "Track not copied.");
+            assertEquals(2, copiedTrack.getLocations().size());
+
+            // only the different buckets are requested, once for each level
+            Training changedTraining = (Training) secondLibrary.findByUUID(Training.class, trainings.get(0).getUUID());
+            assertNotNull(changedTraining, "Training not copied.");
+            changedTraining.setName("Changed-Training");
+            secondLibrary.update(changedTraining);
+            firstLibrary.delete(trainings.get(1));
+            int[] calls = new int[1];
+            List<Integer> requestedBuckets = new ArrayList<>();
+            AntiEntropy.Replica countingReplica = new AntiEntropy.Replica() {
+                @Override
+                public int getDepth() throws SportsLibraryException {
+                    return secondReplica.getDepth();
+                }
+
+                @Override
+                public long getRootHash() throws SportsLibraryException {
+                    calls[0]++;
+                    return secondReplica.getRootHash();
+                }
+
+                @Override
+                public Map<Integer, long[]> getChildHashes(int level, List<Integer> nodes)
+                        throws SportsLibraryException {
+                    calls[0]++;
+                    return secondReplica.getChildHashes(level, nodes);
+                }
+
+                @Override
+                public Map<String, Long> getEntries(List<Integer> buckets) throws SportsLibraryException {
+                    calls[0]++;
+                    requestedBuckets.addAll(buckets);
+                    return secondReplica.getEntries(buckets);
+                }
+            };
+            differences = AntiEntropy.compare(firstReplica, countingReplica);
+            assertEquals(2, differences.size());
+            assertEquals(Global.HASH_TREE_DEPTH + 2, calls[0]);
+            assertTrue(requestedBuckets.size() <= 2, "Too many buckets compared.");
+            Set<UUID> differentUUIDs = differences.stream().map(AntiEntropy.Difference::getUUID)
+                    .collect(Collectors.toSet());
+            assertEquals(Set.of(trainings.get(0).getUUID(), trainings.get(1).getUUID()), differentUUIDs);
+            assertEquals(2, AntiEntropy.repair(firstLibrary, secondLibrary, differences));
+            assertTrue(AntiEntropy.compare(firstReplica, secondReplica).isEmpty(), "Replicas differ after repair.");
+            assertNull(secondLibrary.findByUUID(Training.class, trainings.get(1).getUUID()), "Training not removed.");
+
+            // the maintained tree is equal to a new tree and is maintained after a restart
+            long rootHash = firstReplica.getRootHash();
+            firstLibrary.rebuildHashTree();
+            assertEquals(rootHash, firstReplica.getRootHash());
+            firstLibrary.close();
+            firstLibrary = SportsLibrary.newInstance(true, firstDirectory, StorageProfile.DEFAULT);
+            assertTrue(firstLibrary.isHashTreeEnabled(), "Hash tree not enabled after restart.");
+            // the templates are added again at the start
+            rootHash = AntiEntropy.replicaOf(firstLibrary).getRootHash();
+            firstLibrary.rebuildHashTree();
+            assertEquals(rootHash, AntiEntropy.replicaOf(firstLibrary).getRootHash());
+            firstLibrary.disableHashTree();
+            SportsLibrary library = firstLibrary;
+            assertThrows(SportsLibraryException.class, () -> AntiEntropy.replicaOf(library));
+
+        } catch (InstantiationException | SportsLibraryException | IOException exception) {
+            fail(exception.getMessage());
+        } finally {
+            if (firstLibrary != null) {
+                firstLibrary.clearAll();
+                close(firstLibrary);
+            }
+            if (secondLibrary != null) {
+                secondLibrary.clearAll();
+                close(secondLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testStartupMetadata() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            // the app user of the shared library can be deleted by clearAll
+            SportsLibrary.getInstance(true, null, null, null).close();
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            UUID appUserUUID = sportsLibrary.getAppUser().getUUID();
+            // the app user is loaded with the saved uuid, not the first user found
+            sportsLibrary.add(new User());
+            sportsLibrary.close();
+
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            assertEquals(appUserUUID, sportsLibrary.getAppUser().getUUID());
+            assertEquals(2, sportsLibrary.findAll(User.class).size());
+
+            // a cleared datastore gets a new app user with the next start
+            sportsLibrary.clearAll();
+            sportsLibrary.close();
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            assertNotEquals(appUserUUID, sportsLibrary.getAppUser().getUUID());
+            assertEquals(1, sportsLibrary.findAll(User.class).size());
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+            }
+        }
+    }
+
+    @Test
+    void testSchemaMigration() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            // the trainings are saved with the schema without upgrades
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            Training changedTraining = new Training("Changed-Training", "Remarks", null, null, null);
+            Training unchangedTraining = new Training("Unchanged-Training", "Remarks", null, null, null);
+            sportsLibrary.add(changedTraining);
+            sportsLibrary.add(unchangedTraining);
+            sportsLibrary.close();
+
+            // a new schema renames the trainings and removes the remarks
+            Global.SCHEMA_UPGRADES.put(Training.class, List.of(document -> {
+                document.put("name", document.get("name") + " (upgraded)");
+                document.remove("remarks");
+            }));
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            Training training = (Training) sportsLibrary.findByUUID(Training.class, changedTraining.getUUID());
+            assertNotNull(training, "Training not found.");
+            assertEquals("Changed-Training (upgraded)", training.getName());
+            assertTrue(training.getRemarks().isEmpty(), "Remarks not removed.");
+            training.setDuration(30);
+            sportsLibrary.update(training);
+
+            // only the unchanged training must be upgraded
+            assertTrue(sportsLibrary.upgradeSchemaAsync().get() >= 1, "Training not upgraded.");
+            assertEquals(0, sportsLibrary.upgradeSchema());
+            sportsLibrary.close();
+
+            // the upgraded documents are not upgraded again
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            training = (Training) sportsLibrary.findByUUID(Training.class, changedTraining.getUUID());
+            assertNotNull(training, "Training not found.");
+            assertEquals("Changed-Training (upgraded)", training.getName());
+            assertEquals(30, training.getDuration());
+            training = (Training) sportsLibrary.findByUUID(Training.class, unchangedTraining.getUUID());
+            assertNotNull(training, "Training not found.");
+            assertEquals("Unchanged-Training (upgraded)", training.getName());
+            assertTrue(training.getRemarks().isEmpty(), "Remarks not removed.");
+
+        } catch (InstantiationException | SportsLibraryException | InterruptedException
+                | java.util.concurrent.ExecutionException exception) {
+            fail(exception.getMessage());
+        } finally {
+            Global.SCHEMA_UPGRADES.remove(Training.class);
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+            }
+        }
+    }
+
+    @Test
+    void testLibraryPool() {
+        SportsLibraryPool pool = null;
+        List<File> directories = new ArrayList<>();
+        try {
+            // the logging is initialized with the directory of the app
+            SportsLibrary.getInstance(true, null, null, null);
+            for (int i = 0; i < 3; i++) {
+                directories.add(java.nio.file.Files.createTempDirectory("tenant").toFile());
+            }
+            List<SportsLibrary> warmedUpLibraries = new ArrayList<>();
+            pool = new SportsLibraryPool(true, 2, 60000, 100, StorageProfile.DEFAULT,
+                    warmedUpLibraries::add);
+
+            // every tenant has its own database
+            UUID trackUUID;
+            try (SportsLibraryPool.Lease lease = pool.acquire(directories.get(0))) {
+                Track track = new Track("Tenant-Track", null, new ArrayList<>(List.of(new LocationData())));
+                lease.getLibrary().add(track);
+                trackUUID = track.getUUID();
+            }
+            try (SportsLibraryPool.Lease lease = pool.acquire(directories.get(1))) {
+                assertTrue(lease.getLibrary().findAll(Track.class).isEmpty(), "The tenants share a database.");
+                assertEquals(2, warmedUpLibraries.size());
+            }
+            try (SportsLibraryPool.Lease lease = pool.acquire(directories.get(0))) {
+                assertSame(warmedUpLibraries.get(0), lease.getLibrary(), "The open library was not reused.");
+            }
+            assertEquals(2, pool.getNumberOfOpenLibraries());
+
+            // the least recently used library is closed
+            SportsLibraryPool.Lease thirdLease = pool.acquire(directories.get(2));
+            assertEquals(2, pool.getNumberOfOpenLibraries());
+            try (SportsLibraryPool.Lease lease = pool.acquire(directories.get(0))) {
+                assertSame(warmedUpLibraries.get(0), lease.getLibrary(), "The wrong library was closed.");
+
+                // all libraries are in use
+                SportsLibraryPool libraryPool = pool;
+                assertThrows(SportsLibraryException.class, () -> libraryPool.acquire(directories.get(1)));
+            }
+            thirdLease.close();
+
+            // the objects are loaded again after closing
+            try (SportsLibraryPool.Lease lease = pool.acquire(directories.get(1));
+                 SportsLibraryPool.Lease otherLease = pool.acquire(directories.get(2))) {
+                assertNotSame(lease.getLibrary(), otherLease.getLibrary());
+            }
+            try (SportsLibraryPool.Lease lease = pool.acquire(directories.get(0))) {
+                assertNotSame(warmedUpLibraries.get(0), lease.getLibrary(), "The library was not closed.");
+                assertNotNull(lease.getLibrary().findByUUID(Track.class, trackUUID), "Track not found.");
+            }
+
+            // a library opened while the pool is closed is closed too
+            File closingDirectory = java.nio.file.Files.createTempDirectory("tenant").toFile();
+            CountDownLatch isWarmingUp = new CountDownLatch(1);
+            List<SportsLibrary> openedLibraries = Collections.synchronizedList(new ArrayList<>());
+            SportsLibraryPool closingPool = new SportsLibraryPool(true, 2, 60000, 100, StorageProfile.DEFAULT,
+                    library -> {
+                        openedLibraries.add(library);
+                        isWarmingUp.countDown();
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(300);
+                        } catch (InterruptedException exception) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+            CompletableFuture<SportsLibraryPool.Lease> closedLease = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return closingPool.acquire(closingDirectory);
+                } catch (SportsLibraryException exception) {
+                    throw new CompletionException(exception);
+                }
+            });
+            assertTrue(isWarmingUp.await(10, TimeUnit.SECONDS), "Library not opened.");
+            closingPool.close();
+            assertThrows(ExecutionException.class, () -> closedLease.get(10, TimeUnit.SECONDS));
+            assertFalse(openedLibraries.get(0).getDataRepository().isOpen(), "Library opened while closing is open.");
+
+        } catch (InstantiationException | SportsLibraryException | IOException | InterruptedException exception) {
+            fail(exception.getMessage());
+        } finally {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    // Benchmark of the storage profiles, documented in StorageProfile. It runs only on request:
+    // mvn test -Dtest=SportsLibraryTest#testStorageProfileBenchmark -Dsportslibrary.benchmark=true
+    // The numbers are written to the report of the test (target/surefire-reports).
+    @Test
+    @EnabledIfSystemProperty(named = "sportslibrary.benchmark", matches = "true")
+    void testStorageProfileBenchmark() {
+        try {
+            // the logging is initialized with the directory of the app
+            SportsLibrary.getInstance(true, null, null, null);
+            // the first run warms up the JVM and is not reported
+            runStorageProfileBenchmark(StorageProfile.IN_MEMORY, false);
+            for (StorageProfile storageProfile : StorageProfile.values()) {
+                runStorageProfileBenchmark(storageProfile, true);
+            }
+        } catch (InstantiationException | SportsLibraryException | IOException exception) {
+            fail(exception.getMessage());
+        }
+    }
+
+    // 100 tracks with 1000 locations each in the default layout, added one by one (one commit each),
+    // read all by their uuid and read again, the second time partly from the object cache
+    private void runStorageProfileBenchmark(StorageProfile storageProfile, boolean isReported)
+            throws InstantiationException, SportsLibraryException, IOException {
+        File directory = java.nio.file.Files.createTempDirectory("benchmark").toFile();
+        SportsLibrary sportsLibrary = SportsLibrary.newInstance(false, directory, storageProfile);
+        try {
+            List<UUID> uuids = new ArrayList<>(100);
+            long startTime = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                Track track = new Track("Benchmark-Track-" + i, null, locationsOf(1000));
+                sportsLibrary.add(track);
+                uuids.add(track.getUUID());
+            }
+            long addTime = System.nanoTime() - startTime;
+            long fileSize = sportsLibrary.getCompactionStatistics().getFileSize();
+            startTime = System.nanoTime();
+            for (UUID uuid : uuids) {
+                assertNotNull(sportsLibrary.findByUUID(Track.class, uuid));
+            }
+            long readTime = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            for (UUID uuid : uuids) {
+                assertNotNull(sportsLibrary.findByUUID(Track.class, uuid));
+            }
+            long readAgainTime = System.nanoTime() - startTime;
+            if (isReported) {
+                System.out.printf(Locale.ROOT, "%s: add %.2f s, read %.2f s, read again %.3f s, file %.1f MB%n",
+                        storageProfile, addTime / 1e9, readTime / 1e9, readAgainTime / 1e9,
+                        fileSize / (1024.0 * 1024.0));
+            }
+        } finally {
+            close(sportsLibrary);
+        }
+    }
+
     @Test
     void testTrackAndTrainingTypeAndTrainingCRUD() {
         SportsLibrary sportsLibrary = null;
         try {
             sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            // the locations are checked as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
 
             // create a track with locationData
             LocationData locationData1 = new LocationData();
@@ -366,6 +1519,497 @@ class SportsLibraryTest {
             List<? extends PersistentObject> notDeletedLocations = sportsLibrary.findAll(LocationData.class);
             assertEquals(2, notDeletedLocations.size(), "LocationData was deleted.");
 
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+                resetLocationStorage(sportsLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testWriteBehind() {
+        SportsLibrary sportsLibrary = null;
+        List<PersistentObject> addedObjects = new ArrayList<>();
+        DatastoreDelegate delegate = new DatastoreDelegate() {
+            @Override
+            public void didObjectAdded(PersistentObject persistentObject) {
+                addedObjects.add(persistentObject);
+            }
+        };
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            // the locations are checked as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
+            int numberOfUsers = sportsLibrary.findAll(User.class).size();
+            sportsLibrary.addDelegate(delegate);
+            // write only with flush
+            sportsLibrary.enableWriteBehind(1000, 60000);
+            assertTrue(sportsLibrary.isWriteBehindEnabled());
+
+            List<User> users = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                User user = new User();
+                users.add(user);
+                sportsLibrary.add(user);
+            }
+            // coalesced with the insert
+            users.get(0).setFirstName("Pending");
+            sportsLibrary.update(users.get(0));
+            // inserted and removed before writing
+            User removedUser = new User();
+            sportsLibrary.add(removedUser);
+            sportsLibrary.delete(removedUser);
+
+            // read your writes
+            assertTrue(addedObjects.isEmpty(), "Objects written before flush.");
+            assertNotNull(sportsLibrary.findByUUID(User.class, users.get(9).getUUID()), "Pending user not found.");
+            assertNull(sportsLibrary.findByUUID(User.class, removedUser.getUUID()), "Removed user was found.");
+            assertEquals(numberOfUsers + 10, sportsLibrary.findAll(User.class).size());
+
+            // embedded objects are written before reading
+            List<LocationData> locationData = new ArrayList<>(2);
+            locationData.add(new LocationData());
+            locationData.add(new LocationData());
+            sportsLibrary.add(new Track("Pending-Track", null, locationData));
+            assertEquals(2, sportsLibrary.findAll(LocationData.class).size(), "Pending locations not found.");
+            assertEquals(11, addedObjects.size(), "Delegate not informed.");
+
+            sportsLibrary.flush();
+            sportsLibrary.disableWriteBehind();
+            assertFalse(sportsLibrary.isWriteBehindEnabled());
+            User savedUser = (User) sportsLibrary.findByUUID(User.class, users.get(0).getUUID());
+            assertNotNull(savedUser, "User was not written.");
+            assertEquals(Optional.of("Pending"), savedUser.getFirstName());
+            assertNull(sportsLibrary.findByUUID(User.class, removedUser.getUUID()), "Removed user was written.");
+
+            // a failed write in the background remains pending and is reported by flush
+            Training training = new Training("Pending-Training", null, null, new TrainingType().getUUID(), null);
+            sportsLibrary.enableWriteBehind(1000, 50);
+            sportsLibrary.add(training);
+            TimeUnit.MILLISECONDS.sleep(500);
+            final SportsLibrary library = sportsLibrary;
+            assertThrows(SportsLibraryException.class, library::flush, "Failed write not reported.");
+            assertNotNull(sportsLibrary.findByUUID(Training.class, training.getUUID()), "Failed write was dropped.");
+            assertThrows(SportsLibraryException.class, library::disableWriteBehind, "Failed write not reported.");
+            assertTrue(sportsLibrary.isWriteBehindEnabled(), "Failed write was dropped.");
+            // written again after the error was fixed
+            training.setTrainingTypeUUID(null);
+            sportsLibrary.update(training);
+            sportsLibrary.flush();
+            sportsLibrary.disableWriteBehind();
+            assertNotNull(sportsLibrary.findByUUID(Training.class, training.getUUID()), "Failed write not repeated.");
+
+        } catch (InstantiationException | SportsLibraryException | InterruptedException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.removeDelegate(delegate);
+                try {
+                    sportsLibrary.disableWriteBehind();
+                } catch (SportsLibraryException exception) {
+                    fail(exception.getMessage());
+                }
+                sportsLibrary.clearAll();
+                resetLocationStorage(sportsLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testEventDispatcher() {
+        SportsLibrary sportsLibrary = null;
+        List<String> asynchronousEvents = Collections.synchronizedList(new ArrayList<>());
+        List<String> synchronousEvents = new ArrayList<>();
+        DatastoreDelegate asynchronousDelegate = new DatastoreDelegate() {
+            @Override
+            public void didObjectAdded(PersistentObject persistentObject) {
+                asynchronousEvents.add("added " + persistentObject.getUUID());
+            }
+
+            @Override
+            public void didObjectUpdated(PersistentObject persistentObject) {
+                asynchronousEvents.add("updated " + persistentObject.getUUID());
+            }
+
+            @Override
+            public void didObjectRemoved(PersistentObject persistentObject) {
+                asynchronousEvents.add("removed " + persistentObject.getUUID());
+            }
+        };
+        DatastoreDelegate synchronousDelegate = new DatastoreDelegate() {
+            @Override
+            public void didObjectAdded(PersistentObject persistentObject) {
+                synchronousEvents.add("added " + persistentObject.getUUID());
+            }
+        };
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            sportsLibrary.addDelegate(asynchronousDelegate, DeliveryMode.ASYNCHRONOUS, List.of(User.class));
+            sportsLibrary.addDelegate(synchronousDelegate, DeliveryMode.SYNCHRONOUS, List.of(Track.class));
+
+            // added and updated is delivered as added, added and removed is not delivered
+            User user = new User();
+            sportsLibrary.add(user);
+            user.setFirstName("Event");
+            sportsLibrary.update(user);
+            sportsLibrary.update(user);
+            User removedUser = new User();
+            sportsLibrary.add(removedUser);
+            sportsLibrary.delete(removedUser);
+            Track track = new Track("Event-Track", null, new ArrayList<>());
+            sportsLibrary.add(track);
+
+            // only the subscribed types
+            assertEquals(List.of("added " + track.getUUID()), synchronousEvents);
+            sportsLibrary.flushEvents();
+            assertEquals(List.of("added " + user.getUUID()), asynchronousEvents);
+
+            // delivered in the background
+            sportsLibrary.delete(user);
+            long timeout = System.currentTimeMillis() + 10000;
+            while (asynchronousEvents.size() < 2 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertEquals("removed " + user.getUUID(), asynchronousEvents.get(asynchronousEvents.size() - 1));
+
+            // no more events
+            sportsLibrary.removeDelegate(asynchronousDelegate);
+            sportsLibrary.add(new User());
+            sportsLibrary.flushEvents();
+            assertEquals(2, asynchronousEvents.size());
+
+        } catch (InstantiationException | SportsLibraryException | InterruptedException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.removeDelegate(asynchronousDelegate);
+                sportsLibrary.removeDelegate(synchronousDelegate);
+                sportsLibrary.clearAll();
+            }
+        }
+    }
+
+    @Test
+    void testObjectCache() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            User user = new User();
+            sportsLibrary.add(user);
+
+            // read through
+            CacheStatistics statistics = sportsLibrary.getCacheStatistics();
+            assertNotNull(sportsLibrary.findByUUID(User.class, user.getUUID()));
+            User cachedUser = (User) sportsLibrary.findByUUID(User.class, user.getUUID());
+            assertNotNull(cachedUser);
+            assertEquals(statistics.getHits() + 1, sportsLibrary.getCacheStatistics().getHits(), "User not cached.");
+            assertEquals(statistics.getMisses() + 1, sportsLibrary.getCacheStatistics().getMisses());
+
+            // unsaved changes are not seen by other readers
+            cachedUser.setFirstName("UNSAVED");
+            statistics = sportsLibrary.getCacheStatistics();
+            User otherUser = (User) sportsLibrary.findByUUID(User.class, user.getUUID());
+            assertNotNull(otherUser);
+            assertNotSame(cachedUser, otherUser);
+            assertNotEquals(Optional.of("UNSAVED"), otherUser.getFirstName(), "Unsaved change of a cached user is shared.");
+            assertEquals(statistics.getHits() + 1, sportsLibrary.getCacheStatistics().getHits(), "User not cached.");
+
+            // a hit copies the cached object, it is not decoded and its saved document is not written again
+            List<LocationData> locationData = new ArrayList<>(5000);
+            for (int i = 0; i < 5000; i++) {
+                locationData.add(new LocationData(51.0 + i * 0.0001, 14.2));
+            }
+            Track track = new Track("Cached-Track", null, locationData);
+            sportsLibrary.add(track);
+            long startTime = System.nanoTime();
+            assertNotNull(sportsLibrary.findByUUID(Track.class, track.getUUID()));
+            long missTime = System.nanoTime() - startTime;
+            long hitTime = Long.MAX_VALUE;
+            Track cachedTrack = null;
+            for (int i = 0; i < 3; i++) {
+                startTime = System.nanoTime();
+                cachedTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+                hitTime = Math.min(hitTime, System.nanoTime() - startTime);
+            }
+            assertNotNull(cachedTrack);
+            assertTrue(hitTime * 5 < missTime, "A hit (" + hitTime + " ns) decodes the track like a miss ("
+                    + missTime + " ns).");
+            Track otherTrack = (Track) sportsLibrary.findByUUID(Track.class, track.getUUID());
+            assertNotNull(otherTrack);
+            assertNotSame(cachedTrack, otherTrack);
+            assertNotSame(cachedTrack.getLocations(), otherTrack.getLocations());
+            assertSame(cachedTrack.getSavedDocument(), otherTrack.getSavedDocument(), "Track was encoded again.");
+            assertSame(cachedTrack.getLocations().get(0).getSavedDocument(),
+                    otherTrack.getLocations().get(0).getSavedDocument(), "Location was encoded again.");
+
+            // all objects of a type
+            int numberOfUsers = sportsLibrary.findAll(User.class).size();
+            statistics = sportsLibrary.getCacheStatistics();
+            assertEquals(numberOfUsers, sportsLibrary.findAll(User.class).size());
+            assertEquals(statistics.getHits() + 1, sportsLibrary.getCacheStatistics().getHits(), "Users not cached.");
+
+            // invalidated by the events
+            user.setFirstName("Cached");
+            sportsLibrary.update(user);
+            User updatedUser = (User) sportsLibrary.findByUUID(User.class, user.getUUID());
+            assertNotNull(updatedUser);
+            assertEquals(Optional.of("Cached"), updatedUser.getFirstName());
+            sportsLibrary.add(new User());
+            assertEquals(numberOfUsers + 1, sportsLibrary.findAll(User.class).size(), "Cached users not invalidated.");
+            sportsLibrary.delete(user);
+            assertNull(sportsLibrary.findByUUID(User.class, user.getUUID()), "Cached user not invalidated.");
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+            }
+        }
+    }
+
+    @Test
+    void testAsyncMethods() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            int numberOfUsers = sportsLibrary.findAll(User.class).size();
+
+            // default executor
+            User user = new User();
+            sportsLibrary.addAsync(user).get(10, TimeUnit.SECONDS);
+            assertEquals(numberOfUsers + 1, sportsLibrary.findAllAsync(User.class).get(10, TimeUnit.SECONDS).size());
+
+            // errors are reported as SportsLibraryException
+            Track track = new Track("Async-Track", null, new ArrayList<>());
+            File exportFile = new File("/not-existing-directory/async.gpx");
+            final SportsLibrary library = sportsLibrary;
+            ExecutionException exception = assertThrows(ExecutionException.class,
+                    () -> library.exportGPXAsync(track, exportFile).get(10, TimeUnit.SECONDS));
+            assertTrue(exception.getCause() instanceof SportsLibraryException);
+
+            // a task cancelled before start will not run
+            List<Runnable> tasks = new ArrayList<>();
+            sportsLibrary.setAsyncExecutor(tasks::add);
+            User cancelledUser = new User();
+            CompletableFuture<Void> future = sportsLibrary.addAsync(cancelledUser);
+            assertTrue(future.cancel(true));
+            tasks.forEach(Runnable::run);
+            assertNull(sportsLibrary.findByUUID(User.class, cancelledUser.getUUID()), "Cancelled task was run.");
+
+            // a running task is not interrupted, the database can be written afterwards
+            CountDownLatch startedLatch = new CountDownLatch(1);
+            ThreadPoolExecutor writeExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>()) {
+                @Override
+                protected void beforeExecute(Thread thread, Runnable runnable) {
+                    startedLatch.countDown();
+                }
+            };
+            try {
+                sportsLibrary.setAsyncExecutor(writeExecutor);
+                List<LocationData> locationData = new ArrayList<>(20000);
+                for (int i = 0; i < 20000; i++) {
+                    locationData.add(new LocationData(51.0 + i * 0.0001, 14.2));
+                }
+                CompletableFuture<Void> runningFuture =
+                        sportsLibrary.addAsync(new Track("Cancelled-Track", null, locationData));
+                assertTrue(startedLatch.await(10, TimeUnit.SECONDS), "Task not started.");
+                Thread.sleep(50);
+                assertTrue(runningFuture.cancel(true));
+            } finally {
+                writeExecutor.shutdown();
+                assertTrue(writeExecutor.awaitTermination(60, TimeUnit.SECONDS), "Task not completed.");
+            }
+            User laterUser = new User();
+            sportsLibrary.add(laterUser);
+            assertNotNull(sportsLibrary.findByUUID(User.class, laterUser.getUUID()), "Database not writable.");
+
+        } catch (InstantiationException | SportsLibraryException | InterruptedException | ExecutionException
+                | TimeoutException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.setAsyncExecutor(null);
+                sportsLibrary.clearAll();
+            }
+        }
+    }
+
+    @Test
+    void testConcurrentAccess() {
+        SportsLibrary sportsLibrary = null;
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            final SportsLibrary library = sportsLibrary;
+            int numberOfUsers = sportsLibrary.findAll(User.class).size();
+            int numberOfTracks = sportsLibrary.findAll(Track.class).size();
+
+            // writers and readers of different types and the same object
+            User sharedUser = new User();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final int number = i;
+                tasks.add(() -> {
+                    library.add(new User());
+                    library.add(sharedUser);
+                    List<LocationData> locations = new ArrayList<>();
+                    locations.add(new LocationData());
+                    locations.add(new LocationData());
+                    library.add(new Track("Track-" + number, null, locations));
+                    for (PersistentObject track : library.findAll(Track.class)) {
+                        assertEquals(2, ((Track) track).getLocations().size(), "Track was read while writing.");
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> future : executorService.invokeAll(tasks)) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+
+            // checks
+            assertEquals(numberOfUsers + 9, sportsLibrary.findAll(User.class).size());
+            assertEquals(numberOfTracks + 8, sportsLibrary.findAll(Track.class).size());
+
+        } catch (InstantiationException | InterruptedException | ExecutionException | TimeoutException exception) {
+            fail(exception.getMessage());
+        } finally {
+            executorService.shutdownNow();
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+            }
+        }
+    }
+
+    @Test
+    void testBatchCRUD() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+            // the locations are checked as own objects
+            sportsLibrary.setLocationStorage(LocationStorage.SEPARATE);
+
+            // users and tracks in one batch
+            User user1 = new User();
+            User user2 = new User();
+            List<LocationData> locationData = new ArrayList<>(2);
+            locationData.add(new LocationData());
+            locationData.add(new LocationData());
+            Track track = new Track("Test-Track", null, locationData);
+            List<PersistentObject> objects = new ArrayList<>();
+            objects.add(user1);
+            objects.add(track);
+            objects.add(user2);
+            int numberOfUsers = sportsLibrary.findAll(User.class).size();
+            sportsLibrary.addAll(objects);
+
+            // checks
+            assertNotNull(sportsLibrary.findByUUID(User.class, user1.getUUID()), "User 1 was not saved.");
+            assertNotNull(sportsLibrary.findByUUID(User.class, user2.getUUID()), "User 2 was not saved.");
+            assertNotNull(sportsLibrary.findByUUID(Track.class, track.getUUID()), "Track was not saved.");
+            assertEquals(2, sportsLibrary.findAll(LocationData.class).size(), "LocationData not saved.");
+
+            // adding existing objects again will be ignored
+            sportsLibrary.addAll(objects);
+            assertEquals(numberOfUsers + 2, sportsLibrary.findAll(User.class).size(), "Existing users must be ignored.");
+
+            // update
+            user1.setFirstName("Max");
+            user2.setLastName("Mustermann");
+            List<PersistentObject> users = new ArrayList<>();
+            users.add(user1);
+            users.add(user2);
+            sportsLibrary.updateAll(users);
+            User updatedUser1 = (User) sportsLibrary.findByUUID(User.class, user1.getUUID());
+            assertNotNull(updatedUser1);
+            assertEquals("Max", updatedUser1.getFirstName().orElse(""));
+            User updatedUser2 = (User) sportsLibrary.findByUUID(User.class, user2.getUUID());
+            assertNotNull(updatedUser2);
+            assertEquals("Mustermann", updatedUser2.getLastName().orElse(""));
+
+            // an update with a not existing object saves nothing
+            User user3 = new User();
+            user2.setFirstName("Moritz");
+            List<PersistentObject> notExistingObjects = new ArrayList<>();
+            notExistingObjects.add(user2);
+            notExistingObjects.add(user3);
+            final SportsLibrary library = sportsLibrary;
+            assertThrows(SportsLibraryException.class, () -> library.updateAll(notExistingObjects));
+            User notUpdatedUser = (User) sportsLibrary.findByUUID(User.class, user2.getUUID());
+            assertNotNull(notUpdatedUser);
+            assertFalse(notUpdatedUser.getFirstName().isPresent(), "User 2 must not be updated.");
+
+            // delete
+            sportsLibrary.deleteAll(objects);
+            assertNull(sportsLibrary.findByUUID(User.class, user1.getUUID()), "User 1 was not deleted.");
+            assertNull(sportsLibrary.findByUUID(User.class, user2.getUUID()), "User 2 was not deleted.");
+            assertNull(sportsLibrary.findByUUID(Track.class, track.getUUID()), "Track was not deleted.");
+            assertEquals(0, sportsLibrary.findAll(LocationData.class).size(), "LocationData was not deleted.");
+
+        } catch (InstantiationException | SportsLibraryException exception) {
+            fail(exception.getMessage());
+        } finally {
+            // delete all objects
+            if (sportsLibrary != null) {
+                sportsLibrary.clearAll();
+                resetLocationStorage(sportsLibrary);
+            }
+        }
+    }
+
+    @Test
+    void testStreamingAndPaging() {
+        SportsLibrary sportsLibrary = null;
+        try {
+            sportsLibrary = SportsLibrary.getInstance(true, null, null, null);
+
+            List<Training> trainings = new ArrayList<>(25);
+            for (int i = 0; i < 25; i++) {
+                trainings.add(new Training(String.format("Training-%02d", i), null, null, null, null));
+            }
+            sportsLibrary.addAll(trainings);
+
+            // iterate and stream
+            int count = 0;
+            Iterator<Training> iterator = sportsLibrary.iterator(Training.class);
+            while (iterator.hasNext()) {
+                assertNotNull(iterator.next());
+                count++;
+            }
+            assertEquals(25, count);
+            assertEquals(25, sportsLibrary.stream(Training.class)
+                    .filter(training -> training.getName().startsWith("Training-"))
+                    .count());
+
+            // pages sorted by name
+            List<Training> page = sportsLibrary.findPage(Training.class, "name", 10, 10);
+            assertEquals(10, page.size());
+            assertEquals("Training-10", page.get(0).getName());
+            assertEquals("Training-19", page.get(9).getName());
+            List<Training> lastPage = sportsLibrary.findPage(Training.class, "name", 20, 10);
+            assertEquals(5, lastPage.size());
+            // pages behind the last object are empty
+            assertTrue(sportsLibrary.findPage(Training.class, "name", 25, 10).isEmpty());
+            assertTrue(sportsLibrary.findPage(Training.class, "name", 30, 10).isEmpty());
+            // pages sorted by uuid do not overlap
+            Set<UUID> uuids = new HashSet<>();
+            for (int offset = 0; offset < 25; offset += 10) {
+                for (Training training : sportsLibrary.findPage(Training.class, null, offset, 10)) {
+                    assertTrue(uuids.add(training.getUUID()), "Training is in more than one page.");
+                }
+            }
+            assertEquals(25, uuids.size());
+
         } catch (InstantiationException | SportsLibraryException exception) {
             fail(exception.getMessage());
         } finally {
@@ -767,4 +2411,34 @@ class SportsLibraryTest {
             }
         }
     }
-}
\ No newline at end of file
+
+    // locations of a ride with a location every second
+    private List<LocationData> locationsOf(int numberOfLocations) {
+        List<LocationData> locationData = new ArrayList<>(numberOfLocations);
+        for (int i = 0; i < numberOfLocations; i++) {
+            locationData.add(new LocationData(51.0 + i * 0.00001, 14.2));
+        }
+        return locationData;
+    }
+
+    // the default layout is restored for the next tests
+    private void resetLocationStorage(SportsLibrary sportsLibrary) {
+        try {
+            sportsLibrary.setLocationStorage(Global.DEFAULT_LOCATION_STORAGE);
+        } catch (SportsLibraryException exception) {
+            fail(exception.getMessage());
+        }
+    }
+
+    private void close(SportsLibrary sportsLibrary) {
+        try {
+            sportsLibrary.close();
+        } catch (SportsLibraryException exception) {
+            fail(exception.getMessage());
+        }
+    }
+
+    private List<UUID> uuidsOf(List<? extends PersistentObject> objects) {
+        return objects.stream().map(PersistentObject::getUUID).collect(Collectors.toList());
+    }
+}